@@ -0,0 +1,103 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The replay check on the ACS endpoint: inserting a new assertion ID and rejecting one that was already used,
+ * for the in-memory and the memory-mapped {@link AssertionReplayCache}. New IDs expire after 100 ms so the
+ * caches stay at a steady size however long the run is, and far below the mapped cache's capacity, which
+ * rejects assertions once a bucket is full
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AssertionReplayCacheBenchmark {
+
+    private static final int USED_IDS = 1024;
+
+    @Param({"striped", "mapped"})
+    public String cache;
+
+    private AssertionReplayCache replayCache;
+    private Path file;
+    private final String[] usedIds = new String[USED_IDS];
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if ("mapped".equals(this.cache)) {
+            // the cache refuses directories others may write to, such as the temp directory itself
+            this.file = Files.createTempDirectory("saml-replay-benchmark").resolve("replay.bin");
+            this.replayCache = new MappedAssertionReplayCache(this.file, 1 << 22, Clock.systemUTC());
+        } else {
+            this.replayCache = new StripedAssertionReplayCache();
+        }
+        long expiresAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < USED_IDS; i++) {
+            this.usedIds[i] = "_used-assertion-" + i;
+            this.replayCache.markUsed(BenchmarkFixtures.REGISTRATION_ID, this.usedIds[i], expiresAt);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (this.replayCache instanceof MappedAssertionReplayCache) {
+            ((MappedAssertionReplayCache) this.replayCache).destroy();
+            Files.deleteIfExists(this.file);
+            Files.deleteIfExists(this.file.getParent());
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean insert(Ids ids) {
+        // the ID is built per call, as the unmarshalled assertion's ID would be
+        String assertionId = ids.prefix + ids.next++;
+        return this.replayCache.markUsed(BenchmarkFixtures.REGISTRATION_ID, assertionId, System.currentTimeMillis() + 100);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean rejectReplay(Ids ids) {
+        int index = (int) (ids.next++ & (USED_IDS - 1));
+        return this.replayCache.markUsed(BenchmarkFixtures.REGISTRATION_ID, this.usedIds[index], Long.MAX_VALUE);
+    }
+
+    /**
+     * Per-thread ID sequence, so threads only meet inside the cache
+     */
+    @State(Scope.Thread)
+    public static class Ids {
+
+        String prefix;
+        long next;
+
+        @Setup(Level.Trial)
+        public void setUp(AssertionReplayCacheBenchmark benchmark) {
+            this.prefix = "_assertion-" + benchmark.threads.incrementAndGet() + "-";
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.saml2.provider.service.authentication.OpenSamlAuthenticationRequestFactory;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationRequestContext;
+import org.springframework.security.saml2.provider.service.authentication.Saml2PostAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2RedirectAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AuthnRequest creation for the redirect and POST bindings, against Spring's OpenSamlAuthenticationRequestFactory
+ * as the baseline. There is no servlet request here, so the factory uses the default login hint. Every invocation
+ * gets its own registration copy, as DefaultRelyingPartyRegistrationResolver hands out per request
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthnRequestBenchmark {
+
+    @Param({"false", "true"})
+    public boolean templateEnabled;
+
+    @Param({"false", "true"})
+    public boolean signed;
+
+    private VerintLoginHintAuthenticationRequestFactory factory;
+    private OpenSamlAuthenticationRequestFactory springFactory;
+    private RelyingPartyRegistration registration;
+
+    @Setup
+    public void setUp() {
+        this.factory = new VerintLoginHintAuthenticationRequestFactory();
+        this.factory.setTemplateEnabled(this.templateEnabled);
+        this.springFactory = new OpenSamlAuthenticationRequestFactory();
+        this.registration = BenchmarkFixtures.registration(this.signed);
+    }
+
+    @Benchmark
+    public Saml2RedirectAuthenticationRequest redirect() {
+        return this.factory.createRedirectAuthenticationRequest(context());
+    }
+
+    @Benchmark
+    public Saml2PostAuthenticationRequest post() {
+        return this.factory.createPostAuthenticationRequest(context());
+    }
+
+    @Benchmark
+    public Saml2RedirectAuthenticationRequest springRedirect() {
+        return this.springFactory.createRedirectAuthenticationRequest(context());
+    }
+
+    @Benchmark
+    public Saml2PostAuthenticationRequest springPost() {
+        return this.springFactory.createPostAuthenticationRequest(context());
+    }
+
+    private Saml2AuthenticationRequestContext context() {
+        RelyingPartyRegistration copy = RelyingPartyRegistration.withRelyingPartyRegistration(this.registration).build();
+        return Saml2AuthenticationRequestContext.builder()
+                .relyingPartyRegistration(copy)
+                .issuer(copy.getEntityId())
+                .assertionConsumerServiceUrl(copy.getAssertionConsumerServiceLocation())
+                .build();
+    }
+}
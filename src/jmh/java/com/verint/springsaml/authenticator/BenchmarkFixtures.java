@@ -0,0 +1,93 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * Registration and credentials shared by the benchmarks. Everything is read from the classpath, so the
+ * benchmarks run offline: the SP key pair is credentials/private.key and credentials/public.cer, and the
+ * same pair plays the IdP whose signed Responses are in benchmark/*.xml (see {@link SignedResponseFixtures})
+ */
+final class BenchmarkFixtures {
+
+    static final String REGISTRATION_ID = "azure";
+
+    static final String SP_ENTITY_ID = "WFO_SPjoy";
+
+    static final String ACS_LOCATION = "http://localhost:7001/wfo/saml2/acs/" + REGISTRATION_ID;
+
+    static final String IDP_ENTITY_ID = "https://idp.example.org/benchmark";
+
+    static final String IDP_SSO_LOCATION = "https://idp.example.org/benchmark/sso";
+
+    private BenchmarkFixtures() {
+    }
+
+    static RelyingPartyRegistration registration(boolean wantAuthnRequestsSigned) {
+        return registration(REGISTRATION_ID, wantAuthnRequestsSigned);
+    }
+
+    static RelyingPartyRegistration registration(String registrationId, boolean wantAuthnRequestsSigned) {
+        X509Certificate certificate = certificate();
+        PrivateKey privateKey = privateKey();
+        return RelyingPartyRegistration.withRegistrationId(registrationId)
+                .entityId(SP_ENTITY_ID)
+                .assertionConsumerServiceLocation("http://localhost:7001/wfo/saml2/acs/" + registrationId)
+                .signingX509Credentials(c -> c.add(Saml2X509Credential.signing(privateKey, certificate)))
+                .decryptionX509Credentials(c -> c.add(Saml2X509Credential.decryption(privateKey, certificate)))
+                .assertingPartyDetails(party -> party
+                        .entityId(IDP_ENTITY_ID)
+                        .singleSignOnServiceLocation(IDP_SSO_LOCATION)
+                        .wantAuthnRequestsSigned(wantAuthnRequestsSigned)
+                        .verificationX509Credentials(c -> c.add(Saml2X509Credential.verification(certificate))))
+                .build();
+    }
+
+    static X509Certificate certificate() {
+        try (InputStream in = new ClassPathResource("credentials/public.cer").getInputStream()) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    static PrivateKey privateKey() {
+        String pem = read("credentials/private.key")
+                .replaceAll("-----[A-Z ]+-----", "")
+                .replaceAll("\\s", "");
+        try {
+            return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(pem)));
+        } catch (GeneralSecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    /**
+     * @return the SAML Response XML of a fixture in benchmark/
+     */
+    static String response(String fixture) {
+        return read("benchmark/" + fixture + ".xml");
+    }
+
+    private static String read(String location) {
+        try (InputStream in = new ClassPathResource(location).getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.verint.springsaml.authenticator;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.util.HtmlUtils;
+import org.springframework.web.util.UriUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Closed-loop load test of the whole SP-initiated login against the {@link MockIdentityProvider}:
+ * /login, /process-email, /saml2/authenticate/{id}, the IdP, /saml2/acs/{id} and /success, by a number of
+ * virtual users that each log in again as soon as they finish, with fresh cookies every time.
+ * Latencies are recorded per stage in HdrHistograms; after the warmup, the throughput and percentiles of every
+ * stage are reported, and with --histograms the full distributions are written as .hgrm files.
+ * By default the SP runs in this JVM too, so the whole test needs no network:
+ * <pre>
+ * mvn -o -Pbenchmarks test-compile exec:exec@loadtest -Dloadtest.args="--concurrency=32 --duration=PT2M"
+ * </pre>
+ * Options: --concurrency (16), --duration (PT1M), --warmup (PT15S), --report-interval (PT10S),
+ * --binding (redirect or post), --stateless (true for the stateless login hint mode), --histograms (directory),
+ * --async (true for the async execution mode), --cpu-threads (its verification pool, 0 for one per core),
+ * --tomcat-threads (the SP's Tomcat pool, 200), --metadata-delay (how long the IdP takes to serve its metadata),
+ * --idp-port (0) and --target, the base URL of an SP started elsewhere with saml.azure.metadata-url pointing
+ * at this IdP's /metadata. Since the driver waits for each login before starting the next, latencies
+ * are as seen by the users and throughput is the capacity at this concurrency
+ */
+public final class LoginFlowLoadTest {
+
+    enum Stage {
+        LOGIN_PAGE, PROCESS_EMAIL, AUTHENTICATE, IDP, ACS, SUCCESS, FLOW
+    }
+
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*action=\"([^\"]*)\"");
+    private static final Pattern HIDDEN_INPUT = Pattern.compile("name=\"([^\"]+)\"\\s+value=\"([^\"]*)\"");
+
+    private final String baseUrl;
+    private final String idpBaseUrl;
+    private final Map<Stage, Recorder> recorders = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> errors = new EnumMap<>(Stage.class);
+    private final AtomicLong users = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean running = true;
+
+    LoginFlowLoadTest(String baseUrl, String idpBaseUrl) {
+        this.baseUrl = baseUrl;
+        this.idpBaseUrl = idpBaseUrl;
+        for (Stage stage : Stage.values()) {
+            // microseconds, up to a minute with 3 significant digits
+            this.recorders.put(stage, new Recorder(TimeUnit.MINUTES.toMicros(1), 3));
+            this.errors.put(stage, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        Duration duration = Duration.parse(options.getOrDefault("duration", "PT1M"));
+        Duration warmup = Duration.parse(options.getOrDefault("warmup", "PT15S"));
+        Duration reportInterval = Duration.parse(options.getOrDefault("report-interval", "PT10S"));
+        boolean post = "post".equalsIgnoreCase(options.getOrDefault("binding", "redirect"));
+        String histograms = options.get("histograms");
+        // keep-alive connections for every virtual user, to the SP and to the IdP
+        System.setProperty("http.maxConnections", Integer.toString(2 * concurrency));
+
+        try (MockIdentityProvider idp = new MockIdentityProvider(Integer.parseInt(options.getOrDefault("idp-port", "0")), post)) {
+            idp.setMetadataDelay(Duration.parse(options.getOrDefault("metadata-delay", "PT0S")));
+            idp.start();
+            ConfigurableApplicationContext sp = null;
+            String target = options.get("target");
+            if (target == null) {
+                int port = freePort();
+                sp = startServiceProvider(port, idp, options);
+                target = "http://127.0.0.1:" + port + "/wfo";
+            } else {
+                System.out.println("Using the SP at " + target + "; its saml.azure.metadata-url must be " + idp.getMetadataLocation());
+            }
+            try {
+                LoginFlowLoadTest test = new LoginFlowLoadTest(target, idp.getBaseUrl());
+                test.awaitServiceProvider(Duration.ofMinutes(1));
+                test.run(concurrency, warmup, duration, reportInterval, histograms != null ? Paths.get(histograms) : null);
+            } finally {
+                if (sp != null) {
+                    sp.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the SP in this JVM, with its azure registration pointing at the mock IdP and quiet logging
+     */
+    private static ConfigurableApplicationContext startServiceProvider(int port, MockIdentityProvider idp, Map<String, String> options) throws IOException {
+        Path metadataCache = Files.createTempDirectory("saml-loadtest-metadata");
+        metadataCache.toFile().deleteOnExit();
+        String[] properties = {
+                "--server.port=" + port,
+                "--saml.azure.metadata-url=" + idp.getMetadataLocation(),
+                "--saml.azure.assertionConsumerServiceLocation=http://127.0.0.1:" + port + "/wfo/saml2/acs/",
+                "--saml.metadata.cache-dir=" + metadataCache,
+                "--saml.login-hint.stateless=" + options.getOrDefault("stateless", "false"),
+                "--saml.async.enabled=" + options.getOrDefault("async", "false"),
+                "--saml.async.cpu-threads=" + options.getOrDefault("cpu-threads", "0"),
+                "--server.tomcat.threads.max=" + options.getOrDefault("tomcat-threads", "200"),
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN",
+                "--logging.level.org.springframework.security=WARN",
+                "--logging.level.org.springframework.security.saml=WARN",
+                "--logging.level.org.opensaml.xmlsec=WARN"
+        };
+        return new SpringApplicationBuilder(Saml2ExampleServiceProviderApp.class).run(properties);
+    }
+
+    /**
+     * The SP fetches the IdP metadata in the background after startup; wait until it can send AuthnRequests
+     */
+    void awaitServiceProvider(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        String lastError = null;
+        while (System.nanoTime() < deadline) {
+            try {
+                HttpResult result = new Client().get(this.baseUrl + "/saml2/authenticate/azure");
+                if ((result.status == 302 && result.location().startsWith(this.idpBaseUrl)) || (result.status == 200 && result.body.contains("SAMLRequest"))) {
+                    return;
+                }
+                lastError = "HTTP " + result.status;
+            } catch (IOException ex) {
+                lastError = ex.toString();
+            }
+            Thread.sleep(250);
+        }
+        throw new IllegalStateException("The SP at " + this.baseUrl + " did not get ready: " + lastError);
+    }
+
+    void run(int concurrency, Duration warmup, Duration duration, Duration reportInterval, Path histogramDirectory) throws Exception {
+        System.out.printf("Running %d virtual users against %s: %ss warmup, %ss measured%n", concurrency, this.baseUrl,
+                warmup.getSeconds(), duration.getSeconds());
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "virtual-user");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(this::virtualUser);
+        }
+
+        Thread.sleep(warmup.toMillis());
+        // drop the warmup recordings
+        for (Stage stage : Stage.values()) {
+            this.recorders.get(stage).getIntervalHistogram();
+            this.errors.get(stage).reset();
+        }
+
+        Map<Stage, Histogram> totals = new EnumMap<>(Stage.class);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long intervalStart = start;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(reportInterval.toMillis(), Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            long now = System.nanoTime();
+            Histogram flow = null;
+            for (Stage stage : Stage.values()) {
+                Histogram interval = this.recorders.get(stage).getIntervalHistogram();
+                totals.computeIfAbsent(stage, s -> new Histogram(interval.getHighestTrackableValue(), 3)).add(interval);
+                if (stage == Stage.FLOW) {
+                    flow = interval;
+                }
+            }
+            double seconds = (now - intervalStart) / 1e9;
+            System.out.printf("%6.0fs  logins/s %8.1f  p50 %8.2f ms  p99 %8.2f ms  errors %d%n", (now - start) / 1e9,
+                    flow.getTotalCount() / seconds, flow.getValueAtPercentile(50) / 1000.0, flow.getValueAtPercentile(99) / 1000.0,
+                    this.errors.get(Stage.FLOW).sum());
+            intervalStart = now;
+        }
+        double measuredSeconds = (System.nanoTime() - start) / 1e9;
+        this.running = false;
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        report(System.out, totals, measuredSeconds);
+        if (histogramDirectory != null) {
+            Files.createDirectories(histogramDirectory);
+            for (Map.Entry<Stage, Histogram> entry : totals.entrySet()) {
+                Path file = histogramDirectory.resolve(entry.getKey().name().toLowerCase() + ".hgrm");
+                try (PrintStream out = new PrintStream(Files.newOutputStream(file), false, "UTF-8")) {
+                    // values in milliseconds
+                    entry.getValue().outputPercentileDistribution(out, 1000.0);
+                }
+            }
+            System.out.println("Wrote latency distributions to " + histogramDirectory);
+        }
+    }
+
+    private void report(PrintStream out, Map<Stage, Histogram> totals, double seconds) {
+        out.println();
+        out.printf("%-14s %10s %8s %10s %9s %9s %9s %9s %9s%n", "stage", "count", "errors", "ops/s", "p50 ms", "p90 ms",
+                "p99 ms", "p99.9 ms", "max ms");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = totals.get(stage);
+            out.printf("%-14s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", stage.name().toLowerCase(),
+                    histogram.getTotalCount(), this.errors.get(stage).sum(), histogram.getTotalCount() / seconds,
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0);
+        }
+    }
+
+    private void virtualUser() {
+        while (this.running) {
+            Client client = new Client();
+            String email = "user" + this.users.incrementAndGet() + "@example.com";
+            long flowStart = System.nanoTime();
+            try {
+                login(client, email);
+                record(Stage.FLOW, flowStart);
+            } catch (StageFailure failure) {
+                this.errors.get(failure.stage).increment();
+                this.errors.get(Stage.FLOW).increment();
+                logFailure(failure.stage + ": " + failure.getMessage());
+            } catch (RuntimeException ex) {
+                this.errors.get(Stage.FLOW).increment();
+                logFailure(ex.toString());
+            }
+        }
+    }
+
+    private void login(Client client, String email) {
+        long start = System.nanoTime();
+        HttpResult result = expect(Stage.LOGIN_PAGE, () -> client.get(this.baseUrl + "/login"), 200);
+        start = record(Stage.LOGIN_PAGE, start);
+
+        result = expect(Stage.PROCESS_EMAIL, () -> client.post(this.baseUrl + "/process-email", form("email", email)), 302);
+        String authenticate = result.location();
+        start = record(Stage.PROCESS_EMAIL, start);
+
+        // redirect binding: a 302 to the IdP; POST binding: an auto-submitting form
+        result = expect(Stage.AUTHENTICATE, () -> client.get(authenticate), 200, 302);
+        HttpResult authnRequest = result;
+        start = record(Stage.AUTHENTICATE, start);
+
+        if (authnRequest.status == 302) {
+            result = expect(Stage.IDP, () -> client.get(authnRequest.location()), 200);
+        } else {
+            Map<String, String> inputs = authnRequest.hiddenInputs();
+            result = expect(Stage.IDP, () -> client.post(authnRequest.formAction(), form(inputs)), 200);
+        }
+        HttpResult samlResponse = result;
+        start = record(Stage.IDP, start);
+
+        result = expect(Stage.ACS, () -> client.post(samlResponse.formAction(), form(samlResponse.hiddenInputs())), 302);
+        String success = result.location();
+        if (!success.endsWith("/success")) {
+            throw new StageFailure(Stage.ACS, "Login failed, redirected to " + success);
+        }
+        start = record(Stage.ACS, start);
+
+        result = expect(Stage.SUCCESS, () -> client.get(success), 200);
+        if (!result.body.contains(email)) {
+            throw new StageFailure(Stage.SUCCESS, "Logged in as someone else than " + email);
+        }
+        record(Stage.SUCCESS, start);
+    }
+
+    private void logFailure(String message) {
+        // the first few are enough to see what is going on
+        if (this.failures.incrementAndGet() <= 10) {
+            System.err.println("Login failed: " + message);
+        }
+    }
+
+    private long record(Stage stage, long start) {
+        long now = System.nanoTime();
+        this.recorders.get(stage).recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - start), TimeUnit.MINUTES.toMicros(1)));
+        return now;
+    }
+
+    private static HttpResult expect(Stage stage, Request request, int... statuses) {
+        HttpResult result;
+        try {
+            result = request.send();
+        } catch (IOException ex) {
+            throw new StageFailure(stage, ex.toString());
+        }
+        for (int status : statuses) {
+            if (result.status == status) {
+                return result;
+            }
+        }
+        throw new StageFailure(stage, "HTTP " + result.status);
+    }
+
+    private static String form(String name, String value) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(name, value);
+        return form(parameters);
+    }
+
+    private static String form(Map<String, String> parameters) {
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (form.length() > 0) {
+                form.append('&');
+            }
+            form.append(UriUtils.encode(parameter.getKey(), StandardCharsets.UTF_8)).append('=')
+                    .append(UriUtils.encode(parameter.getValue(), StandardCharsets.UTF_8));
+        }
+        return form.toString();
+    }
+
+    static Map<String, String> options(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        HttpResult send() throws IOException;
+    }
+
+    private static final class StageFailure extends RuntimeException {
+
+        final Stage stage;
+
+        StageFailure(Stage stage, String message) {
+            super(message, null, false, false);
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * A browser without redirects or JavaScript: keeps cookies by name, connections are reused by the JDK
+     */
+    private static final class Client {
+
+        private final Map<String, String> cookies = new LinkedHashMap<>();
+
+        HttpResult get(String url) throws IOException {
+            return send(url, "GET", null);
+        }
+
+        HttpResult post(String url, String form) throws IOException {
+            return send(url, "POST", form);
+        }
+
+        private HttpResult send(String url, String method, String form) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(60_000);
+            if (!this.cookies.isEmpty()) {
+                StringBuilder header = new StringBuilder();
+                for (Map.Entry<String, String> cookie : this.cookies.entrySet()) {
+                    if (header.length() > 0) {
+                        header.append("; ");
+                    }
+                    header.append(cookie.getKey()).append('=').append(cookie.getValue());
+                }
+                connection.setRequestProperty("Cookie", header.toString());
+            }
+            if (form != null) {
+                byte[] body = form.getBytes(StandardCharsets.UTF_8);
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            int status = connection.getResponseCode();
+            List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+            if (setCookies != null) {
+                for (String setCookie : setCookies) {
+                    int eq = setCookie.indexOf('=');
+                    int end = setCookie.indexOf(';');
+                    this.cookies.put(setCookie.substring(0, eq), setCookie.substring(eq + 1, end < 0 ? setCookie.length() : end));
+                }
+            }
+            String location = connection.getHeaderField("Location");
+            // read the body to the end so the connection goes back to the keep-alive cache
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            String body = in != null ? read(in) : "";
+            return new HttpResult(url, status, location, body);
+        }
+
+        private static String read(InputStream in) throws IOException {
+            try (InputStream input = in) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n; (n = input.read(buffer)) > 0; ) {
+                    out.write(buffer, 0, n);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static final class HttpResult {
+
+        final String url;
+        final int status;
+        final String locationHeader;
+        final String body;
+
+        HttpResult(String url, int status, String locationHeader, String body) {
+            this.url = url;
+            this.status = status;
+            this.locationHeader = locationHeader;
+            this.body = body;
+        }
+
+        String location() {
+            try {
+                // relative redirects are resolved against the request
+                return new URL(new URL(this.url), this.locationHeader).toString();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        String formAction() {
+            Matcher matcher = FORM_ACTION.matcher(this.body);
+            if (!matcher.find()) {
+                throw new IllegalStateException("No form in the response from " + this.url);
+            }
+            return HtmlUtils.htmlUnescape(matcher.group(1));
+        }
+
+        Map<String, String> hiddenInputs() {
+            Map<String, String> inputs = new LinkedHashMap<>();
+            Matcher matcher = HIDDEN_INPUT.matcher(this.body);
+            while (matcher.find()) {
+                inputs.put(matcher.group(1), HtmlUtils.htmlUnescape(matcher.group(2)));
+            }
+            return inputs;
+        }
+    }
+}
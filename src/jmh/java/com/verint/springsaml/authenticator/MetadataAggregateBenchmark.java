@@ -0,0 +1,115 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateEncodingException;
+import java.util.Base64;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming ingestion of a synthetic metadata aggregate, an EntitiesDescriptor of IdPs with a signing and an
+ * encryption certificate each (about 3 KB per entity), in a 64 MB heap to show memory stays bounded by the batch
+ * size. Registrations are counted and dropped, so the store's own footprint is not part of it. Serially and with
+ * certificate decoding on the common pool:
+ * <pre>
+ * mvn -o -Pbenchmarks test-compile exec:exec@jmh -Djmh.args="MetadataAggregate -p entities=50000 -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx64m")
+@State(Scope.Benchmark)
+public class MetadataAggregateBenchmark {
+
+    @Param({"50000"})
+    public int entities;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private Path aggregate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.aggregate = Files.createTempFile("metadata-aggregate", ".xml");
+        writeAggregate(this.aggregate, this.entities);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.aggregate);
+    }
+
+    @Benchmark
+    public StreamingMetadataIngester.Result ingest(Blackhole blackhole) throws IOException {
+        StreamingMetadataIngester ingester = new StreamingMetadataIngester(StreamingMetadataIngester::defaultRegistrationId,
+                (registrationId, builder) -> builder
+                        .entityId(BenchmarkFixtures.SP_ENTITY_ID)
+                        .assertionConsumerServiceLocation("http://localhost:7001/wfo/saml2/acs/" + registrationId),
+                500);
+        if (this.parallel) {
+            ingester.setCertificateExecutor(ForkJoinPool.commonPool(), 4 * ForkJoinPool.getCommonPoolParallelism());
+        }
+        try (InputStream in = Files.newInputStream(this.aggregate)) {
+            return ingester.ingest(in, blackhole::consume);
+        }
+    }
+
+    /**
+     * Write an aggregate of IdPs https://idp{n}.example.org/metadata, each with its own SSO endpoint
+     */
+    static void writeAggregate(Path file, int entities) throws IOException {
+        String certificate;
+        try {
+            certificate = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII))
+                    .encodeToString(BenchmarkFixtures.certificate().getEncoded());
+        } catch (CertificateEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), 1 << 16)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<EntitiesDescriptor xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+                    + " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" Name=\"urn:example:aggregate\">\n");
+            for (int i = 0; i < entities; i++) {
+                String entityId = "https://idp" + i + ".example.org/metadata";
+                out.write("<EntityDescriptor entityID=\"" + entityId + "\">\n");
+                out.write("<IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">\n");
+                for (String use : new String[] {"signing", "encryption"}) {
+                    out.write("<KeyDescriptor use=\"" + use + "\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>\n");
+                    out.write(certificate);
+                    out.write("\n</ds:X509Certificate></ds:X509Data></ds:KeyInfo></KeyDescriptor>\n");
+                }
+                out.write("<NameIDFormat>urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress</NameIDFormat>\n");
+                out.write("<SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\""
+                        + " Location=\"https://idp" + i + ".example.org/sso\"/>\n");
+                out.write("<SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\""
+                        + " Location=\"https://idp" + i + ".example.org/sso\"/>\n");
+                out.write("</IDPSSODescriptor>\n</EntityDescriptor>\n");
+            }
+            out.write("</EntitiesDescriptor>\n");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.saml2.provider.service.metadata.OpenSamlMetadataResolver;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SP metadata generation: marshalling with OpenSamlMetadataResolver on every request, against the
+ * {@link CachingSaml2MetadataResolver} the metadata endpoint uses. The registration resolver hands out a new
+ * copy of the registration per request, so the cache is also measured with a copied registration
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+
+    private OpenSamlMetadataResolver openSamlResolver;
+    private CachingSaml2MetadataResolver cachingResolver;
+    private RelyingPartyRegistration registration;
+
+    @Setup
+    public void setUp() {
+        this.openSamlResolver = new OpenSamlMetadataResolver();
+        this.cachingResolver = new CachingSaml2MetadataResolver(new OpenSamlMetadataResolver());
+        this.cachingResolver.setGzipEnabled(true);
+        this.registration = BenchmarkFixtures.registration(false);
+    }
+
+    @Benchmark
+    public String openSaml() {
+        return this.openSamlResolver.resolve(this.registration);
+    }
+
+    @Benchmark
+    public CachingSaml2MetadataResolver.Metadata cached() {
+        return this.cachingResolver.resolveMetadata(this.registration);
+    }
+
+    @Benchmark
+    public CachingSaml2MetadataResolver.Metadata cachedCopiedRegistration() {
+        return this.cachingResolver.resolveMetadata(RelyingPartyRegistration.withRelyingPartyRegistration(this.registration).build());
+    }
+}
@@ -0,0 +1,291 @@
+package com.verint.springsaml.authenticator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import org.joda.time.DateTime;
+import org.opensaml.core.config.ConfigurationService;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistry;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.schema.XSAny;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml2.core.OpenSamlInitializationService;
+import org.springframework.web.util.HtmlUtils;
+import org.springframework.web.util.UriUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateEncodingException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * In-process SAML IdP for load tests, on the JDK's HTTP server bound to the loopback interface.
+ * <ul>
+ * <li>GET /metadata publishes metadata shaped like credentials/v2.xml (Auth0): signing certificate, logout and
+ * SSO endpoints for both bindings, name ID formats and the claims it releases</li>
+ * <li>/samlp/mock takes AuthnRequests over HTTP-Redirect or HTTP-POST and answers, like a real IdP, with an
+ * auto-submitting form that posts a signed Response and the RelayState to the AuthnRequest's ACS URL</li>
+ * </ul>
+ * {@link #setMetadataDelay} makes it a slow IdP, whose metadata takes a while to download.
+ * The user is the request's login_hint (the query parameter, else the Okta extension), so every virtual user
+ * of a load test logs in under its own name. Responses are signed with credentials/private.key
+ */
+public class MockIdentityProvider implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MockIdentityProvider.class);
+
+    static final String ENTITY_ID = "urn:mock-idp.local";
+
+    private static final String SSO_PATH = "/samlp/mock";
+
+    private static final String DEFAULT_USER = "mock.user@example.com";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final BasicX509Credential credential;
+    private final ParserPool parserPool;
+    private final boolean postBindingFirst;
+    private final byte[] metadata;
+    private final AtomicLong responses = new AtomicLong();
+    private volatile Duration metadataDelay = Duration.ZERO;
+
+    /**
+     * @param port the port to listen on, 0 for any free port
+     * @param postBindingFirst list the HTTP-POST SSO endpoint first in the metadata, so the SP sends its
+     * AuthnRequests over POST instead of redirect
+     */
+    public MockIdentityProvider(int port, boolean postBindingFirst) throws IOException {
+        OpenSamlInitializationService.initialize();
+        this.credential = new BasicX509Credential(BenchmarkFixtures.certificate(), BenchmarkFixtures.privateKey());
+        this.parserPool = ConfigurationService.get(XMLObjectProviderRegistry.class).getParserPool();
+        this.postBindingFirst = postBindingFirst;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        // enough threads to serve concurrent slow metadata downloads
+        this.executor = Executors.newFixedThreadPool(Math.max(32, 2 * Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "mock-idp");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.executor);
+        this.metadata = metadata().getBytes(StandardCharsets.UTF_8);
+        this.server.createContext("/metadata", this::metadata);
+        this.server.createContext(SSO_PATH, this::singleSignOn);
+    }
+
+    public void start() {
+        this.server.start();
+        logger.info("Mock IdP {} listening on {}", ENTITY_ID, getBaseUrl());
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    public String getMetadataLocation() {
+        return getBaseUrl() + "/metadata";
+    }
+
+    /**
+     * Hold every metadata download for this long before answering
+     */
+    public void setMetadataDelay(Duration metadataDelay) {
+        this.metadataDelay = metadataDelay;
+    }
+
+    /**
+     * @return the number of signed Responses issued so far
+     */
+    public long getResponseCount() {
+        return this.responses.get();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void metadata(HttpExchange exchange) throws IOException {
+        long delay = this.metadataDelay.toMillis();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/samlmetadata+xml");
+        send(exchange, 200, this.metadata);
+    }
+
+    private void singleSignOn(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+            boolean post = "POST".equals(exchange.getRequestMethod());
+            if (post) {
+                parameters.putAll(parameters(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8)));
+            }
+            String samlRequest = parameters.get("SAMLRequest");
+            if (samlRequest == null) {
+                send(exchange, 400, "Missing SAMLRequest".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            byte[] decoded = Base64.getMimeDecoder().decode(samlRequest);
+            AuthnRequest authnRequest = (AuthnRequest) XMLObjectSupport.unmarshallFromInputStream(this.parserPool,
+                    new ByteArrayInputStream(post ? decoded : inflate(decoded)));
+            String user = parameters.get("login_hint");
+            if (user == null) {
+                user = loginHintExtension(authnRequest);
+            }
+            String acs = authnRequest.getAssertionConsumerServiceURL();
+            DateTime now = new DateTime();
+            String response = new SignedResponseBuilder(this.credential)
+                    .issuer(ENTITY_ID)
+                    .destination(acs)
+                    .audience(authnRequest.getIssuer().getValue())
+                    .inResponseTo(authnRequest.getID())
+                    .nameId(user)
+                    .ids("_" + UUID.randomUUID(), "_" + UUID.randomUUID())
+                    .validity(now, now.plusMinutes(5))
+                    .build();
+            this.responses.incrementAndGet();
+            String relayState = parameters.get("RelayState");
+            StringBuilder html = new StringBuilder(response.length() * 2)
+                    .append("<!DOCTYPE html><html><body onload=\"document.forms[0].submit()\">")
+                    .append("<form method=\"post\" action=\"").append(HtmlUtils.htmlEscape(acs)).append("\">")
+                    .append("<input type=\"hidden\" name=\"SAMLResponse\" value=\"")
+                    .append(Base64.getEncoder().encodeToString(response.getBytes(StandardCharsets.UTF_8))).append("\"/>");
+            if (relayState != null) {
+                html.append("<input type=\"hidden\" name=\"RelayState\" value=\"").append(HtmlUtils.htmlEscape(relayState)).append("\"/>");
+            }
+            html.append("</form></body></html>");
+            exchange.getResponseHeaders().set("Content-Type", "text/html;charset=UTF-8");
+            send(exchange, 200, html.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (XMLParserException | UnmarshallingException | DataFormatException | ClassCastException | IllegalArgumentException ex) {
+            logger.warn("Rejecting AuthnRequest: {}", ex.toString());
+            send(exchange, 400, ex.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String loginHintExtension(AuthnRequest authnRequest) {
+        if (authnRequest.getExtensions() != null) {
+            for (XMLObject extension : authnRequest.getExtensions().getUnknownXMLObjects()) {
+                if (VerintLoginHintAuthenticationRequestFactory.LOGIN_HINT_QNAME.equals(extension.getElementQName())) {
+                    if (extension instanceof XSString) {
+                        return ((XSString) extension).getValue();
+                    }
+                    if (extension instanceof XSAny) {
+                        return ((XSAny) extension).getTextContent();
+                    }
+                }
+            }
+        }
+        return DEFAULT_USER;
+    }
+
+    private String metadata() {
+        String certificate;
+        try {
+            certificate = Base64.getEncoder().encodeToString(this.credential.getEntityCertificate().getEncoded());
+        } catch (CertificateEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        String location = getBaseUrl() + SSO_PATH;
+        String redirect = "<SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"" + location + "\"/>";
+        String post = "<SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"" + location + "\"/>";
+        return "<EntityDescriptor entityID=\"" + ENTITY_ID + "\" xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\">"
+                + "<IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+                + "<KeyDescriptor use=\"signing\"><KeyInfo xmlns=\"http://www.w3.org/2000/09/xmldsig#\"><X509Data><X509Certificate>"
+                + certificate
+                + "</X509Certificate></X509Data></KeyInfo></KeyDescriptor>"
+                + "<SingleLogoutService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\"" + location + "/logout\"/>"
+                + "<SingleLogoutService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"" + location + "/logout\"/>"
+                + "<NameIDFormat>urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress</NameIDFormat>"
+                + "<NameIDFormat>urn:oasis:names:tc:SAML:2.0:nameid-format:persistent</NameIDFormat>"
+                + "<NameIDFormat>urn:oasis:names:tc:SAML:2.0:nameid-format:transient</NameIDFormat>"
+                + (this.postBindingFirst ? post + redirect : redirect + post)
+                + attribute("emailaddress", "E-Mail Address")
+                + attribute("givenname", "Given Name")
+                + attribute("surname", "Surname")
+                + "</IDPSSODescriptor></EntityDescriptor>";
+    }
+
+    private static String attribute(String claim, String friendlyName) {
+        return "<Attribute Name=\"http://schemas.xmlsoap.org/ws/2005/05/identity/claims/" + claim
+                + "\" NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:uri\" FriendlyName=\"" + friendlyName
+                + "\" xmlns=\"urn:oasis:names:tc:SAML:2.0:assertion\"/>";
+    }
+
+    private static Map<String, String> parameters(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                parameters.put(UriUtils.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        UriUtils.decode(pair.substring(eq + 1).replace('+', ' '), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] inflate(byte[] deflated) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated SAMLRequest");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
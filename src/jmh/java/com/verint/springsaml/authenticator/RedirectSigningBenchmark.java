@@ -0,0 +1,96 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.saml2.provider.service.authentication.OpenSamlAuthenticationRequestFactory;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationRequestContext;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RSA-SHA256 signing of the redirect binding query string with the pooled, pre-initialized Signature objects
+ * of {@link Saml2RedirectSigner}, on one thread and on four threads sharing the pool. The baseline is the OpenSAML
+ * path of OpenSamlAuthenticationRequestFactory, its private sign(Map, RelyingPartyRegistration) called through
+ * reflection. Every invocation gets its own registration copy, as DefaultRelyingPartyRegistrationResolver hands
+ * out per request
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedirectSigningBenchmark {
+
+    private Saml2RedirectSigner signer;
+    private RelyingPartyRegistration registration;
+    private String samlRequest;
+    private OpenSamlAuthenticationRequestFactory openSamlFactory;
+    private Method openSamlSign;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        this.signer = new Saml2RedirectSigner();
+        this.openSamlFactory = new OpenSamlAuthenticationRequestFactory();
+        this.openSamlSign = OpenSamlAuthenticationRequestFactory.class.getDeclaredMethod("sign", Map.class, RelyingPartyRegistration.class);
+        this.openSamlSign.setAccessible(true);
+        this.registration = BenchmarkFixtures.registration(true);
+        Saml2AuthenticationRequestContext context = Saml2AuthenticationRequestContext.builder()
+                .relyingPartyRegistration(this.registration)
+                .issuer(this.registration.getEntityId())
+                .assertionConsumerServiceUrl(this.registration.getAssertionConsumerServiceLocation())
+                .build();
+        VerintLoginHintAuthenticationRequestFactory factory = new VerintLoginHintAuthenticationRequestFactory();
+        factory.setTemplateEnabled(true);
+        this.samlRequest = Saml2RedirectEncoder.deflateAndEncode(
+                factory.renderTemplate(context, new LoginHintResolver().currentState()));
+    }
+
+    @Benchmark
+    public Saml2RedirectSigner.SignedQuery sign() {
+        return this.signer.sign(copy(), this.samlRequest, "relay-state");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Saml2RedirectSigner.SignedQuery signContended() {
+        return this.signer.sign(copy(), this.samlRequest, "relay-state");
+    }
+
+    @Benchmark
+    public Map<String, String> openSamlSign() throws ReflectiveOperationException {
+        return openSamlSign(copy());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Map<String, String> openSamlSignContended() throws ReflectiveOperationException {
+        return openSamlSign(copy());
+    }
+
+    private Map<String, String> openSamlSign(RelyingPartyRegistration registration) throws ReflectiveOperationException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("SAMLRequest", this.samlRequest);
+        parameters.put("RelayState", "relay-state");
+        // adds SigAlg and Signature
+        this.openSamlSign.invoke(this.openSamlFactory, parameters, registration);
+        return parameters;
+    }
+
+    private RelyingPartyRegistration copy() {
+        return RelyingPartyRegistration.withRelyingPartyRegistration(this.registration).build();
+    }
+}
@@ -0,0 +1,64 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.saml2.provider.service.authentication.OpenSamlAuthenticationProvider;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ACS processing of a signed SAML Response: parsing, signature verification and assertion validation, with
+ * Spring's OpenSamlAuthenticationProvider as the baseline. The replay cache is left out, since the fixtures
+ * are posted again on every invocation; {@link AssertionReplayCacheBenchmark} measures it separately
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseValidationBenchmark {
+
+    @Param({SignedResponseFixtures.SIGNED_ASSERTION, SignedResponseFixtures.SIGNED_RESPONSE})
+    public String fixture;
+
+    private OpenSamlAuthenticationProvider springProvider;
+    private CachingSaml2AuthenticationProvider cachingProvider;
+    private RelyingPartyRegistration registration;
+    private String response;
+
+    @Setup
+    public void setUp() {
+        this.springProvider = new OpenSamlAuthenticationProvider();
+        this.cachingProvider = new CachingSaml2AuthenticationProvider(
+                new VerificationCredentialCache(1000, Duration.ofHours(1)), new Saml2AcsTimings());
+        this.registration = BenchmarkFixtures.registration(false);
+        this.response = BenchmarkFixtures.response(this.fixture);
+        // fail fast if the fixture no longer validates, rather than measuring the error path
+        this.springProvider.authenticate(new Saml2AuthenticationToken(this.registration, this.response));
+        this.cachingProvider.authenticate(new Saml2AuthenticationToken(this.registration, this.response));
+    }
+
+    @Benchmark
+    public Authentication spring() {
+        return this.springProvider.authenticate(new Saml2AuthenticationToken(this.registration, this.response));
+    }
+
+    @Benchmark
+    public Authentication caching() {
+        return this.cachingProvider.authenticate(new Saml2AuthenticationToken(this.registration, this.response));
+    }
+}
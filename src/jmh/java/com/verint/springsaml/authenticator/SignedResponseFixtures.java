@@ -0,0 +1,60 @@
+package com.verint.springsaml.authenticator;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.springframework.security.saml2.core.OpenSamlInitializationService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes the signed SAML Responses the benchmarks validate, signed with credentials/private.key and carrying
+ * credentials/public.cer in KeyInfo, the way Azure AD signs its Responses. The fixtures are valid until 2099 so
+ * they can be checked in; rerun this after changing the credentials or the benchmark registration:
+ * <pre>
+ * java -cp &lt;benchmark classpath&gt; com.verint.springsaml.authenticator.SignedResponseFixtures src/jmh/resources/benchmark
+ * </pre>
+ */
+public final class SignedResponseFixtures {
+
+    static final String SIGNED_ASSERTION = "response-signed-assertion";
+
+    static final String SIGNED_RESPONSE = "response-signed-response";
+
+    private static final DateTime ISSUE_INSTANT = new DateTime(2025, 1, 1, 0, 0, DateTimeZone.UTC);
+
+    private static final DateTime NOT_ON_OR_AFTER = new DateTime(2099, 12, 31, 0, 0, DateTimeZone.UTC);
+
+    private SignedResponseFixtures() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        OpenSamlInitializationService.initialize();
+        Path directory = Paths.get(args.length > 0 ? args[0] : "src/jmh/resources/benchmark");
+        Files.createDirectories(directory);
+        BasicX509Credential credential = new BasicX509Credential(BenchmarkFixtures.certificate(), BenchmarkFixtures.privateKey());
+        write(directory.resolve(SIGNED_ASSERTION + ".xml"), response(credential, false));
+        write(directory.resolve(SIGNED_RESPONSE + ".xml"), response(credential, true));
+    }
+
+    private static String response(BasicX509Credential credential, boolean signResponse) {
+        return new SignedResponseBuilder(credential)
+                .issuer(BenchmarkFixtures.IDP_ENTITY_ID)
+                .destination(BenchmarkFixtures.ACS_LOCATION)
+                .audience(BenchmarkFixtures.SP_ENTITY_ID)
+                .nameId("benchmark.user@example.com")
+                .ids("_benchmark-response-" + (signResponse ? "signed" : "unsigned"), "_benchmark-assertion")
+                .validity(ISSUE_INSTANT, NOT_ON_OR_AFTER)
+                .signResponse(signResponse)
+                .build();
+    }
+
+    private static void write(Path file, String xml) throws IOException {
+        Files.write(file, xml.getBytes(StandardCharsets.UTF_8));
+        System.out.println("Wrote " + file);
+    }
+}
@@ -0,0 +1,111 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the IdP metadata of many tenants from a slow IdP, the {@link MockIdentityProvider} holding every
+ * download for a while: the time until the {@link RefreshingRelyingPartyRegistrationRepository} serves all of
+ * them, with no snapshot on disk, fetching on its refresh thread (fetchThreads 0) or on the io pool of the
+ * async execution mode. Divide the sources by the time for the fetch throughput
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SlowMetadataBenchmark {
+
+    @Param({"0", "4", "16"})
+    public int fetchThreads;
+
+    @Param("16")
+    public int sources;
+
+    @Param("200")
+    public int delayMillis;
+
+    private MockIdentityProvider idp;
+    private Saml2Executors executors;
+    private Path cacheDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.idp = new MockIdentityProvider(0, false);
+        this.idp.setMetadataDelay(Duration.ofMillis(this.delayMillis));
+        this.idp.start();
+        if (this.fetchThreads > 0) {
+            this.executors = new Saml2Executors(this.fetchThreads, 1, 256);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        this.idp.close();
+        if (this.executors != null) {
+            this.executors.destroy();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void emptyCache() throws IOException {
+        this.cacheDirectory = Files.createTempDirectory("saml-metadata-benchmark");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCache() throws IOException {
+        FileSystemUtils.deleteRecursively(this.cacheDirectory);
+    }
+
+    @Benchmark
+    public int loadAll() throws InterruptedException {
+        List<RefreshingRelyingPartyRegistrationRepository.MetadataSource> metadataSources = new ArrayList<>();
+        for (int i = 0; i < this.sources; i++) {
+            metadataSources.add(new RefreshingRelyingPartyRegistrationRepository.MetadataSource("tenant-" + i,
+                    this.idp.getMetadataLocation(), null));
+        }
+        TenantRegistrationStore store = new TenantRegistrationStore();
+        RefreshingRelyingPartyRegistrationRepository repository = new RefreshingRelyingPartyRegistrationRepository(
+                metadataSources, store, this.cacheDirectory, Duration.ofHours(6), Duration.ofMinutes(1));
+        if (this.executors != null) {
+            repository.setFetchExecutor(this.executors.getIo());
+        }
+        try {
+            repository.start();
+            int loaded = 0;
+            while (loaded < this.sources) {
+                Thread.sleep(1);
+                loaded = 0;
+                for (int i = 0; i < this.sources; i++) {
+                    if (store.findByRegistrationId("tenant-" + i) != null) {
+                        loaded++;
+                    }
+                }
+            }
+            return loaded;
+        } finally {
+            repository.destroy();
+        }
+    }
+}
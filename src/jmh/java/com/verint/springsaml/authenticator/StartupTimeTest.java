@@ -0,0 +1,162 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from launching a new SP JVM until its first successful /saml2/authenticate/azure, i.e. until it redirects
+ * the browser to the {@link MockIdentityProvider} with an AuthnRequest, which is what an autoscaled node has to
+ * reach before it can take logins. Every run starts a fresh JVM with an empty metadata cache directory:
+ * <pre>
+ * mvn -o -Pbenchmarks test-compile exec:exec@startup -Dstartup.args="--runs=5 --metadata-delay=PT2S"
+ * </pre>
+ * Options: --runs (5), --metadata-delay (how long the IdP takes to serve its metadata, PT0S),
+ * --snapshot (true to first write a {@link Saml2StartupSnapshot} against the mock IdP and start every run from it),
+ * --jar (run this application jar, e.g. the one built by the startup profile, instead of this classpath),
+ * --jvm-args (space separated, e.g. -XX:SharedArchiveFile=target/startup/app.jsa) and
+ * --sp-args (space separated SP properties, e.g. --saml.metadata.snapshot-location=file:target/classes/saml-snapshot/)
+ */
+public final class StartupTimeTest {
+
+    private StartupTimeTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoginFlowLoadTest.options(args);
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        // the same port for every run, so the snapshot's SP metadata matches
+        int port = LoginFlowLoadTest.freePort();
+        try (MockIdentityProvider idp = new MockIdentityProvider(0, false)) {
+            idp.setMetadataDelay(Duration.parse(options.getOrDefault("metadata-delay", "PT0S")));
+            idp.start();
+            List<String> spArgs = new ArrayList<>(split(options.get("sp-args")));
+            Path snapshot = null;
+            if (Boolean.parseBoolean(options.getOrDefault("snapshot", "false"))) {
+                snapshot = writeSnapshot(idp, port);
+                spArgs.add("--saml.metadata.snapshot-location=file:" + snapshot + "/");
+            }
+            long[] millis = new long[runs];
+            for (int run = 0; run < runs; run++) {
+                millis[run] = startOnce(idp, port, options, spArgs);
+                System.out.printf("run %d: first AuthnRequest after %d ms%n", run + 1, millis[run]);
+            }
+            Arrays.sort(millis);
+            System.out.printf("startup to first AuthnRequest over %d runs: min %d ms, median %d ms, max %d ms%n",
+                    runs, millis[0], millis[runs / 2], millis[runs - 1]);
+            if (snapshot != null) {
+                FileSystemUtils.deleteRecursively(snapshot);
+            }
+        }
+    }
+
+    /**
+     * What the startup build profile does, against the mock IdP
+     */
+    private static Path writeSnapshot(MockIdentityProvider idp, int port) throws Exception {
+        Path snapshot = Files.createTempDirectory("saml-startup-snapshot");
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Saml2StartupSnapshot.class.getName());
+        command.add(snapshot.toString());
+        command.add("--saml.azure.metadata-url=" + idp.getMetadataLocation());
+        command.add("--saml.azure.assertionConsumerServiceLocation=http://127.0.0.1:" + port + "/wfo/saml2/acs/");
+        command.add("--logging.level.root=WARN");
+        command.add("--logging.level.org.springframework.security=WARN");
+        command.add("--logging.level.org.opensaml=WARN");
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Writing the startup snapshot failed with " + process.exitValue());
+        }
+        System.out.println("Wrote the startup snapshot to " + snapshot);
+        return snapshot;
+    }
+
+    private static long startOnce(MockIdentityProvider idp, int port, Map<String, String> options, List<String> spArgs) throws Exception {
+        Path metadataCache = Files.createTempDirectory("saml-startup-metadata");
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        command.addAll(split(options.get("jvm-args")));
+        String jar = options.get("jar");
+        if (jar != null) {
+            command.add("-jar");
+            command.add(jar);
+        } else {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Saml2ExampleServiceProviderApp.class.getName());
+        }
+        command.add("--server.port=" + port);
+        command.add("--saml.azure.metadata-url=" + idp.getMetadataLocation());
+        command.add("--saml.azure.assertionConsumerServiceLocation=http://127.0.0.1:" + port + "/wfo/saml2/acs/");
+        command.add("--saml.metadata.cache-dir=" + metadataCache);
+        command.add("--spring.main.banner-mode=off");
+        command.add("--logging.level.root=WARN");
+        command.addAll(spArgs);
+
+        File log = Files.createTempFile("saml-startup", ".log").toFile();
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        try {
+            String url = "http://127.0.0.1:" + port + "/wfo/saml2/authenticate/azure";
+            long deadline = start + TimeUnit.MINUTES.toNanos(2);
+            while (System.nanoTime() < deadline) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("The SP exited with " + process.exitValue() + ", see " + log);
+                }
+                if (redirectsTo(url, idp.getBaseUrl())) {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    log.delete();
+                    return millis;
+                }
+                Thread.sleep(10);
+            }
+            throw new IllegalStateException("The SP did not send an AuthnRequest within 2 minutes, see " + log);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+            FileSystemUtils.deleteRecursively(metadataCache);
+        }
+    }
+
+    private static boolean redirectsTo(String url, String idpBaseUrl) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(5000);
+            try {
+                String location = connection.getHeaderField("Location");
+                return connection.getResponseCode() == 302 && location != null && location.startsWith(idpBaseUrl);
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException ex) {
+            // not listening yet
+            return false;
+        }
+    }
+
+    private static String javaExecutable() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    private static List<String> split(String value) {
+        return value == null || value.trim().isEmpty() ? new ArrayList<>() : Arrays.asList(value.trim().split("\\s+"));
+    }
+}
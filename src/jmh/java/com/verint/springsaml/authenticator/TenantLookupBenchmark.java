@@ -0,0 +1,84 @@
+package com.verint.springsaml.authenticator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registration lookup by registrationId and home-realm discovery by email domain in the
+ * {@link TenantRegistrationStore}, from a handful of tenants up to 100k. Keys are visited in a shuffled
+ * order so the lookups are not served from a warm cache line
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class TenantLookupBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int tenants;
+
+    private TenantRegistrationStore store;
+    private String[] registrationIds;
+    private String[] emails;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        RelyingPartyRegistration prototype = BenchmarkFixtures.registration(false);
+        this.store = new TenantRegistrationStore();
+        List<RelyingPartyRegistration> registrations = new ArrayList<>(this.tenants);
+        List<Integer> order = new ArrayList<>(this.tenants);
+        for (int i = 0; i < this.tenants; i++) {
+            String registrationId = "tenant-" + i;
+            registrations.add(RelyingPartyRegistration.withRelyingPartyRegistration(prototype).registrationId(registrationId).build());
+            this.store.registerDomains(registrationId, Collections.singletonList("tenant" + i + ".example.com"));
+            order.add(i);
+        }
+        this.store.putAll(registrations);
+        Collections.shuffle(order, new Random(42));
+        this.registrationIds = new String[this.tenants];
+        this.emails = new String[this.tenants];
+        for (int i = 0; i < this.tenants; i++) {
+            this.registrationIds[i] = "tenant-" + order.get(i);
+            // a subdomain, so discovery walks up one label
+            this.emails[i] = "user" + i + "@eu.tenant" + order.get(i) + ".example.com";
+        }
+    }
+
+    @Benchmark
+    public RelyingPartyRegistration findByRegistrationId() {
+        return this.store.findByRegistrationId(this.registrationIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public String resolveByEmailDomain() {
+        return this.store.resolveRegistrationId(this.emails[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        int index = this.next + 1;
+        if (index == this.tenants) {
+            index = 0;
+        }
+        this.next = index;
+        return index;
+    }
+}
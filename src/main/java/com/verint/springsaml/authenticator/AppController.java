@@ -1,5 +1,7 @@
 package com.verint.springsaml.authenticator;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.saml2.provider.service.authentication.Saml2Authentication;
@@ -10,11 +12,21 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.view.RedirectView;
 
-import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @Controller
 public class AppController {
 
+    @Autowired
+    private TenantRegistrationStore tenantRegistrationStore;
+
+    @Autowired
+    private LoginHintResolver loginHintResolver;
+
+    @Value("${saml.default-registration-id:azure}")
+    private String defaultRegistrationId;
+
     @GetMapping("/")
     public String index() {
         return "index";
@@ -26,11 +38,17 @@ public class AppController {
     }
 
     @PostMapping("/process-email")
-    public RedirectView processEmail(@RequestParam("email") String email, HttpSession session) {
-        // Store the email in the session
-        session.setAttribute("login_hint_email", email);
+    public RedirectView processEmail(@RequestParam("email") String email, HttpServletRequest request,
+                                     HttpServletResponse response) {
+        // Store the email in the session, or in a signed cookie in stateless mode
+        loginHintResolver.saveLoginHint(request, response, email);
+        // Home-realm discovery: the email domain picks the tenant's registration
+        String registrationId = tenantRegistrationStore.resolveRegistrationId(email);
+        if (registrationId == null) {
+            registrationId = defaultRegistrationId;
+        }
         // Redirect to the SAML SP initiation URL
-        return new RedirectView("/wfo/saml2/authenticate/azure");
+        return new RedirectView("/wfo/saml2/authenticate/" + registrationId);
     }
 
     @GetMapping("/success")
@@ -0,0 +1,25 @@
+package com.verint.springsaml.authenticator;
+
+/**
+ * Remembers which assertions have been consumed on the ACS endpoint, so a captured SAML Response cannot be
+ * posted a second time while its assertion is still valid
+ */
+public interface AssertionReplayCache {
+
+    /**
+     * Record an assertion as used until it expires
+     *
+     * @param registrationId the registration the assertion was issued for
+     * @param assertionId the assertion's ID
+     * @param expiresAtMillis when the assertion can no longer be accepted (NotOnOrAfter plus clock skew)
+     * @return true the first time, false when the assertion was already used and has not expired yet
+     * @throws org.springframework.security.saml2.Saml2Exception when the assertion cannot be recorded, e.g. the
+     * cache is full; the assertion must then be rejected
+     */
+    boolean markUsed(String registrationId, String assertionId, long expiresAtMillis);
+
+    /**
+     * @return the number of remembered assertions, expired ones that were not purged yet included
+     */
+    int size();
+}
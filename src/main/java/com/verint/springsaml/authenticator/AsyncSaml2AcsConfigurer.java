@@ -0,0 +1,48 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
+import org.springframework.security.saml2.provider.service.servlet.filter.Saml2WebSsoAuthenticationFilter;
+import org.springframework.security.web.authentication.AuthenticationFailureHandler;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
+
+import java.time.Duration;
+
+/**
+ * Adds the {@link AsyncSaml2AcsFilter} in front of Saml2WebSsoAuthenticationFilter. The filter is built once all
+ * configurers are initialized, so it gets the same session authentication strategy saml2Login() applies to its
+ * own filter, whatever session management and CSRF are configured with
+ */
+public class AsyncSaml2AcsConfigurer extends AbstractHttpConfigurer<AsyncSaml2AcsConfigurer, HttpSecurity> {
+
+    private final String loginProcessingUrl;
+    private final TimedSaml2AuthenticationTokenConverter converter;
+    private final AuthenticationManager authenticationManager;
+    private final Saml2Executors executors;
+    private final AuthenticationSuccessHandler successHandler;
+    private final AuthenticationFailureHandler failureHandler;
+    private final Duration timeout;
+
+    public AsyncSaml2AcsConfigurer(String loginProcessingUrl, TimedSaml2AuthenticationTokenConverter converter,
+                                   AuthenticationManager authenticationManager, Saml2Executors executors,
+                                   AuthenticationSuccessHandler successHandler, AuthenticationFailureHandler failureHandler,
+                                   Duration timeout) {
+        this.loginProcessingUrl = loginProcessingUrl;
+        this.converter = converter;
+        this.authenticationManager = authenticationManager;
+        this.executors = executors;
+        this.successHandler = successHandler;
+        this.failureHandler = failureHandler;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void configure(HttpSecurity http) {
+        AsyncSaml2AcsFilter filter = new AsyncSaml2AcsFilter(this.loginProcessingUrl, this.converter, this.authenticationManager,
+                this.executors, http.getSharedObject(SessionAuthenticationStrategy.class), this.successHandler, this.failureHandler);
+        filter.setTimeout(this.timeout);
+        http.addFilterBefore(postProcess(filter), Saml2WebSsoAuthenticationFilter.class);
+    }
+}
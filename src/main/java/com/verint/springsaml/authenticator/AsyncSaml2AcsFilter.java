@@ -0,0 +1,232 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.saml2.core.Saml2Error;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.web.authentication.AuthenticationFailureHandler;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles the ACS endpoint with async servlet processing, in place of Saml2WebSsoAuthenticationFilter.
+ * Like that filter it only handles requests that carry a SAMLResponse. The container thread copies the
+ * registration and the SAML parameters out of the request and starts async processing; the SAMLResponse is
+ * decoded on the io pool, the Response is parsed and its signatures verified on the cpu pool, and the request
+ * is then dispatched back to the container, where the login is completed (session fixation protection,
+ * security context, success or failure handler) by the regular filter chain, exactly as the synchronous
+ * filter would. The workers never touch the request, which the container may recycle once it has timed out;
+ * after a timeout they skip what is left, and a Response validated nonetheless does not use up its assertions.
+ * When a pool is saturated the request is answered with 503 and Retry-After instead of waiting
+ */
+public class AsyncSaml2AcsFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncSaml2AcsFilter.class);
+
+    private static final String RESULT_ATTRIBUTE = AsyncSaml2AcsFilter.class.getName() + ".RESULT";
+
+    private static final String SAML_RESPONSE = "SAMLResponse";
+
+    private static final Object REJECTED = new Object();
+
+    // what the workers return once the request has timed out
+    private static final Object ABANDONED = new Object();
+
+    private final RequestMatcher matcher;
+    private final TimedSaml2AuthenticationTokenConverter converter;
+    private final AuthenticationManager authenticationManager;
+    private final Saml2Executors executors;
+    private final SessionAuthenticationStrategy sessionStrategy;
+    private final AuthenticationSuccessHandler successHandler;
+    private final AuthenticationFailureHandler failureHandler;
+    private Duration timeout = Duration.ofSeconds(30);
+    private int retryAfterSeconds = 1;
+
+    /**
+     * @param loginProcessingUrl the ACS URL pattern, with a {registrationId} variable
+     */
+    public AsyncSaml2AcsFilter(String loginProcessingUrl, TimedSaml2AuthenticationTokenConverter converter,
+                               AuthenticationManager authenticationManager, Saml2Executors executors,
+                               SessionAuthenticationStrategy sessionStrategy, AuthenticationSuccessHandler successHandler,
+                               AuthenticationFailureHandler failureHandler) {
+        Assert.hasText(loginProcessingUrl, "loginProcessingUrl cannot be empty");
+        this.matcher = new AntPathRequestMatcher(loginProcessingUrl);
+        this.converter = converter;
+        this.authenticationManager = authenticationManager;
+        this.executors = executors;
+        this.sessionStrategy = sessionStrategy;
+        this.successHandler = successHandler;
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * How long a Response may take before the request fails with 503
+     */
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        // the second half of the request runs on the async dispatch
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (!matches(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            complete(request, response);
+        } else {
+            start(request, response);
+        }
+    }
+
+    private boolean matches(HttpServletRequest request) {
+        if (!this.matcher.matches(request)) {
+            return false;
+        }
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return request.getAttribute(RESULT_ATTRIBUTE) != null;
+        }
+        return StringUtils.hasText(request.getParameter(SAML_RESPONSE));
+    }
+
+    private void start(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        TimedSaml2AuthenticationTokenConverter.Parameters parameters = this.converter.capture(request);
+        if (parameters == null) {
+            fail(request, response, new Saml2AuthenticationException(new Saml2Error(Saml2ErrorCodes.RELYING_PARTY_REGISTRATION_NOT_FOUND,
+                    "No relying party registration found")));
+            return;
+        }
+        AsyncContext async = request.startAsync();
+        async.setTimeout(this.timeout.toMillis());
+        // whichever comes first, the result or the timeout, dispatches back to the container
+        AtomicBoolean dispatched = new AtomicBoolean();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                timedOut.set(true);
+                dispatch(async, dispatched, REJECTED);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        CompletableFuture<Object> result;
+        try {
+            result = CompletableFuture
+                    .supplyAsync(() -> convert(parameters, timedOut), this.executors.getIo())
+                    .thenApplyAsync(token -> authenticate(token, timedOut), this.executors.getCpu());
+        } catch (RejectedExecutionException ex) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(ex);
+        }
+        result.whenComplete((authentication, ex) -> dispatch(async, dispatched, ex == null ? authentication : unwrap(ex)));
+    }
+
+    private static void dispatch(AsyncContext async, AtomicBoolean dispatched, Object result) {
+        if (dispatched.compareAndSet(false, true)) {
+            async.getRequest().setAttribute(RESULT_ATTRIBUTE, result);
+            async.dispatch();
+        }
+    }
+
+    private Object convert(TimedSaml2AuthenticationTokenConverter.Parameters parameters, AtomicBoolean timedOut) {
+        return timedOut.get() ? ABANDONED : this.converter.convert(parameters, timedOut::get);
+    }
+
+    private Object authenticate(Object token, AtomicBoolean timedOut) {
+        if (token == ABANDONED || timedOut.get()) {
+            return ABANDONED;
+        }
+        return this.authenticationManager.authenticate((Authentication) token);
+    }
+
+    private static Object unwrap(Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        return cause instanceof RejectedExecutionException ? REJECTED : cause;
+    }
+
+    /**
+     * The part of AbstractAuthenticationProcessingFilter that runs after authentication, on a container thread
+     */
+    private void complete(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Object result = request.getAttribute(RESULT_ATTRIBUTE);
+        if (result == REJECTED) {
+            // a result arriving after the timeout is dropped
+            logger.warn("Rejecting SAML Response on {}: ACS executors are saturated or timed out", request.getRequestURI());
+            response.setHeader("Retry-After", Integer.toString(this.retryAfterSeconds));
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return;
+        }
+        if (result instanceof Authentication) {
+            Authentication authentication = (Authentication) result;
+            this.sessionStrategy.onAuthentication(authentication, request, response);
+            SecurityContext context = SecurityContextHolder.createEmptyContext();
+            context.setAuthentication(authentication);
+            SecurityContextHolder.setContext(context);
+            this.successHandler.onAuthenticationSuccess(request, response, authentication);
+            return;
+        }
+        if (result instanceof AuthenticationException) {
+            fail(request, response, (AuthenticationException) result);
+            return;
+        }
+        SecurityContextHolder.clearContext();
+        logger.error("SAML Response processing failed", (Throwable) result);
+        throw new ServletException((Throwable) result);
+    }
+
+    private void fail(HttpServletRequest request, HttpServletResponse response, AuthenticationException failure)
+            throws ServletException, IOException {
+        SecurityContextHolder.clearContext();
+        this.failureHandler.onAuthenticationFailure(request, response, failure);
+    }
+}
@@ -0,0 +1,213 @@
+package com.verint.springsaml.authenticator;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml.config.SAMLConfigurationSupport;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationRequestContext;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.Saml2MessageBinding;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Pre-serialized AuthnRequest XML for one RelyingPartyRegistration.
+ * The invariant parts (issuer, ACS URL, destination, protocol binding and the Okta loginHint wrapper)
+ * are marshalled once by OpenSAML; only the ID, IssueInstant and login hint are filled in per request.
+ */
+public final class AuthnRequestTemplate {
+
+    /**
+     * Values the prototype AuthnRequest is marshalled with, so their positions can be found in the XML.
+     * They only use characters that neither XML nor URL encoding touches
+     */
+    static final String ID_PLACEHOLDER = "ARQ-authn-request-template-id";
+    static final String LOGIN_HINT_PLACEHOLDER = "authn-request-template-login-hint.invalid";
+
+    private static final String ISSUE_INSTANT_ATTRIBUTE = " IssueInstant=\"";
+
+    private static final int SLOT_ID = 0;
+    private static final int SLOT_ISSUE_INSTANT = 1;
+    private static final int SLOT_LOGIN_HINT_TEXT = 2;
+    private static final int SLOT_LOGIN_HINT_ATTRIBUTE = 3;
+
+    // the registration values the template depends on; resolvers hand out a new registration copy per request,
+    // so they are compared by value
+    private final String registrationId;
+    private final String entityId;
+    private final String assertionConsumerServiceLocation;
+    private final Saml2MessageBinding assertionConsumerServiceBinding;
+    private final String singleSignOnServiceLocation;
+    private final Saml2MessageBinding singleSignOnServiceBinding;
+    private final boolean wantAuthnRequestsSigned;
+    private final String issuer;
+    private final String destination;
+    private final String assertionConsumerServiceUrl;
+
+    // fragments[i] is written before slots[i]; the last fragment has no slot after it
+    private final String[] fragments;
+    private final int[] slots;
+    private final int estimatedLength;
+
+    private AuthnRequestTemplate(Saml2AuthenticationRequestContext context, String[] fragments, int[] slots) {
+        RelyingPartyRegistration registration = context.getRelyingPartyRegistration();
+        this.registrationId = registration.getRegistrationId();
+        this.entityId = registration.getEntityId();
+        this.assertionConsumerServiceLocation = registration.getAssertionConsumerServiceLocation();
+        this.assertionConsumerServiceBinding = registration.getAssertionConsumerServiceBinding();
+        this.singleSignOnServiceLocation = registration.getAssertingPartyDetails().getSingleSignOnServiceLocation();
+        this.singleSignOnServiceBinding = registration.getAssertingPartyDetails().getSingleSignOnServiceBinding();
+        this.wantAuthnRequestsSigned = registration.getAssertingPartyDetails().getWantAuthnRequestsSigned();
+        this.issuer = context.getIssuer();
+        this.destination = context.getDestination();
+        this.assertionConsumerServiceUrl = context.getAssertionConsumerServiceUrl();
+        this.fragments = fragments;
+        this.slots = slots;
+        int length = 0;
+        for (String fragment : fragments) {
+            length += fragment.length();
+        }
+        // leave room for the ID, the timestamp and a typical email address
+        this.estimatedLength = length + slots.length * 48;
+    }
+
+    /**
+     * Split the serialized prototype AuthnRequest into literal fragments and variable slots.
+     * The prototype must carry {@link #ID_PLACEHOLDER} as its ID and {@link #LOGIN_HINT_PLACEHOLDER} as login hint
+     */
+    static AuthnRequestTemplate compile(Saml2AuthenticationRequestContext context, String prototypeXml) {
+        int instantStart = prototypeXml.indexOf(ISSUE_INSTANT_ATTRIBUTE);
+        if (instantStart < 0) {
+            throw new Saml2Exception("Prototype AuthnRequest has no IssueInstant attribute");
+        }
+        instantStart += ISSUE_INSTANT_ATTRIBUTE.length();
+        int instantEnd = prototypeXml.indexOf('"', instantStart);
+
+        List<String> fragments = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            int id = indexOf(prototypeXml, ID_PLACEHOLDER, position);
+            int hint = indexOf(prototypeXml, LOGIN_HINT_PLACEHOLDER, position);
+            int instant = instantStart >= position ? instantStart : Integer.MAX_VALUE;
+            int next = Math.min(id, Math.min(hint, instant));
+            if (next == Integer.MAX_VALUE) {
+                break;
+            }
+            fragments.add(prototypeXml.substring(position, next));
+            if (next == id) {
+                slots.add(SLOT_ID);
+                position = next + ID_PLACEHOLDER.length();
+            } else if (next == instant) {
+                slots.add(SLOT_ISSUE_INSTANT);
+                position = instantEnd;
+            } else {
+                slots.add(isInsideTag(prototypeXml, next) ? SLOT_LOGIN_HINT_ATTRIBUTE : SLOT_LOGIN_HINT_TEXT);
+                position = next + LOGIN_HINT_PLACEHOLDER.length();
+            }
+        }
+        fragments.add(prototypeXml.substring(position));
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new AuthnRequestTemplate(context, fragments.toArray(new String[0]), slotArray);
+    }
+
+    /**
+     * Whether this template was compiled for the same registration and request values as the given context
+     */
+    boolean matches(Saml2AuthenticationRequestContext context) {
+        RelyingPartyRegistration registration = context.getRelyingPartyRegistration();
+        return this.registrationId.equals(registration.getRegistrationId())
+                && Objects.equals(this.entityId, registration.getEntityId())
+                && Objects.equals(this.assertionConsumerServiceLocation, registration.getAssertionConsumerServiceLocation())
+                && this.assertionConsumerServiceBinding == registration.getAssertionConsumerServiceBinding()
+                && Objects.equals(this.singleSignOnServiceLocation, registration.getAssertingPartyDetails().getSingleSignOnServiceLocation())
+                && this.singleSignOnServiceBinding == registration.getAssertingPartyDetails().getSingleSignOnServiceBinding()
+                && this.wantAuthnRequestsSigned == registration.getAssertingPartyDetails().getWantAuthnRequestsSigned()
+                && Objects.equals(this.issuer, context.getIssuer())
+                && Objects.equals(this.destination, context.getDestination())
+                && Objects.equals(this.assertionConsumerServiceUrl, context.getAssertionConsumerServiceUrl());
+    }
+
+    /**
+     * Render the AuthnRequest XML
+     *
+     * @param id the AuthnRequest ID
+     * @param issueInstantMillis the IssueInstant as epoch millis
+     * @param loginHint the login hint written into the loginHint extension
+     * @param loginHintQueryValue the login hint as it appears in the Destination query string
+     */
+    String render(String id, long issueInstantMillis, String loginHint, String loginHintQueryValue) {
+        StringBuilder xml = new StringBuilder(this.estimatedLength);
+        for (int i = 0; i < this.slots.length; i++) {
+            xml.append(this.fragments[i]);
+            switch (this.slots[i]) {
+                case SLOT_ID:
+                    appendEscaped(xml, id, true);
+                    break;
+                case SLOT_ISSUE_INSTANT:
+                    // same formatter the OpenSAML RequestAbstractType marshaller uses
+                    SAMLConfigurationSupport.getSAMLDateFormatter().printTo(xml, new DateTime(issueInstantMillis));
+                    break;
+                case SLOT_LOGIN_HINT_ATTRIBUTE:
+                    appendEscaped(xml, loginHintQueryValue, true);
+                    break;
+                default:
+                    appendEscaped(xml, loginHint, false);
+                    break;
+            }
+        }
+        xml.append(this.fragments[this.fragments.length - 1]);
+        return xml.toString();
+    }
+
+    public String getRegistrationId() {
+        return this.registrationId;
+    }
+
+    private static int indexOf(String xml, String placeholder, int from) {
+        int index = xml.indexOf(placeholder, from);
+        return index < 0 ? Integer.MAX_VALUE : index;
+    }
+
+    private static boolean isInsideTag(String xml, int position) {
+        return xml.lastIndexOf('<', position) > xml.lastIndexOf('>', position);
+    }
+
+    /**
+     * Escape the way the LSSerializer behind SerializeSupport.nodeToString does, so output matches the OpenSAML path
+     */
+    private static void appendEscaped(StringBuilder xml, String value, boolean attribute) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '"':
+                    if (attribute) {
+                        xml.append("&quot;");
+                    } else {
+                        xml.append(c);
+                    }
+                    break;
+                default:
+                    xml.append(c);
+                    break;
+            }
+        }
+    }
+}
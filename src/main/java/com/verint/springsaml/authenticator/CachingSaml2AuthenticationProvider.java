@@ -0,0 +1,601 @@
+package com.verint.springsaml.authenticator;
+
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import org.joda.time.DateTime;
+import org.opensaml.core.config.ConfigurationService;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistry;
+import org.opensaml.core.xml.schema.XSAny;
+import org.opensaml.core.xml.schema.XSBoolean;
+import org.opensaml.core.xml.schema.XSBooleanValue;
+import org.opensaml.core.xml.schema.XSDateTime;
+import org.opensaml.core.xml.schema.XSInteger;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.schema.XSURI;
+import org.opensaml.saml.common.assertion.ValidationContext;
+import org.opensaml.saml.common.assertion.ValidationResult;
+import org.opensaml.saml.saml2.assertion.ConditionValidator;
+import org.opensaml.saml.saml2.assertion.SAML20AssertionValidator;
+import org.opensaml.saml.saml2.assertion.SAML2AssertionValidationParameters;
+import org.opensaml.saml.saml2.assertion.StatementValidator;
+import org.opensaml.saml.saml2.assertion.SubjectConfirmationValidator;
+import org.opensaml.saml.saml2.assertion.impl.AudienceRestrictionConditionValidator;
+import org.opensaml.saml.saml2.assertion.impl.BearerSubjectConfirmationValidator;
+import org.opensaml.saml.saml2.assertion.impl.DelegationRestrictionConditionValidator;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.Condition;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.OneTimeUse;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml.saml2.core.impl.ResponseUnmarshaller;
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.opensaml.saml.saml2.encryption.EncryptedElementTypeEncryptedKeyResolver;
+import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.CredentialSupport;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.encryption.support.ChainingEncryptedKeyResolver;
+import org.opensaml.xmlsec.encryption.support.DecryptionException;
+import org.opensaml.xmlsec.encryption.support.EncryptedKeyResolver;
+import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
+import org.opensaml.xmlsec.encryption.support.SimpleRetrievalMethodEncryptedKeyResolver;
+import org.opensaml.xmlsec.keyinfo.impl.CollectionKeyInfoCredentialResolver;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.X509Data;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.OpenSamlInitializationService;
+import org.springframework.security.saml2.core.Saml2Error;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.authentication.DefaultSaml2AuthenticatedPrincipal;
+import org.springframework.security.saml2.provider.service.authentication.Saml2Authentication;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.w3c.dom.Document;
+
+import javax.annotation.Nonnull;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates SAML Responses on the ACS endpoint with the same checks and error codes as Spring's
+ * OpenSamlAuthenticationProvider, which in this Spring Security version builds a new trust engine and new
+ * credentials for every Response and offers no hook to change that. Here the verification credentials come
+ * from a {@link VerificationCredentialCache}, a signature is verified directly against the credential whose
+ * certificate the IdP put into KeyInfo (falling back to every trusted credential, like the explicit-key trust
+ * engine), and the time spent decoding, parsing, verifying signatures and validating assertions is recorded
+ * in {@link Saml2AcsTimings}
+ */
+public class CachingSaml2AuthenticationProvider implements AuthenticationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingSaml2AuthenticationProvider.class);
+
+    static {
+        OpenSamlInitializationService.initialize();
+    }
+
+    // how long an assertion without any NotOnOrAfter is remembered by the replay cache
+    private static final Duration DEFAULT_ASSERTION_LIFETIME = Duration.ofMinutes(10);
+
+    // the code later Spring Security versions use; this version has no constant for it
+    static final String INVALID_IN_RESPONSE_TO = "invalid_in_response_to";
+
+    private static final SAMLSignatureProfileValidator PROFILE_VALIDATOR = new SAMLSignatureProfileValidator();
+
+    private static final EncryptedKeyResolver ENCRYPTED_KEY_RESOLVER = new ChainingEncryptedKeyResolver(Arrays.asList(
+            new InlineEncryptedKeyResolver(), new EncryptedElementTypeEncryptedKeyResolver(), new SimpleRetrievalMethodEncryptedKeyResolver()));
+
+    // Conditions and subject confirmation as OpenSamlAuthenticationProvider checks them; signatures are verified separately
+    private static final SAML20AssertionValidator ASSERTION_VALIDATOR;
+
+    static {
+        List<ConditionValidator> conditions = new ArrayList<>();
+        conditions.add(new AudienceRestrictionConditionValidator());
+        conditions.add(new DelegationRestrictionConditionValidator());
+        conditions.add(new ConditionValidator() {
+            @Nonnull
+            @Override
+            public QName getServicedCondition() {
+                return OneTimeUse.DEFAULT_ELEMENT_NAME;
+            }
+
+            @Nonnull
+            @Override
+            public ValidationResult validate(Condition condition, Assertion assertion, ValidationContext context) {
+                return ValidationResult.VALID;
+            }
+        });
+        List<SubjectConfirmationValidator> subjects = new ArrayList<>();
+        subjects.add(new BearerSubjectConfirmationValidator() {
+            @Nonnull
+            @Override
+            protected ValidationResult validateAddress(@Nonnull SubjectConfirmation confirmation, @Nonnull Assertion assertion,
+                                                       @Nonnull ValidationContext context) {
+                return ValidationResult.VALID;
+            }
+        });
+        ASSERTION_VALIDATOR = new SAML20AssertionValidator(conditions, subjects, Collections.<StatementValidator>emptyList(), null, null) {
+            @Nonnull
+            @Override
+            protected ValidationResult validateSignature(Assertion token, ValidationContext context) {
+                return ValidationResult.VALID;
+            }
+        };
+    }
+
+    private final ParserPool parserPool;
+    private final ResponseUnmarshaller responseUnmarshaller;
+    private final VerificationCredentialCache credentialCache;
+    private final Saml2AcsTimings timings;
+    private Duration responseTimeValidationSkew = Duration.ofMinutes(5);
+    private AssertionReplayCache replayCache;
+    private StatelessLoginTokens relayStateTokens;
+    private Saml2Metrics metrics;
+    private Saml2Diagnostics diagnostics;
+    private Clock clock = Clock.systemUTC();
+    private Converter<Assertion, Collection<? extends GrantedAuthority>> authoritiesExtractor =
+            assertion -> Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER"));
+
+    public CachingSaml2AuthenticationProvider(VerificationCredentialCache credentialCache, Saml2AcsTimings timings) {
+        Assert.notNull(credentialCache, "credentialCache cannot be null");
+        Assert.notNull(timings, "timings cannot be null");
+        XMLObjectProviderRegistry registry = ConfigurationService.get(XMLObjectProviderRegistry.class);
+        this.parserPool = registry.getParserPool();
+        this.responseUnmarshaller = (ResponseUnmarshaller) registry.getUnmarshallerFactory().getUnmarshaller(Response.DEFAULT_ELEMENT_NAME);
+        this.credentialCache = credentialCache;
+        this.timings = timings;
+    }
+
+    public void setResponseTimeValidationSkew(Duration responseTimeValidationSkew) {
+        this.responseTimeValidationSkew = responseTimeValidationSkew;
+    }
+
+    /**
+     * Reject assertions that were already consumed; without a cache a captured Response can be replayed
+     * until its assertion expires
+     */
+    public void setReplayCache(AssertionReplayCache replayCache) {
+        this.replayCache = replayCache;
+    }
+
+    /**
+     * Require SP-initiated Responses to carry the RelayState issued with their AuthnRequest, so InResponseTo
+     * is checked without keeping the AuthnRequest in the session. IdP-initiated Responses have no
+     * InResponseTo and are not affected. Without tokens, as in session mode, InResponseTo is not checked
+     */
+    public void setRelayStateTokens(StatelessLoginTokens relayStateTokens) {
+        this.relayStateTokens = relayStateTokens;
+    }
+
+    /**
+     * Count rejected Responses by registration and error code
+     */
+    public void setMetrics(Saml2Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Capture the Responses of logins selected for diagnostics, with the outcome of their validation
+     */
+    public void setDiagnostics(Saml2Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * The authorities granted for the first assertion, whose NameID is already decrypted; ROLE_USER by default,
+     * like OpenSamlAuthenticationProvider
+     */
+    public void setAuthoritiesExtractor(Converter<Assertion, Collection<? extends GrantedAuthority>> authoritiesExtractor) {
+        Assert.notNull(authoritiesExtractor, "authoritiesExtractor cannot be null");
+        this.authoritiesExtractor = authoritiesExtractor;
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "clock cannot be null");
+        this.clock = clock;
+    }
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        Saml2AuthenticationToken token = (Saml2AuthenticationToken) authentication;
+        Response response = null;
+        try {
+            long start = System.nanoTime();
+            response = parse(token.getSaml2Response());
+            long parsed = System.nanoTime();
+            this.timings.record(Saml2AcsTimings.Stage.PARSE, parsed - start);
+            process(token, response);
+            Saml2Authentication result = createAuthentication(token, response);
+            capture(token, response, null);
+            return result;
+        } catch (Saml2AuthenticationException ex) {
+            recordFailure(token, response, ex);
+            throw ex;
+        } catch (Exception ex) {
+            Saml2AuthenticationException failure = authenticationException(Saml2ErrorCodes.INTERNAL_VALIDATION_ERROR, ex.getMessage(), ex);
+            recordFailure(token, response, failure);
+            throw failure;
+        }
+    }
+
+    private void recordFailure(Saml2AuthenticationToken token, Response response, Saml2AuthenticationException ex) {
+        if (this.metrics != null) {
+            this.metrics.recordAcsFailure(token.getRelyingPartyRegistration().getRegistrationId(), ex.getSaml2Error().getErrorCode());
+        }
+        capture(token, response, ex);
+    }
+
+    /**
+     * Keep the Response as it was received when its login is selected for diagnostics
+     *
+     * @param response the parsed Response, or null when it could not be parsed
+     */
+    private void capture(Saml2AuthenticationToken token, Response response, Saml2AuthenticationException failure) {
+        if (this.diagnostics == null) {
+            return;
+        }
+        String registrationId = token.getRelyingPartyRegistration().getRegistrationId();
+        String inResponseTo = response != null ? response.getInResponseTo() : null;
+        String headerValue = token instanceof Saml2RelayStateAuthenticationToken
+                ? ((Saml2RelayStateAuthenticationToken) token).getDiagnosticsHeader() : null;
+        String reason = this.diagnostics.captureResponse(registrationId, inResponseTo, headerValue);
+        if (reason != null) {
+            this.diagnostics.recordResponse(reason, registrationId, response != null ? response.getID() : null, inResponseTo,
+                    relayState(token), failure != null ? failure.getSaml2Error().getErrorCode() : "accepted",
+                    failure != null ? failure.getSaml2Error().getDescription() : null, token.getSaml2Response());
+        }
+    }
+
+    @Override
+    public boolean supports(Class<?> authentication) {
+        return authentication != null && Saml2AuthenticationToken.class.isAssignableFrom(authentication);
+    }
+
+    private Response parse(String response) {
+        try {
+            Document document = this.parserPool.parse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+            return (Response) this.responseUnmarshaller.unmarshall(document.getDocumentElement());
+        } catch (Exception ex) {
+            throw authenticationException(Saml2ErrorCodes.MALFORMED_RESPONSE_DATA, ex.getMessage(), ex);
+        }
+    }
+
+    private void process(Saml2AuthenticationToken token, Response response) {
+        RelyingPartyRegistration registration = token.getRelyingPartyRegistration();
+        List<Saml2Error> errors = new ArrayList<>();
+
+        long start = System.nanoTime();
+        VerificationCredentialCache.Credentials credentials = this.credentialCache.resolve(registration);
+        boolean responseSigned = response.isSigned();
+        if (responseSigned && !verify(response.getSignature(), credentials)) {
+            errors.add(new Saml2Error(Saml2ErrorCodes.INVALID_SIGNATURE, "Invalid signature for SAML Response [" + response.getID() + "]"));
+        }
+        long signed = System.nanoTime();
+
+        validateResponse(registration, response, errors);
+        validateInResponseTo(token, response, errors);
+        long validationNanos = System.nanoTime() - signed;
+        Decrypter decrypter = null;
+        if (!response.getEncryptedAssertions().isEmpty()) {
+            decrypter = decrypter(registration);
+            decryptAssertions(decrypter, response);
+        }
+        List<Assertion> assertions = response.getAssertions();
+        if (!isSigned(responseSigned, assertions)) {
+            throw authenticationException(Saml2ErrorCodes.INVALID_SIGNATURE, "Either the response or one of the assertions is unsigned. "
+                    + "Please either sign the response or all of the assertions.", null);
+        }
+        if (assertions.isEmpty()) {
+            throw authenticationException(Saml2ErrorCodes.MALFORMED_RESPONSE_DATA, "No assertions found in response.", null);
+        }
+        long signatureNanos = signed - start;
+        for (Assertion assertion : assertions) {
+            long assertionStart = System.nanoTime();
+            if (assertion.isSigned() && !verify(assertion.getSignature(), credentials)) {
+                errors.add(new Saml2Error(Saml2ErrorCodes.INVALID_SIGNATURE, String.format("Invalid assertion [%s] for SAML response [%s]: %s",
+                        assertion.getID(), response.getID(), "Signature was not valid")));
+            }
+            long assertionSigned = System.nanoTime();
+            validateAssertion(registration, response, assertion, errors);
+            signatureNanos += assertionSigned - assertionStart;
+            validationNanos += System.nanoTime() - assertionSigned;
+        }
+
+        Assertion firstAssertion = assertions.get(0);
+        NameID nameId = decryptPrincipal(decrypter, registration, firstAssertion);
+        if (nameId == null || nameId.getValue() == null) {
+            errors.add(new Saml2Error(Saml2ErrorCodes.SUBJECT_NOT_FOUND, "Assertion [" + firstAssertion.getID() + "] is missing a subject"));
+        }
+        this.timings.record(Saml2AcsTimings.Stage.SIGNATURE, signatureNanos);
+        this.timings.record(Saml2AcsTimings.Stage.ASSERTION, validationNanos);
+
+        if (!errors.isEmpty()) {
+            logger.debug("Found {} validation errors in SAML response [{}]", errors.size(), response.getID());
+            Saml2Error first = errors.get(0);
+            throw authenticationException(first.getErrorCode(), first.getDescription(), null);
+        }
+        // only valid assertions are remembered, so forged or expired ones cannot fill the cache
+        if (this.replayCache != null) {
+            if (isAbandoned(token)) {
+                // the request was already answered; marking the assertions would turn the user's retry into a replay
+                throw authenticationException(Saml2ErrorCodes.INTERNAL_VALIDATION_ERROR, String.format(
+                        "SAML response [%s] was validated after its request had been answered", response.getID()), null);
+            }
+            for (Assertion assertion : assertions) {
+                boolean first;
+                try {
+                    first = this.replayCache.markUsed(registration.getRegistrationId(), assertion.getID(), expiresAt(assertion));
+                } catch (Saml2Exception ex) {
+                    throw authenticationException(Saml2ErrorCodes.INVALID_ASSERTION, String.format(
+                            "Assertion [%s] for SAML response [%s] cannot be checked for replay", assertion.getID(), response.getID()), ex);
+                }
+                if (!first) {
+                    throw authenticationException(Saml2ErrorCodes.INVALID_ASSERTION, String.format(
+                            "Assertion [%s] for SAML response [%s] has already been used", assertion.getID(), response.getID()), null);
+                }
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Successfully processed SAML Response [{}] from {} (signature {} us, assertions {} us)", response.getID(),
+                    response.getIssuer() != null ? response.getIssuer().getValue() : null, signatureNanos / 1000, validationNanos / 1000);
+        }
+    }
+
+    /**
+     * Explicit-key verification: the signature must verify with one of the registration's verification credentials.
+     * The credential matching the KeyInfo certificate is tried first, so a valid signature costs one verification
+     */
+    private static boolean verify(Signature signature, VerificationCredentialCache.Credentials credentials) {
+        try {
+            PROFILE_VALIDATOR.validate(signature);
+        } catch (SignatureException ex) {
+            return false;
+        }
+        BasicX509Credential hinted = null;
+        KeyInfo keyInfo = signature.getKeyInfo();
+        if (keyInfo != null) {
+            for (X509Data data : keyInfo.getX509Datas()) {
+                for (org.opensaml.xmlsec.signature.X509Certificate certificate : data.getX509Certificates()) {
+                    if (hinted == null && certificate.getValue() != null) {
+                        try {
+                            hinted = credentials.getTrustedCredential(certificate.getValue());
+                        } catch (IllegalArgumentException ex) {
+                            logger.debug("Ignoring malformed KeyInfo certificate", ex);
+                        }
+                    }
+                }
+            }
+        }
+        if (hinted != null && isValid(signature, hinted)) {
+            return true;
+        }
+        for (BasicX509Credential credential : credentials.getCredentials()) {
+            if (credential != hinted && isValid(signature, credential)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isValid(Signature signature, BasicX509Credential credential) {
+        try {
+            SignatureValidator.validate(signature, credential);
+            return true;
+        } catch (SignatureException ex) {
+            return false;
+        }
+    }
+
+    private static void validateResponse(RelyingPartyRegistration registration, Response response, List<Saml2Error> errors) {
+        String issuer = response.getIssuer() != null ? response.getIssuer().getValue() : null;
+        String destination = response.getDestination();
+        String location = registration.getAssertionConsumerServiceLocation();
+        if (StringUtils.hasText(destination) && !destination.equals(location)) {
+            errors.add(new Saml2Error(Saml2ErrorCodes.INVALID_DESTINATION,
+                    "Invalid destination [" + destination + "] for SAML response [" + response.getID() + "]"));
+        }
+        String assertingPartyEntityId = registration.getAssertingPartyDetails().getEntityId();
+        if (!StringUtils.hasText(issuer) || !issuer.equals(assertingPartyEntityId)) {
+            errors.add(new Saml2Error(Saml2ErrorCodes.INVALID_ISSUER,
+                    String.format("Invalid issuer [%s] for SAML response [%s]", issuer, response.getID())));
+        }
+    }
+
+    private void validateInResponseTo(Saml2AuthenticationToken token, Response response, List<Saml2Error> errors) {
+        String inResponseTo = response.getInResponseTo();
+        if (this.relayStateTokens == null || !StringUtils.hasText(inResponseTo)) {
+            return;
+        }
+        if (!this.relayStateTokens.verifyRelayState(relayState(token), token.getRelyingPartyRegistration().getRegistrationId(), inResponseTo)) {
+            errors.add(new Saml2Error(INVALID_IN_RESPONSE_TO, String.format(
+                    "The InResponseTo [%s] of SAML response [%s] does not match a recent AuthnRequest of this service provider",
+                    inResponseTo, response.getID())));
+        }
+    }
+
+    private static boolean isAbandoned(Saml2AuthenticationToken token) {
+        return token instanceof Saml2RelayStateAuthenticationToken && ((Saml2RelayStateAuthenticationToken) token).isAbandoned();
+    }
+
+    private static String relayState(Saml2AuthenticationToken token) {
+        return token instanceof Saml2RelayStateAuthenticationToken ? ((Saml2RelayStateAuthenticationToken) token).getRelayState() : null;
+    }
+
+    private void validateAssertion(RelyingPartyRegistration registration, Response response, Assertion assertion, List<Saml2Error> errors) {
+        Map<String, Object> params = new HashMap<>();
+        params.put(SAML2AssertionValidationParameters.COND_VALID_AUDIENCES, Collections.singleton(registration.getEntityId()));
+        params.put(SAML2AssertionValidationParameters.SC_VALID_RECIPIENTS,
+                Collections.singleton(registration.getAssertionConsumerServiceLocation()));
+        params.put(SAML2AssertionValidationParameters.CLOCK_SKEW, this.responseTimeValidationSkew.toMillis());
+        ValidationContext context = new ValidationContext(params);
+        String failure;
+        try {
+            if (ASSERTION_VALIDATOR.validate(assertion, context) == ValidationResult.VALID) {
+                return;
+            }
+            failure = context.getValidationFailureMessage();
+        } catch (Exception ex) {
+            failure = ex.getMessage();
+        }
+        errors.add(new Saml2Error(Saml2ErrorCodes.INVALID_ASSERTION,
+                String.format("Invalid assertion [%s] for SAML response [%s]: %s", assertion.getID(), response.getID(), failure)));
+    }
+
+    /**
+     * The last moment the assertion could still pass validation: the earliest NotOnOrAfter of its conditions
+     * and bearer subject confirmations, plus the allowed clock skew
+     */
+    private long expiresAt(Assertion assertion) {
+        long notOnOrAfter = Long.MAX_VALUE;
+        if (assertion.getConditions() != null && assertion.getConditions().getNotOnOrAfter() != null) {
+            notOnOrAfter = assertion.getConditions().getNotOnOrAfter().getMillis();
+        }
+        if (assertion.getSubject() != null) {
+            for (SubjectConfirmation confirmation : assertion.getSubject().getSubjectConfirmations()) {
+                SubjectConfirmationData data = confirmation.getSubjectConfirmationData();
+                if (data != null && data.getNotOnOrAfter() != null) {
+                    notOnOrAfter = Math.min(notOnOrAfter, data.getNotOnOrAfter().getMillis());
+                }
+            }
+        }
+        if (notOnOrAfter == Long.MAX_VALUE) {
+            notOnOrAfter = this.clock.millis() + DEFAULT_ASSERTION_LIFETIME.toMillis();
+        }
+        return notOnOrAfter + this.responseTimeValidationSkew.toMillis();
+    }
+
+    private static boolean isSigned(boolean responseSigned, List<Assertion> assertions) {
+        if (responseSigned) {
+            return true;
+        }
+        for (Assertion assertion : assertions) {
+            if (!assertion.isSigned()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Decrypter decrypter(RelyingPartyRegistration registration) {
+        List<Credential> credentials = new ArrayList<>();
+        for (Saml2X509Credential key : registration.getDecryptionX509Credentials()) {
+            credentials.add(CredentialSupport.getSimpleCredential(key.getCertificate(), key.getPrivateKey()));
+        }
+        Decrypter decrypter = new Decrypter(null, new CollectionKeyInfoCredentialResolver(credentials), ENCRYPTED_KEY_RESOLVER);
+        decrypter.setRootInNewDocument(true);
+        return decrypter;
+    }
+
+    private static void decryptAssertions(Decrypter decrypter, Response response) {
+        List<Assertion> assertions = new ArrayList<>();
+        for (EncryptedAssertion encryptedAssertion : response.getEncryptedAssertions()) {
+            try {
+                assertions.add(decrypter.decrypt(encryptedAssertion));
+            } catch (DecryptionException ex) {
+                throw authenticationException(Saml2ErrorCodes.DECRYPTION_ERROR, ex.getMessage(), ex);
+            }
+        }
+        response.getAssertions().addAll(assertions);
+    }
+
+    private static NameID decryptPrincipal(Decrypter decrypter, RelyingPartyRegistration registration, Assertion assertion) {
+        if (assertion.getSubject() == null) {
+            return null;
+        }
+        if (assertion.getSubject().getEncryptedID() == null) {
+            return assertion.getSubject().getNameID();
+        }
+        try {
+            Decrypter idDecrypter = decrypter != null ? decrypter : decrypter(registration);
+            NameID nameId = (NameID) idDecrypter.decrypt(assertion.getSubject().getEncryptedID());
+            assertion.getSubject().setNameID(nameId);
+            return nameId;
+        } catch (DecryptionException ex) {
+            throw authenticationException(Saml2ErrorCodes.DECRYPTION_ERROR, ex.getMessage(), ex);
+        }
+    }
+
+    private Saml2Authentication createAuthentication(Saml2AuthenticationToken token, Response response) {
+        Assertion assertion = response.getAssertions().get(0);
+        String username = assertion.getSubject().getNameID().getValue();
+        Map<String, List<Object>> attributes = getAssertionAttributes(assertion);
+        Collection<? extends GrantedAuthority> authorities = this.authoritiesExtractor.convert(assertion);
+        return new Saml2Authentication(new DefaultSaml2AuthenticatedPrincipal(username, attributes), token.getSaml2Response(), authorities);
+    }
+
+    private static Map<String, List<Object>> getAssertionAttributes(Assertion assertion) {
+        Map<String, List<Object>> attributeMap = new LinkedHashMap<>();
+        for (AttributeStatement attributeStatement : assertion.getAttributeStatements()) {
+            for (Attribute attribute : attributeStatement.getAttributes()) {
+                List<Object> attributeValues = new ArrayList<>();
+                for (XMLObject xmlObject : attribute.getAttributeValues()) {
+                    Object attributeValue = getXmlObjectValue(xmlObject);
+                    if (attributeValue != null) {
+                        attributeValues.add(attributeValue);
+                    }
+                }
+                attributeMap.put(attribute.getName(), attributeValues);
+            }
+        }
+        return attributeMap;
+    }
+
+    private static Object getXmlObjectValue(XMLObject xmlObject) {
+        if (xmlObject instanceof XSAny) {
+            return ((XSAny) xmlObject).getTextContent();
+        }
+        if (xmlObject instanceof XSString) {
+            return ((XSString) xmlObject).getValue();
+        }
+        if (xmlObject instanceof XSInteger) {
+            return ((XSInteger) xmlObject).getValue();
+        }
+        if (xmlObject instanceof XSURI) {
+            return ((XSURI) xmlObject).getValue();
+        }
+        if (xmlObject instanceof XSBoolean) {
+            XSBooleanValue xsBooleanValue = ((XSBoolean) xmlObject).getValue();
+            return xsBooleanValue != null ? xsBooleanValue.getValue() : null;
+        }
+        if (xmlObject instanceof XSDateTime) {
+            DateTime dateTime = ((XSDateTime) xmlObject).getValue();
+            return dateTime != null ? Instant.ofEpochMilli(dateTime.getMillis()) : null;
+        }
+        return null;
+    }
+
+    private static Saml2AuthenticationException authenticationException(String code, String message, Exception cause) {
+        return new Saml2AuthenticationException(new Saml2Error(code, message), cause);
+    }
+}
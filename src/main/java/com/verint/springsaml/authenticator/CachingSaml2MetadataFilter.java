@@ -0,0 +1,106 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.util.Assert;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Enumeration;
+
+/**
+ * Serves SP metadata like Saml2MetadataFilter, but from {@link CachingSaml2MetadataResolver}: the body is written
+ * from cached bytes, every response carries a strong ETag, a matching If-None-Match is answered with 304 and
+ * clients accepting gzip get the precompressed body when the resolver keeps one
+ */
+public class CachingSaml2MetadataFilter extends OncePerRequestFilter {
+
+    private final Converter<HttpServletRequest, RelyingPartyRegistration> relyingPartyRegistrationResolver;
+    private final CachingSaml2MetadataResolver metadataResolver;
+    private RequestMatcher requestMatcher = new AntPathRequestMatcher("/saml2/service-provider-metadata/{registrationId}");
+
+    public CachingSaml2MetadataFilter(Converter<HttpServletRequest, RelyingPartyRegistration> relyingPartyRegistrationResolver,
+                                      CachingSaml2MetadataResolver metadataResolver) {
+        Assert.notNull(relyingPartyRegistrationResolver, "relyingPartyRegistrationResolver cannot be null");
+        Assert.notNull(metadataResolver, "metadataResolver cannot be null");
+        this.relyingPartyRegistrationResolver = relyingPartyRegistrationResolver;
+        this.metadataResolver = metadataResolver;
+    }
+
+    public void setRequestMatcher(RequestMatcher requestMatcher) {
+        Assert.notNull(requestMatcher, "requestMatcher cannot be null");
+        this.requestMatcher = requestMatcher;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (!this.requestMatcher.matches(request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        RelyingPartyRegistration registration = this.relyingPartyRegistrationResolver.convert(request);
+        if (registration == null) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        CachingSaml2MetadataResolver.Metadata metadata = this.metadataResolver.resolveMetadata(registration);
+        boolean gzip = metadata.getGzipBody() != null && acceptsGzip(request);
+        String etag = gzip ? metadata.getGzipEtag() : metadata.getEtag();
+
+        response.setHeader(HttpHeaders.ETAG, etag);
+        if (metadata.getGzipBody() != null) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (matchesIfNoneMatch(request, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = gzip ? metadata.getGzipBody() : metadata.getBody();
+        response.setContentType("application/xml;charset=UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"saml-" + registration.getRegistrationId() + "-metadata.xml\"");
+        if (gzip) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private static boolean matchesIfNoneMatch(HttpServletRequest request, String etag) {
+        Enumeration<String> headers = request.getHeaders(HttpHeaders.IF_NONE_MATCH);
+        while (headers.hasMoreElements()) {
+            for (String candidate : headers.nextElement().split(",")) {
+                candidate = candidate.trim();
+                // If-None-Match uses the weak comparison
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if ("*".equals(candidate) || etag.equals(candidate)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        Enumeration<String> headers = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+        while (headers.hasMoreElements()) {
+            for (String coding : headers.nextElement().split(",")) {
+                String[] parts = coding.trim().split(";");
+                if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                    return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+}
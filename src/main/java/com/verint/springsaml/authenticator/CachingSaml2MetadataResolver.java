@@ -0,0 +1,251 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.metadata.OpenSamlMetadataResolver;
+import org.springframework.security.saml2.provider.service.metadata.Saml2MetadataResolver;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.Saml2MessageBinding;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the marshalled SP metadata of each registration, as UTF-8 bytes with a strong ETag and optionally a
+ * gzip copy, so the metadata endpoint does not build and serialize an OpenSAML EntityDescriptor per request.
+ * An entry is reused while the values the metadata is built from are unchanged: SP entity ID, ACS location and
+ * binding, and the signing and decryption certificates. Anything else, e.g. a refreshed registration with
+ * rotated credentials, rebuilds the entry on the next request
+ */
+public class CachingSaml2MetadataResolver implements Saml2MetadataResolver {
+
+    private final Saml2MetadataResolver delegate;
+
+    // Cached metadata by registrationId
+    private final ConcurrentMap<String, Metadata> cache = new ConcurrentHashMap<>();
+
+    private boolean gzipEnabled;
+
+    public CachingSaml2MetadataResolver() {
+        this(new OpenSamlMetadataResolver());
+    }
+
+    public CachingSaml2MetadataResolver(Saml2MetadataResolver delegate) {
+        Assert.notNull(delegate, "delegate cannot be null");
+        this.delegate = delegate;
+    }
+
+    /**
+     * Also keep a gzip-compressed body for clients sending Accept-Encoding: gzip
+     */
+    public void setGzipEnabled(boolean gzipEnabled) {
+        this.gzipEnabled = gzipEnabled;
+        this.cache.clear();
+    }
+
+    @Override
+    public String resolve(RelyingPartyRegistration relyingPartyRegistration) {
+        return resolveMetadata(relyingPartyRegistration).getXml();
+    }
+
+    public Metadata resolveMetadata(RelyingPartyRegistration registration) {
+        Key key = new Key(registration);
+        Metadata metadata = this.cache.get(registration.getRegistrationId());
+        if (metadata == null || !metadata.key.equals(key)) {
+            metadata = new Metadata(key, this.delegate.resolve(registration), this.gzipEnabled);
+            this.cache.put(registration.getRegistrationId(), metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Serve this metadata for the registration without marshalling it, e.g. metadata rendered at build time.
+     * Ignored unless it was rendered from a registration with the same {@link #fingerprint}, and for
+     * {@link #isTemplated templated} registrations, whose metadata depends on the request
+     *
+     * @return whether the metadata was taken
+     */
+    public boolean preload(RelyingPartyRegistration registration, String xml, String fingerprint) {
+        if (isTemplated(registration)) {
+            return false;
+        }
+        Key key = new Key(registration);
+        if (!key.fingerprint().equals(fingerprint)) {
+            return false;
+        }
+        this.cache.putIfAbsent(registration.getRegistrationId(), new Metadata(key, xml, this.gzipEnabled));
+        return true;
+    }
+
+    /**
+     * A digest of the registration values the SP metadata is built from
+     */
+    public static String fingerprint(RelyingPartyRegistration registration) {
+        return new Key(registration).fingerprint();
+    }
+
+    /**
+     * Whether the SP entity ID or ACS location still holds a template such as {baseUrl}, which
+     * DefaultRelyingPartyRegistrationResolver only fills in per request
+     */
+    public static boolean isTemplated(RelyingPartyRegistration registration) {
+        return isTemplate(registration.getEntityId()) || isTemplate(registration.getAssertionConsumerServiceLocation());
+    }
+
+    private static boolean isTemplate(String value) {
+        return value != null && value.contains("{");
+    }
+
+    /**
+     * Drop the cached metadata of a registration
+     */
+    public void evict(String registrationId) {
+        this.cache.remove(registrationId);
+    }
+
+    /**
+     * Serialized metadata of one registration
+     */
+    public static final class Metadata {
+
+        private final Key key;
+        private final String xml;
+        private final byte[] body;
+        private final byte[] gzipBody;
+        private final String etag;
+        private final String gzipEtag;
+
+        Metadata(Key key, String xml, boolean gzip) {
+            this.key = key;
+            this.xml = xml;
+            this.body = xml.getBytes(StandardCharsets.UTF_8);
+            String digest = digest(this.body);
+            this.etag = "\"" + digest + "\"";
+            // a different representation needs a different strong validator
+            this.gzipBody = gzip ? gzip(this.body) : null;
+            this.gzipEtag = gzip ? "\"" + digest + "-gzip\"" : null;
+        }
+
+        public String getXml() {
+            return this.xml;
+        }
+
+        public byte[] getBody() {
+            return this.body;
+        }
+
+        public String getEtag() {
+            return this.etag;
+        }
+
+        /**
+         * @return the gzip-compressed body, or null when gzip is disabled
+         */
+        public byte[] getGzipBody() {
+            return this.gzipBody;
+        }
+
+        public String getGzipEtag() {
+            return this.gzipEtag;
+        }
+
+        private static String digest(byte[] body) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new Saml2Exception(ex);
+            }
+        }
+
+        private static byte[] gzip(byte[] body) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 3 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(body);
+            } catch (IOException ex) {
+                throw new Saml2Exception(ex);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // The registration values OpenSamlMetadataResolver reads
+    private static final class Key {
+
+        private final String entityId;
+        private final String assertionConsumerServiceLocation;
+        private final Saml2MessageBinding assertionConsumerServiceBinding;
+        private final List<X509Certificate> signingCertificates;
+        private final List<X509Certificate> decryptionCertificates;
+
+        Key(RelyingPartyRegistration registration) {
+            this.entityId = registration.getEntityId();
+            this.assertionConsumerServiceLocation = registration.getAssertionConsumerServiceLocation();
+            this.assertionConsumerServiceBinding = registration.getAssertionConsumerServiceBinding();
+            this.signingCertificates = certificates(registration.getSigningX509Credentials());
+            this.decryptionCertificates = certificates(registration.getDecryptionX509Credentials());
+        }
+
+        private static List<X509Certificate> certificates(Collection<Saml2X509Credential> credentials) {
+            List<X509Certificate> certificates = new ArrayList<>(credentials.size());
+            for (Saml2X509Credential credential : credentials) {
+                certificates.add(credential.getCertificate());
+            }
+            return certificates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            // X509Certificate.equals compares the DER encoding
+            return Objects.equals(this.entityId, other.entityId)
+                    && Objects.equals(this.assertionConsumerServiceLocation, other.assertionConsumerServiceLocation)
+                    && this.assertionConsumerServiceBinding == other.assertionConsumerServiceBinding
+                    && this.signingCertificates.equals(other.signingCertificates)
+                    && this.decryptionCertificates.equals(other.decryptionCertificates);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.entityId, this.assertionConsumerServiceLocation, this.assertionConsumerServiceBinding);
+        }
+
+        String fingerprint() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update((this.entityId + '\n' + this.assertionConsumerServiceLocation + '\n'
+                        + this.assertionConsumerServiceBinding + '\n').getBytes(StandardCharsets.UTF_8));
+                for (X509Certificate certificate : this.signingCertificates) {
+                    digest.update(certificate.getEncoded());
+                }
+                digest.update((byte) '\n');
+                for (X509Certificate certificate : this.decryptionCertificates) {
+                    digest.update(certificate.getEncoded());
+                }
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+            } catch (NoSuchAlgorithmException | CertificateEncodingException ex) {
+                throw new Saml2Exception(ex);
+            }
+        }
+    }
+}
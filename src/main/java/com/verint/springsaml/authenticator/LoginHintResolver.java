@@ -0,0 +1,170 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.time.Duration;
+
+/**
+ * Carries the login hint from /process-email to the AuthnRequest. In session mode it is kept in the HttpSession;
+ * in stateless mode it travels in a signed cookie and the AuthnRequest ID is bound to the RelayState, so no session
+ * is created before the user is authenticated.
+ * The hint is resolved once per request and kept in a request attribute, shared by every code path that builds
+ * the AuthnRequest
+ */
+public class LoginHintResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoginHintResolver.class);
+
+    static final String DEFAULT_EMAIL = "default.user@example.com";
+
+    static final String SESSION_ATTRIBUTE = "login_hint_email";
+
+    static final String COOKIE_NAME = "SAML_LOGIN_HINT";
+
+    private static final String STATE_ATTRIBUTE = LoginHintResolver.class.getName() + ".STATE";
+
+    private final StatelessLoginTokens tokens;
+    private final Duration cookieMaxAge;
+
+    /**
+     * Session mode
+     */
+    public LoginHintResolver() {
+        this.tokens = null;
+        this.cookieMaxAge = null;
+    }
+
+    /**
+     * Stateless mode
+     *
+     * @param tokens signs the login hint cookie and the RelayState
+     * @param cookieMaxAge lifetime of the login hint cookie
+     */
+    public LoginHintResolver(StatelessLoginTokens tokens, Duration cookieMaxAge) {
+        Assert.notNull(tokens, "tokens cannot be null");
+        Assert.notNull(cookieMaxAge, "cookieMaxAge cannot be null");
+        this.tokens = tokens;
+        this.cookieMaxAge = cookieMaxAge;
+    }
+
+    public boolean isStateless() {
+        return this.tokens != null;
+    }
+
+    /**
+     * @return the tokens used in stateless mode, or null in session mode
+     */
+    public StatelessLoginTokens getTokens() {
+        return this.tokens;
+    }
+
+    /**
+     * Remember the email entered on the login page for the AuthnRequest that follows
+     */
+    public void saveLoginHint(HttpServletRequest request, HttpServletResponse response, String email) {
+        if (!isStateless()) {
+            request.getSession().setAttribute(SESSION_ATTRIBUTE, email);
+            return;
+        }
+        String path = StringUtils.hasLength(request.getContextPath()) ? request.getContextPath() : "/";
+        // javax.servlet.http.Cookie cannot express SameSite, so the header is written directly
+        StringBuilder cookie = new StringBuilder(COOKIE_NAME).append('=').append(this.tokens.encodeLoginHint(email))
+                .append("; Max-Age=").append(this.cookieMaxAge.getSeconds())
+                .append("; Path=").append(path)
+                .append("; HttpOnly; SameSite=Lax");
+        if (request.isSecure()) {
+            cookie.append("; Secure");
+        }
+        response.addHeader("Set-Cookie", cookie.toString());
+    }
+
+    /**
+     * @return the state of the login started by the current request, resolved on first use
+     */
+    public State currentState() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes)) {
+            return new State(DEFAULT_EMAIL);
+        }
+        HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+        State state = (State) request.getAttribute(STATE_ATTRIBUTE);
+        if (state == null) {
+            state = new State(resolveLoginHint(request));
+            request.setAttribute(STATE_ATTRIBUTE, state);
+        }
+        return state;
+    }
+
+    /**
+     * @return the RelayState binding the AuthnRequest ID to this login, or null in session mode
+     */
+    public String relayStateFor(String registrationId, State state) {
+        if (!isStateless() || state.getAuthnRequestId() == null) {
+            return null;
+        }
+        return this.tokens.relayStateFor(registrationId, state.getAuthnRequestId());
+    }
+
+    private String resolveLoginHint(HttpServletRequest request) {
+        String email = isStateless() ? fromCookie(request) : fromSession(request);
+        // fall back to the default email if no hint is available
+        return StringUtils.hasLength(email) ? email : DEFAULT_EMAIL;
+    }
+
+    private static String fromSession(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        return session != null ? (String) session.getAttribute(SESSION_ATTRIBUTE) : null;
+    }
+
+    private String fromCookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE_NAME.equals(cookie.getName())) {
+                String email = this.tokens.decodeLoginHint(cookie.getValue());
+                if (email == null) {
+                    logger.debug("Ignoring invalid or expired login hint cookie");
+                }
+                return email;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Login hint and AuthnRequest ID of the current request
+     */
+    public static final class State {
+
+        private final String loginHint;
+        private String authnRequestId;
+
+        State(String loginHint) {
+            this.loginHint = loginHint;
+        }
+
+        public String getLoginHint() {
+            return this.loginHint;
+        }
+
+        public String getAuthnRequestId() {
+            return this.authnRequestId;
+        }
+
+        void setAuthnRequestId(String authnRequestId) {
+            this.authnRequestId = authnRequestId;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.util.Assert;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Clock;
+
+/**
+ * {@link AssertionReplayCache} kept in a memory-mapped file, so the used assertions survive a restart and
+ * the working set lives off the heap. The file is a fixed-size hash table of buckets of 16 slots; a slot holds
+ * a 128-bit keyed hash of registrationId and assertion ID plus the expiry time, and a slot whose expiry has passed
+ * is free again, so no purging is needed. Buckets are guarded by lock stripes.
+ * When all slots of a bucket are live the assertion is rejected rather than an entry forgotten, so size the
+ * capacity well above the logins expected within the longest assertion lifetime
+ */
+public class MappedAssertionReplayCache implements AssertionReplayCache, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedAssertionReplayCache.class);
+
+    private static final long MAGIC = 0x5341_4d4c_5250_4331L;
+    private static final int VERSION = 2;
+    private static final int KEY_OFFSET = 16;
+    private static final int KEY_BYTES = 32;
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 24;
+    private static final int BUCKET_SLOTS = 16;
+    private static final int STRIPES = 256;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int bucketMask;
+    private final Object[] locks = new Object[STRIPES];
+    private final Clock clock;
+    private final ThreadLocal<Mac> mac;
+
+    /**
+     * @param file the table file, created or resized as needed
+     * @param capacity number of slots, rounded up to a power of two (at least one bucket)
+     */
+    public MappedAssertionReplayCache(Path file, int capacity, Clock clock) throws IOException {
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        Assert.notNull(clock, "clock cannot be null");
+        int slots = Math.max(Integer.highestOneBit(Math.max(capacity, BUCKET_SLOTS) - 1) << 1, BUCKET_SLOTS);
+        long size = HEADER_BYTES + (long) slots * SLOT_BYTES;
+        Assert.isTrue(size <= Integer.MAX_VALUE, "capacity too large for a single mapping");
+        Path directory = file.toAbsolutePath().getParent();
+        PrivateFiles.createDirectories(directory);
+        PrivateFiles.verifyPrivate(directory);
+        // created owner-only before the hash key is written into it
+        PrivateFiles.createFile(file);
+        PrivateFiles.verifyPrivate(file);
+        boolean exposed = PrivateFiles.restrictToOwner(file);
+        if (exposed) {
+            logger.warn("Assertion replay cache {} was readable by others; starting over with a new hash key", file);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean reuse = !exposed && this.channel.size() == size;
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!reuse || this.buffer.getLong(0) != MAGIC || this.buffer.getInt(8) != VERSION || this.buffer.getInt(12) != slots) {
+            if (this.channel.size() > size) {
+                this.channel.truncate(size);
+            }
+            for (long offset = HEADER_BYTES; offset < size; offset += 8) {
+                this.buffer.putLong((int) offset, 0L);
+            }
+            byte[] key = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(key);
+            for (int i = 0; i < KEY_BYTES; i++) {
+                this.buffer.put(KEY_OFFSET + i, key[i]);
+            }
+            this.buffer.putLong(0, MAGIC);
+            this.buffer.putInt(8, VERSION);
+            this.buffer.putInt(12, slots);
+            logger.info("Created assertion replay cache {} with {} slots", file, slots);
+        } else {
+            logger.info("Reusing assertion replay cache {} with {} slots", file, slots);
+        }
+        this.bucketMask = slots / BUCKET_SLOTS - 1;
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+        this.clock = clock;
+        // the hash key lives in the header, so the entries of the previous run are found after a restart
+        byte[] key = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            key[i] = this.buffer.get(KEY_OFFSET + i);
+        }
+        SecretKeySpec hashKey = new SecretKeySpec(key, "HmacSHA256");
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(hashKey);
+                return mac;
+            } catch (GeneralSecurityException ex) {
+                throw new Saml2Exception(ex);
+            }
+        });
+    }
+
+    @Override
+    public boolean markUsed(String registrationId, String assertionId, long expiresAtMillis) {
+        byte[] digest = hash(registrationId, assertionId);
+        long hash1 = getLong(digest, 0);
+        long hash2 = getLong(digest, 8);
+        // a zero hash marks an empty slot
+        if (hash1 == 0 && hash2 == 0) {
+            hash2 = 1;
+        }
+        int bucket = (int) (hash1 >>> 32) & this.bucketMask;
+        int base = HEADER_BYTES + bucket * BUCKET_SLOTS * SLOT_BYTES;
+        long now = this.clock.millis();
+        synchronized (this.locks[bucket & (STRIPES - 1)]) {
+            int free = -1;
+            for (int i = 0; i < BUCKET_SLOTS; i++) {
+                int offset = base + i * SLOT_BYTES;
+                long expiresAt = this.buffer.getLong(offset + 16);
+                if (expiresAt <= now) {
+                    if (free < 0) {
+                        free = offset;
+                    }
+                    continue;
+                }
+                if (this.buffer.getLong(offset) == hash1 && this.buffer.getLong(offset + 8) == hash2) {
+                    return false;
+                }
+            }
+            if (expiresAtMillis <= now) {
+                return true;
+            }
+            if (free < 0) {
+                // forgetting a live entry would let its assertion be replayed
+                logger.warn("Assertion replay cache bucket is full, rejecting assertion [{}] of registration [{}]", assertionId, registrationId);
+                throw new Saml2Exception("The assertion replay cache is full");
+            }
+            this.buffer.putLong(free, hash1);
+            this.buffer.putLong(free + 8, hash2);
+            this.buffer.putLong(free + 16, expiresAtMillis);
+            return true;
+        }
+    }
+
+    @Override
+    public int size() {
+        long now = this.clock.millis();
+        int slots = (this.bucketMask + 1) * BUCKET_SLOTS;
+        int size = 0;
+        for (int i = 0; i < slots; i++) {
+            if (this.buffer.getLong(HEADER_BYTES + i * SLOT_BYTES + 16) > now) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    /**
+     * HMAC-SHA256 of both strings, length-prefixed so they cannot run into each other, truncated to 128 bits.
+     * Assertion IDs are chosen by the IdPs, and any tenant's IdP is a third party to the others; without the
+     * secret key none of them can aim IDs at one bucket to fill it
+     */
+    private byte[] hash(String registrationId, String assertionId) {
+        Mac mac = this.mac.get();
+        update(mac, registrationId);
+        update(mac, assertionId);
+        return mac.doFinal();
+    }
+
+    private static void update(Mac mac, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        mac.update((byte) (bytes.length >>> 24));
+        mac.update((byte) (bytes.length >>> 16));
+        mac.update((byte) (bytes.length >>> 8));
+        mac.update((byte) bytes.length);
+        mac.update(bytes);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
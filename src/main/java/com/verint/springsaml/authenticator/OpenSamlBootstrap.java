@@ -0,0 +1,43 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.security.saml2.core.OpenSamlInitializationService;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Initializes OpenSAML on a background thread while Spring Boot starts, instead of on the thread that creates
+ * the first SAML bean. OpenSamlInitializationService does not wait for an initialization in progress, it just
+ * refuses a second one, so code building OpenSAML-backed objects calls {@link #await()} first
+ */
+public final class OpenSamlBootstrap {
+
+    private static volatile CompletableFuture<Void> initialization;
+
+    private OpenSamlBootstrap() {
+    }
+
+    /**
+     * Start initializing OpenSAML, unless that has been started already
+     */
+    public static synchronized void startInBackground() {
+        if (initialization == null) {
+            initialization = CompletableFuture.runAsync(OpenSamlInitializationService::initialize, runnable -> {
+                Thread thread = new Thread(runnable, "saml-opensaml-init");
+                thread.setDaemon(true);
+                thread.start();
+            });
+        }
+    }
+
+    /**
+     * Wait until OpenSAML is initialized; initializes it on this thread when no background initialization was started
+     */
+    public static void await() {
+        CompletableFuture<Void> pending = initialization;
+        if (pending != null) {
+            pending.join();
+        } else {
+            OpenSamlInitializationService.initialize();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.verint.springsaml.authenticator;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * Files only the process user may change, for state that is trusted when read back: metadata snapshots hold the
+ * IdP verification certificates, the assertion replay cache its hash key. Owner and permission checks apply where
+ * the file system supports them
+ */
+final class PrivateFiles {
+
+    private PrivateFiles() {
+    }
+
+    /**
+     * Create the directory, and any missing parents, readable and writable by the owner only
+     */
+    static void createDirectories(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        if (Files.getFileStore(existingAncestor(directory)).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * Create the file, readable and writable by the owner only from the start, unless it exists already
+     */
+    static void createFile(Path file) throws IOException {
+        try {
+            if (Files.getFileStore(existingAncestor(file)).supportsFileAttributeView(PosixFileAttributeView.class)) {
+                Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(file);
+            }
+        } catch (FileAlreadyExistsException ex) {
+            // verifyPrivate decides whether an existing file may be used
+        }
+    }
+
+    /**
+     * Take away any access of others to a file the process user owns
+     *
+     * @return whether others could read the file until now
+     */
+    static boolean restrictToOwner(Path file) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+        if (view == null) {
+            return false;
+        }
+        Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+        boolean readable = permissions.contains(PosixFilePermission.GROUP_READ) || permissions.contains(PosixFilePermission.OTHERS_READ);
+        view.setPermissions(PosixFilePermissions.fromString("rw-------"));
+        return readable;
+    }
+
+    /**
+     * @throws IOException when the path is not owned by the process user, or others may write to it
+     */
+    static void verifyPrivate(Path path) throws IOException {
+        // a symbolic link's own permissions say nothing, so its target is checked
+        path = path.toRealPath();
+        FileOwnerAttributeView ownerView = Files.getFileAttributeView(path, FileOwnerAttributeView.class);
+        if (ownerView != null) {
+            UserPrincipal owner = ownerView.getOwner();
+            UserPrincipal processUser = ProcessUser.PRINCIPAL;
+            if (processUser == null) {
+                throw new IOException("Cannot tell whether the process user owns " + path);
+            }
+            if (!owner.equals(processUser)) {
+                throw new IOException(path + " is owned by " + owner.getName() + ", not by " + processUser.getName());
+            }
+        }
+        PosixFileAttributeView posixView = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (posixView != null) {
+            Set<PosixFilePermission> permissions = posixView.readAttributes().permissions();
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException(path + " is writable by others (" + PosixFilePermissions.toString(permissions) + ")");
+            }
+        }
+    }
+
+    /**
+     * Replace the file's content through an owner-only temporary file moved into place
+     */
+    static void write(Path file, byte[] content) throws IOException {
+        // temporary files are created readable and writable by the owner only
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, content);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Path existingAncestor(Path path) {
+        Path current = path.toAbsolutePath();
+        while (current != null && !Files.exists(current)) {
+            current = current.getParent();
+        }
+        return current;
+    }
+
+    /**
+     * The owner of a file the process creates; a name lookup fails for users without a passwd entry, e.g. in containers
+     */
+    private static final class ProcessUser {
+
+        static final UserPrincipal PRINCIPAL = probe();
+
+        private static UserPrincipal probe() {
+            try {
+                Path probe = Files.createTempFile("owner", ".probe");
+                try {
+                    return Files.getOwner(probe);
+                } finally {
+                    Files.deleteIfExists(probe);
+                }
+            } catch (IOException | UnsupportedOperationException ex) {
+                return null;
+            }
+        }
+    }
+}
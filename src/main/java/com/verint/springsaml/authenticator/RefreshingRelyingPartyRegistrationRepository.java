@@ -0,0 +1,533 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrationRepository;
+import org.springframework.security.saml2.provider.service.registration.OpenSamlRelyingPartyRegistrationBuilderHttpMessageConverter;
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * RelyingPartyRegistrationRepository that never blocks request threads on IdP metadata.
+ * On start it serves the last metadata snapshot persisted on disk, or the startup snapshot bundled at build time,
+ * read with a StAX parser so no OpenSAML initialization is needed for it, then refreshes every source on a
+ * background thread using conditional requests (ETag / Last-Modified) and the metadata's own
+ * validUntil / cacheDuration hints. A refreshed registration replaces the old one in a single store write;
+ * when a refresh fails the previous registration keeps being served and the fetch is retried.
+ * Each source has at most one refresh pending or running; with a fetch executor the refresh thread only
+ * schedules, so a slow IdP does not hold up the other sources.
+ */
+public class RefreshingRelyingPartyRegistrationRepository
+        implements RelyingPartyRegistrationRepository, Iterable<RelyingPartyRegistration>, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefreshingRelyingPartyRegistrationRepository.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final Map<String, MetadataSource> sources = new ConcurrentHashMap<>();
+    private final Map<String, FetchState> states = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<>();
+
+    private final TenantRegistrationStore store;
+    private final Path cacheDirectory;
+    private volatile boolean snapshotsEnabled;
+    private final Duration refreshInterval;
+    private final Duration minRefreshInterval;
+    private final ScheduledExecutorService scheduler;
+    private final DefaultResourceLoader resourceLoader = new DefaultResourceLoader();
+    // created on the first fetch, since loading the class initializes OpenSAML
+    private volatile OpenSamlRelyingPartyRegistrationBuilderHttpMessageConverter metadataConverter;
+    private volatile Saml2Metrics metrics;
+    private volatile Executor fetchExecutor;
+    private Saml2StartupSnapshot startupSnapshot;
+
+    public RefreshingRelyingPartyRegistrationRepository(List<MetadataSource> sources, Path cacheDirectory,
+                                                        Duration refreshInterval, Duration minRefreshInterval) {
+        this(sources, new TenantRegistrationStore(), cacheDirectory, refreshInterval, minRefreshInterval);
+    }
+
+    /**
+     * @param store where refreshed registrations are published, shared with the email-domain routing
+     */
+    public RefreshingRelyingPartyRegistrationRepository(List<MetadataSource> sources, TenantRegistrationStore store,
+                                                        Path cacheDirectory, Duration refreshInterval,
+                                                        Duration minRefreshInterval) {
+        Assert.notNull(store, "store cannot be null");
+        Assert.notNull(cacheDirectory, "cacheDirectory cannot be null");
+        Assert.isTrue(!minRefreshInterval.isNegative() && !minRefreshInterval.isZero()
+                        && minRefreshInterval.compareTo(refreshInterval) <= 0,
+                "minRefreshInterval must be positive and not longer than refreshInterval");
+        for (MetadataSource source : sources) {
+            this.sources.put(source.getRegistrationId(), source);
+        }
+        this.store = store;
+        this.cacheDirectory = cacheDirectory;
+        this.refreshInterval = refreshInterval;
+        this.minRefreshInterval = minRefreshInterval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "saml-metadata-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Count refreshes by outcome and track the age of the metadata served for each registration
+     */
+    public void setMetrics(Saml2Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Fetch and parse metadata on this executor instead of the refresh thread. When it rejects a refresh,
+     * the refresh is retried after the minimum interval
+     */
+    public void setFetchExecutor(Executor fetchExecutor) {
+        this.fetchExecutor = fetchExecutor;
+    }
+
+    /**
+     * Seed the cache directory from this snapshot for sources it has no snapshot of yet
+     */
+    public void setStartupSnapshot(Saml2StartupSnapshot startupSnapshot) {
+        this.startupSnapshot = startupSnapshot;
+    }
+
+    /**
+     * Load the on-disk snapshots and schedule the background refreshes.
+     * Sources without a snapshot are fetched right away in the background. The cache directory is created
+     * owner-only; when it, or a snapshot in it, is not owned by the process user or is writable by others,
+     * snapshots are neither read nor written and the metadata is only kept in memory
+     */
+    public void start() {
+        try {
+            PrivateFiles.createDirectories(this.cacheDirectory);
+            PrivateFiles.verifyPrivate(this.cacheDirectory);
+            this.snapshotsEnabled = true;
+        } catch (IOException ex) {
+            // snapshots are trusted like the IdP's own metadata, so they are only kept where no one else can plant one
+            logger.error("Not reading or writing metadata snapshots in {}: {}", this.cacheDirectory, ex.toString());
+        }
+        for (MetadataSource source : this.sources.values()) {
+            if (this.snapshotsEnabled) {
+                if (this.startupSnapshot != null && !Files.isRegularFile(snapshotFile(source, ".xml"))
+                        && this.startupSnapshot.seed(source.getRegistrationId(), source.getLocation(), this.cacheDirectory)) {
+                    logger.info("Seeded registration {} from the startup snapshot", source.getRegistrationId());
+                }
+                loadSnapshot(source);
+            }
+            // a loaded snapshot is revalidated right away too, with a conditional request that is usually a cheap 304
+            schedule(source, 0);
+        }
+    }
+
+    @Override
+    public RelyingPartyRegistration findByRegistrationId(String registrationId) {
+        return this.store.findByRegistrationId(registrationId);
+    }
+
+    @Override
+    public Iterator<RelyingPartyRegistration> iterator() {
+        return this.store.iterator();
+    }
+
+    /**
+     * The registrations this repository has metadata sources for
+     */
+    public Set<String> getRegistrationIds() {
+        return Collections.unmodifiableSet(this.sources.keySet());
+    }
+
+    /**
+     * Schedule an immediate refresh of one source, e.g. after an IdP announced a key rollover.
+     * Does nothing while that source is being refreshed already
+     */
+    public void refreshNow(String registrationId) {
+        MetadataSource source = this.sources.get(registrationId);
+        if (source != null) {
+            schedule(source, 0);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        this.scheduler.shutdownNow();
+    }
+
+    private void loadSnapshot(MetadataSource source) {
+        Path metadata = snapshotFile(source, ".xml");
+        if (!Files.isRegularFile(metadata)) {
+            return;
+        }
+        try {
+            PrivateFiles.verifyPrivate(metadata);
+            byte[] bytes = Files.readAllBytes(metadata);
+            install(source, buildFromSnapshot(source, bytes));
+            FetchState state = new FetchState();
+            state.nextDelayMillis = nextDelayMillis(bytes);
+            Path stateFile = snapshotFile(source, ".properties");
+            if (Files.isRegularFile(stateFile)) {
+                PrivateFiles.verifyPrivate(stateFile);
+                Properties properties = new Properties();
+                try (InputStream in = Files.newInputStream(stateFile)) {
+                    properties.load(in);
+                }
+                state.etag = properties.getProperty("etag");
+                state.lastModified = Long.parseLong(properties.getProperty("lastModified", "0"));
+            }
+            this.states.put(source.getRegistrationId(), state);
+            if (this.metrics != null) {
+                this.metrics.recordMetadataSnapshot(source.getRegistrationId(), Files.getLastModifiedTime(metadata).toMillis());
+            }
+            logger.info("Loaded metadata snapshot for registration {} from {}", source.getRegistrationId(), metadata);
+        } catch (Exception ex) {
+            logger.warn("Ignoring unreadable metadata snapshot {}: {}", metadata, ex.toString());
+        }
+    }
+
+    /**
+     * Replace the source's pending refresh, so there is only ever one
+     */
+    private void schedule(MetadataSource source, long delayMillis) {
+        if (this.scheduler.isShutdown()) {
+            return;
+        }
+        try {
+            ScheduledFuture<?> next = this.scheduler.schedule(() -> dispatch(source), delayMillis, TimeUnit.MILLISECONDS);
+            ScheduledFuture<?> previous = this.scheduled.put(source.getRegistrationId(), next);
+            if (previous != null) {
+                previous.cancel(false);
+            }
+        } catch (RejectedExecutionException ex) {
+            // shut down meanwhile
+        }
+    }
+
+    private void dispatch(MetadataSource source) {
+        FetchState state = this.states.computeIfAbsent(source.getRegistrationId(), id -> new FetchState());
+        if (!state.refreshing.compareAndSet(false, true)) {
+            // the refresh in flight schedules the next one
+            return;
+        }
+        Executor executor = this.fetchExecutor;
+        if (executor == null) {
+            refresh(source, state);
+            return;
+        }
+        try {
+            executor.execute(() -> refresh(source, state));
+        } catch (RejectedExecutionException ex) {
+            state.refreshing.set(false);
+            logger.warn("Metadata fetch executor is saturated, retrying registration {} in {}",
+                    source.getRegistrationId(), this.minRefreshInterval);
+            schedule(source, this.minRefreshInterval.toMillis());
+        }
+    }
+
+    private void refresh(MetadataSource source, FetchState state) {
+        long nextDelayMillis;
+        Saml2Metrics.MetadataOutcome outcome;
+        try {
+            byte[] metadata = fetch(source, state);
+            if (metadata == null) {
+                logger.debug("Metadata for registration {} not modified", source.getRegistrationId());
+                nextDelayMillis = state.nextDelayMillis > 0 ? state.nextDelayMillis : this.refreshInterval.toMillis();
+                outcome = Saml2Metrics.MetadataOutcome.NOT_MODIFIED;
+            } else {
+                // parse before replacing the snapshot so a broken download never overwrites good metadata
+                RelyingPartyRegistration registration = build(source, metadata);
+                if (this.snapshotsEnabled) {
+                    Path temp = Files.createTempFile(this.cacheDirectory, source.getRegistrationId(), ".tmp");
+                    try {
+                        Files.write(temp, metadata);
+                        moveAtomically(temp, snapshotFile(source, ".xml"));
+                        writeState(source, state);
+                    } finally {
+                        Files.deleteIfExists(temp);
+                    }
+                }
+                install(source, registration);
+                state.nextDelayMillis = nextDelayMillis(metadata);
+                nextDelayMillis = state.nextDelayMillis;
+                outcome = Saml2Metrics.MetadataOutcome.UPDATED;
+            }
+            state.lastSuccess = System.currentTimeMillis();
+        } catch (Exception ex) {
+            logger.warn("Metadata refresh for registration {} from {} failed, keeping the previous registration: {}",
+                    source.getRegistrationId(), source.getLocation(), ex.toString());
+            nextDelayMillis = this.minRefreshInterval.toMillis();
+            outcome = Saml2Metrics.MetadataOutcome.FAILED;
+        }
+        if (this.metrics != null) {
+            this.metrics.recordMetadataRefresh(source.getRegistrationId(), outcome);
+        }
+        state.refreshing.set(false);
+        schedule(source, nextDelayMillis);
+    }
+
+    /**
+     * Fetch the metadata, or return null when the source reports it unchanged
+     */
+    private byte[] fetch(MetadataSource source, FetchState state) throws IOException {
+        String location = source.getLocation();
+        // only ask for a 304 when there is a registration to keep serving
+        boolean conditional = this.store.findByRegistrationId(source.getRegistrationId()) != null;
+        if (location.startsWith("http://") || location.startsWith("https://")) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+                if (conditional && state.etag != null) {
+                    connection.setRequestProperty("If-None-Match", state.etag);
+                }
+                if (conditional && state.lastModified > 0) {
+                    connection.setIfModifiedSince(state.lastModified);
+                }
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                    return null;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Unexpected HTTP status " + status);
+                }
+                byte[] metadata;
+                try (InputStream in = connection.getInputStream()) {
+                    metadata = StreamUtils.copyToByteArray(in);
+                }
+                state.etag = connection.getHeaderField("ETag");
+                state.lastModified = connection.getLastModified();
+                return metadata;
+            } finally {
+                connection.disconnect();
+            }
+        }
+        Resource resource = this.resourceLoader.getResource(location);
+        long lastModified = lastModified(resource);
+        if (conditional && lastModified > 0 && lastModified == state.lastModified) {
+            return null;
+        }
+        try (InputStream in = resource.getInputStream()) {
+            byte[] metadata = StreamUtils.copyToByteArray(in);
+            state.etag = null;
+            state.lastModified = lastModified;
+            return metadata;
+        }
+    }
+
+    /**
+     * Read a snapshot, which was parsed with OpenSAML when it was fetched, with the StAX parser; metadata
+     * it cannot map, e.g. an EntitiesDescriptor, goes through OpenSAML again
+     */
+    private RelyingPartyRegistration buildFromSnapshot(MetadataSource source, byte[] metadata) throws IOException {
+        List<RelyingPartyRegistration> registrations = new ArrayList<>(1);
+        new StreamingMetadataIngester(entityId -> source.getRegistrationId(),
+                (registrationId, builder) -> source.getCustomizer().accept(builder), 1)
+                .ingest(new ByteArrayInputStream(metadata), registrations::addAll);
+        return registrations.size() == 1 ? registrations.get(0) : build(source, metadata);
+    }
+
+    /**
+     * Same parsing as RelyingPartyRegistrations.fromMetadataLocation, which in this version only reads over HTTP
+     */
+    private RelyingPartyRegistration build(MetadataSource source, byte[] metadata) throws IOException {
+        HttpInputMessage message = new HttpInputMessage() {
+            @Override
+            public InputStream getBody() {
+                return new ByteArrayInputStream(metadata);
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return HttpHeaders.EMPTY;
+            }
+        };
+        if (this.metadataConverter == null) {
+            OpenSamlBootstrap.await();
+            this.metadataConverter = new OpenSamlRelyingPartyRegistrationBuilderHttpMessageConverter();
+        }
+        RelyingPartyRegistration.Builder builder = this.metadataConverter
+                .read(RelyingPartyRegistration.Builder.class, message)
+                .registrationId(source.getRegistrationId());
+        source.getCustomizer().accept(builder);
+        return builder.build();
+    }
+
+    private void install(MetadataSource source, RelyingPartyRegistration registration) {
+        this.store.put(registration);
+        if (logger.isInfoEnabled()) {
+            for (Saml2X509Credential credential : registration.getAssertingPartyDetails().getVerificationX509Credentials()) {
+                X509Certificate certificate = credential.getCertificate();
+                logger.info("Registration {} verification certificate subject={} issuer={} notAfter={}",
+                        source.getRegistrationId(), certificate.getSubjectX500Principal().getName(),
+                        certificate.getIssuerX500Principal().getName(), certificate.getNotAfter());
+            }
+        }
+    }
+
+    /**
+     * Time until the next refresh: the configured interval, shortened by the metadata's cacheDuration
+     * and by half of the time left until validUntil, but never below the minimum interval
+     */
+    long nextDelayMillis(byte[] metadata) {
+        long delay = this.refreshInterval.toMillis();
+        try {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(metadata));
+            try {
+                while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    // skip to the root element, which carries the caching attributes
+                }
+                DatatypeFactory datatypes = DatatypeFactory.newInstance();
+                String cacheDuration = reader.getAttributeValue(null, "cacheDuration");
+                if (cacheDuration != null) {
+                    delay = Math.min(delay, datatypes.newDuration(cacheDuration.trim()).getTimeInMillis(new Date()));
+                }
+                String validUntil = reader.getAttributeValue(null, "validUntil");
+                if (validUntil != null) {
+                    long expiry = datatypes.newXMLGregorianCalendar(validUntil.trim()).toGregorianCalendar().getTimeInMillis();
+                    delay = Math.min(delay, (expiry - System.currentTimeMillis()) / 2);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | DatatypeConfigurationException | IllegalArgumentException ex) {
+            logger.debug("Cannot read caching hints from metadata: {}", ex.toString());
+        }
+        return Math.max(delay, this.minRefreshInterval.toMillis());
+    }
+
+    private void writeState(MetadataSource source, FetchState state) throws IOException {
+        Properties properties = new Properties();
+        if (state.etag != null) {
+            properties.setProperty("etag", state.etag);
+        }
+        properties.setProperty("lastModified", Long.toString(state.lastModified));
+        properties.setProperty("location", source.getLocation());
+        Path temp = Files.createTempFile(this.cacheDirectory, source.getRegistrationId(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            moveAtomically(temp, snapshotFile(source, ".properties"));
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path snapshotFile(MetadataSource source, String suffix) {
+        return this.cacheDirectory.resolve(source.getRegistrationId() + suffix);
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long lastModified(Resource resource) {
+        try {
+            return resource.lastModified();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Time of the last successful refresh (or not-modified answer) for a registration, 0 if there was none
+     */
+    public long getLastSuccessfulRefresh(String registrationId) {
+        FetchState state = this.states.get(registrationId);
+        return state != null ? state.lastSuccess : 0;
+    }
+
+    /**
+     * Where a registration's asserting party metadata comes from and how the registration is completed
+     */
+    public static final class MetadataSource {
+
+        private final String registrationId;
+        private final String location;
+        private final Consumer<RelyingPartyRegistration.Builder> customizer;
+
+        /**
+         * @param location an http(s) URL, or any Spring resource location such as file: or classpath:
+         * @param customizer applies the relying party settings (entity ID, ACS location, credentials)
+         */
+        public MetadataSource(String registrationId, String location, Consumer<RelyingPartyRegistration.Builder> customizer) {
+            Assert.hasText(registrationId, "registrationId cannot be empty");
+            Assert.hasText(location, "location cannot be empty");
+            this.registrationId = registrationId;
+            this.location = location;
+            this.customizer = customizer != null ? customizer : builder -> { };
+        }
+
+        public String getRegistrationId() {
+            return this.registrationId;
+        }
+
+        public String getLocation() {
+            return this.location;
+        }
+
+        public Consumer<RelyingPartyRegistration.Builder> getCustomizer() {
+            return this.customizer;
+        }
+    }
+
+    // Only touched by the source's refresh in flight, which the refreshing flag orders, apart from the lastSuccess read
+    private static final class FetchState {
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        String etag;
+        long lastModified;
+        long nextDelayMillis;
+        volatile long lastSuccess;
+    }
+}
@@ -0,0 +1,93 @@
+package com.verint.springsaml.authenticator;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where ACS latency goes: count, total and max time of each stage of SAML Response processing.
+ * Once bound to a MeterRegistry every stage is also recorded in the saml2.acs timer, tagged by stage
+ */
+public class Saml2AcsTimings implements MeterBinder {
+
+    public enum Stage {
+        /** Base64 decoding (and inflating) the SAMLResponse parameter */
+        DECODE,
+        /** XML parsing and unmarshalling into OpenSAML objects */
+        PARSE,
+        /** XML signature verification of the Response and its assertions */
+        SIGNATURE,
+        /** Response destination, issuer and InResponseTo checks, and each assertion's conditions and subject confirmation */
+        ASSERTION
+    }
+
+    // indexed by stage ordinal, so recording is an array load
+    private final StageTimer[] timers = new StageTimer[Stage.values().length];
+
+    public Saml2AcsTimings() {
+        for (Stage stage : Stage.values()) {
+            this.timers[stage.ordinal()] = new StageTimer();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Stage stage : Stage.values()) {
+            this.timers[stage.ordinal()].meter = Timer.builder("saml2.acs")
+                    .description("Time spent in each stage of SAML Response processing on the ACS endpoint")
+                    .tag("stage", stage.name().toLowerCase())
+                    .register(registry);
+        }
+    }
+
+    public void record(Stage stage, long nanos) {
+        this.timers[stage.ordinal()].record(nanos);
+    }
+
+    public long getCount(Stage stage) {
+        return this.timers[stage.ordinal()].count.sum();
+    }
+
+    public long getTotalTime(Stage stage, TimeUnit unit) {
+        return unit.convert(this.timers[stage.ordinal()].totalNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxTime(Stage stage, TimeUnit unit) {
+        return unit.convert(this.timers[stage.ordinal()].maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            long count = getCount(stage);
+            long mean = count == 0 ? 0 : getTotalTime(stage, TimeUnit.MICROSECONDS) / count;
+            builder.append(builder.length() == 0 ? "" : ", ").append(stage.name().toLowerCase())
+                    .append(" n=").append(count).append(" mean=").append(mean).append("us")
+                    .append(" max=").append(getMaxTime(stage, TimeUnit.MICROSECONDS)).append("us");
+        }
+        return builder.toString();
+    }
+
+    private static final class StageTimer {
+
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        volatile Timer meter;
+
+        void record(long nanos) {
+            this.count.increment();
+            this.totalNanos.add(nanos);
+            this.maxNanos.accumulate(nanos);
+            Timer meter = this.meter;
+            if (meter != null) {
+                meter.record(nanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package com.verint.springsaml.authenticator;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationRequestFactory;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
 
 /**
  * Spring Boot configuration that provides our custom factory as the primary bean
@@ -12,6 +20,48 @@ import org.springframework.security.saml2.provider.service.authentication.Saml2A
 @Configuration
 public class Saml2Configuration {
 
+    @Value("${saml.authn-request.template-enabled:true}")
+    private boolean templateEnabled;
+
+    @Value("${saml.login-hint.stateless:false}")
+    private boolean loginHintStateless;
+
+    @Value("${saml.login-hint.secret:}")
+    private String loginHintSecret;
+
+    @Value("${saml.login-hint.single-node:false}")
+    private boolean loginHintSingleNode;
+
+    @Value("${saml.login-hint.encrypt:true}")
+    private boolean loginHintEncrypt;
+
+    @Value("${saml.login-hint.max-age:PT10M}")
+    private Duration loginHintMaxAge;
+
+    @Value("${saml.metrics.max-tagged-registrations:100}")
+    private int metricsMaxTaggedRegistrations;
+
+    @Value("${saml.diagnostics.registrations:}")
+    private String[] diagnosticsRegistrations;
+
+    @Value("${saml.diagnostics.header:X-Saml-Diagnostics}")
+    private String diagnosticsHeader;
+
+    @Value("${saml.diagnostics.header-token:}")
+    private String diagnosticsHeaderToken;
+
+    @Value("${saml.diagnostics.sample-rate:0}")
+    private double diagnosticsSampleRate;
+
+    @Value("${saml.diagnostics.capacity:200}")
+    private int diagnosticsCapacity;
+
+    @Value("${saml.diagnostics.max-message-chars:65536}")
+    private int diagnosticsMaxMessageChars;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     /**
      * Create our custom SAML authentication request factory as the primary bean
      * This will be used instead of the default OpenSamlAuthenticationRequestFactory
@@ -19,7 +69,61 @@ public class Saml2Configuration {
     @Bean
     @Primary
     //@ConditionalOnMissingBean(Saml2AuthenticationRequestFactory.class)
-    public Saml2AuthenticationRequestFactory saml2AuthenticationRequestFactory() {
-        return new VerintLoginHintAuthenticationRequestFactory();
+    public Saml2AuthenticationRequestFactory saml2AuthenticationRequestFactory(TenantRegistrationStore tenantRegistrationStore) {
+        OpenSamlBootstrap.await();
+        VerintLoginHintAuthenticationRequestFactory factory = new VerintLoginHintAuthenticationRequestFactory();
+        factory.setTemplateEnabled(templateEnabled);
+        tenantRegistrationStore.addRemovalListener(factory::evict);
+        factory.setLoginHintResolver(loginHintResolver());
+        factory.setMetrics(saml2Metrics());
+        factory.setDiagnostics(saml2Diagnostics());
+        return factory;
+    }
+
+    /**
+     * Captures the SAML messages of selected logins, instead of DEBUG/TRACE logging for everyone
+     */
+    @Bean
+    public Saml2Diagnostics saml2Diagnostics() {
+        Saml2Diagnostics diagnostics = new Saml2Diagnostics(diagnosticsCapacity, diagnosticsMaxMessageChars);
+        diagnostics.setRegistrations(Arrays.asList(diagnosticsRegistrations));
+        diagnostics.setHeader(diagnosticsHeader, diagnosticsHeaderToken);
+        diagnostics.setSampleRate(diagnosticsSampleRate);
+        return diagnostics;
+    }
+
+    @Bean
+    public Saml2DiagnosticsEndpoint saml2DiagnosticsEndpoint() {
+        return new Saml2DiagnosticsEndpoint(saml2Diagnostics());
+    }
+
+    /**
+     * SAML login meters, exposed through Actuator; also counts the HttpSessions created per login phase
+     */
+    @Bean
+    public Saml2Metrics saml2Metrics() {
+        return new Saml2Metrics(meterRegistry, metricsMaxTaggedRegistrations);
+    }
+
+    /**
+     * Keeps the login hint in the HttpSession, or in stateless mode in a signed cookie with the
+     * AuthnRequest ID bound to the RelayState
+     */
+    @Bean
+    public LoginHintResolver loginHintResolver() {
+        if (!loginHintStateless) {
+            return new LoginHintResolver();
+        }
+        StatelessLoginTokens tokens;
+        if (StringUtils.hasText(loginHintSecret)) {
+            tokens = new StatelessLoginTokens(Base64.getDecoder().decode(loginHintSecret), loginHintEncrypt, loginHintMaxAge);
+        } else if (loginHintSingleNode) {
+            tokens = StatelessLoginTokens.withRandomSecret(loginHintEncrypt, loginHintMaxAge);
+        } else {
+            // a random secret would make every other node reject the tokens, and every restart log users out mid-login
+            throw new IllegalStateException("saml.login-hint.stateless requires saml.login-hint.secret; "
+                    + "set saml.login-hint.single-node=true to use a random secret on a single node");
+        }
+        return new LoginHintResolver(tokens, loginHintMaxAge);
     }
 }
\ No newline at end of file
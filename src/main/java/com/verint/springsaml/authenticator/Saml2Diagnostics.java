@@ -0,0 +1,384 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Captures the SAML exchange of selected logins into a bounded ring buffer, so a single tenant's login can be
+ * debugged while everything else runs at INFO without serializing any XML. A login is captured when
+ * <ul>
+ * <li>its registration is listed in the configuration or was switched on at runtime for a while</li>
+ * <li>the request starting it carries the diagnostics header with the configured token</li>
+ * <li>its AuthnRequest ID falls into the sampled fraction; the decision is a hash of the ID, so every node
+ * reaches the same one for the AuthnRequest and for the Response that answers it</li>
+ * </ul>
+ * The Response answering a captured AuthnRequest is captured too when it comes back to the same node.
+ * Deciding costs a few field reads per message when diagnostics are off; the messages are only copied
+ * (never pretty-printed) when a login is captured
+ */
+public class Saml2Diagnostics {
+
+    private static final Logger logger = LoggerFactory.getLogger(Saml2Diagnostics.class);
+
+    static final String DEFAULT_HEADER = "X-Saml-Diagnostics";
+
+    private static final int SAMPLE_SCALE = 1_000_000;
+
+    // AuthnRequest IDs whose Response should be captured, with the time they stop mattering
+    private static final Duration TRACE_TTL = Duration.ofMinutes(10);
+    private static final int MAX_TRACED = 1024;
+
+    public enum Kind {
+        AUTHN_REQUEST, RESPONSE
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong sequence = new AtomicLong();
+    private final int maxMessageChars;
+    private final Map<String, Long> tracedRequestIds = new ConcurrentHashMap<>();
+    private final Map<String, Long> enabledUntil = new ConcurrentHashMap<>();
+    private volatile Set<String> registrations = Collections.emptySet();
+    private volatile String headerName = DEFAULT_HEADER;
+    private volatile byte[] headerToken;
+    private volatile int sampleThreshold;
+    private Clock clock = Clock.systemUTC();
+
+    /**
+     * @param capacity how many messages are kept; older ones are overwritten
+     * @param maxMessageChars longer messages are truncated
+     */
+    public Saml2Diagnostics(int capacity, int maxMessageChars) {
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        Assert.isTrue(maxMessageChars > 0, "maxMessageChars must be positive");
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.maxMessageChars = maxMessageChars;
+    }
+
+    /**
+     * Registrations whose logins are always captured
+     */
+    public void setRegistrations(Collection<String> registrations) {
+        Set<String> ids = new HashSet<>();
+        for (String registration : registrations) {
+            if (StringUtils.hasText(registration)) {
+                ids.add(registration.trim());
+            }
+        }
+        this.registrations = Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Capture logins started by requests carrying this header with the token as value.
+     * Without a token the header is ignored, so clients cannot switch diagnostics on by themselves
+     */
+    public void setHeader(String headerName, String token) {
+        Assert.hasText(headerName, "headerName cannot be empty");
+        this.headerName = headerName;
+        this.headerToken = StringUtils.hasText(token) ? token.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    public String getHeaderName() {
+        return this.headerName;
+    }
+
+    /**
+     * @param sampleRate fraction of all logins to capture, between 0 and 1
+     */
+    public void setSampleRate(double sampleRate) {
+        Assert.isTrue(sampleRate >= 0 && sampleRate <= 1, "sampleRate must be between 0 and 1");
+        this.sampleThreshold = (int) Math.round(sampleRate * SAMPLE_SCALE);
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "clock cannot be null");
+        this.clock = clock;
+    }
+
+    /**
+     * Capture a registration's logins for a while, e.g. while a tenant reproduces a failure
+     */
+    public void enable(String registrationId, Duration duration) {
+        Assert.hasText(registrationId, "registrationId cannot be empty");
+        this.enabledUntil.put(registrationId, this.clock.millis() + duration.toMillis());
+        logger.info("SAML diagnostics enabled for registration {} for {}", registrationId, duration);
+    }
+
+    public void disable(String registrationId) {
+        if (this.enabledUntil.remove(registrationId) != null) {
+            logger.info("SAML diagnostics disabled for registration {}", registrationId);
+        }
+    }
+
+    /**
+     * Why the AuthnRequest with this ID is captured, or null when it is not
+     */
+    public String captureAuthnRequest(String registrationId, String authnRequestId) {
+        return captureReason(registrationId, authnRequestId, false, currentHeader());
+    }
+
+    /**
+     * Why the Response answering this AuthnRequest ID (null for IdP-initiated logins) is captured, or null
+     *
+     * @param headerValue the diagnostics header of the request that posted the Response, if any; it is
+     * passed in because the Response may be validated off the request's thread
+     */
+    public String captureResponse(String registrationId, String inResponseTo, String headerValue) {
+        return captureReason(registrationId, inResponseTo, true, headerValue);
+    }
+
+    private String captureReason(String registrationId, String authnRequestId, boolean response, String headerValue) {
+        if (this.registrations.contains(registrationId)) {
+            return "registration";
+        }
+        if (!this.enabledUntil.isEmpty() && isEnabledNow(registrationId)) {
+            return "enabled";
+        }
+        if (authnRequestId != null && isSampled(authnRequestId)) {
+            return "sampled";
+        }
+        if (response && authnRequestId != null && !this.tracedRequestIds.isEmpty()) {
+            Long until = this.tracedRequestIds.remove(authnRequestId);
+            if (until != null && until > this.clock.millis()) {
+                return "traced";
+            }
+        }
+        if (this.headerToken != null && headerValue != null
+                && MessageDigest.isEqual(this.headerToken, headerValue.getBytes(StandardCharsets.UTF_8))) {
+            return "header";
+        }
+        return null;
+    }
+
+    private boolean isEnabledNow(String registrationId) {
+        Long until = this.enabledUntil.get(registrationId);
+        if (until == null) {
+            return false;
+        }
+        if (until > this.clock.millis()) {
+            return true;
+        }
+        this.enabledUntil.remove(registrationId, until);
+        return false;
+    }
+
+    private boolean isSampled(String id) {
+        int threshold = this.sampleThreshold;
+        return threshold > 0 && Math.floorMod(id.hashCode(), SAMPLE_SCALE) < threshold;
+    }
+
+    private String currentHeader() {
+        if (this.headerToken == null) {
+            return null;
+        }
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        return attributes instanceof ServletRequestAttributes
+                ? ((ServletRequestAttributes) attributes).getRequest().getHeader(this.headerName) : null;
+    }
+
+    /**
+     * Keep an AuthnRequest; its Response is captured too when it comes back to this node
+     */
+    public void recordAuthnRequest(String reason, String registrationId, String authnRequestId, String binding,
+                                   String destination, String relayState, String xml) {
+        if (authnRequestId != null) {
+            trace(authnRequestId);
+        }
+        add(new Entry(this.clock.instant(), Kind.AUTHN_REQUEST, reason, registrationId, authnRequestId, null,
+                binding, destination, relayState, "sent", null, xml, this.maxMessageChars));
+    }
+
+    /**
+     * @param outcome "accepted", or the error code the Response was rejected with
+     */
+    public void recordResponse(String reason, String registrationId, String responseId, String inResponseTo,
+                               String relayState, String outcome, String detail, String xml) {
+        add(new Entry(this.clock.instant(), Kind.RESPONSE, reason, registrationId, responseId, inResponseTo,
+                "post", null, relayState, outcome, detail, xml, this.maxMessageChars));
+    }
+
+    private void trace(String authnRequestId) {
+        long now = this.clock.millis();
+        if (this.tracedRequestIds.size() >= MAX_TRACED) {
+            // drop what has expired, and while the set is still full, any other entry
+            Iterator<Long> iterator = this.tracedRequestIds.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() <= now || this.tracedRequestIds.size() >= MAX_TRACED) {
+                    iterator.remove();
+                }
+            }
+        }
+        this.tracedRequestIds.put(authnRequestId, now + TRACE_TTL.toMillis());
+    }
+
+    private void add(Entry entry) {
+        long index = this.sequence.getAndIncrement();
+        entry.sequence = index;
+        this.entries.set((int) (index % this.entries.length()), entry);
+    }
+
+    /**
+     * Captured messages, newest first
+     *
+     * @param registrationId only this registration's messages, or all when null
+     */
+    public List<Entry> getEntries(String registrationId) {
+        List<Entry> result = new ArrayList<>();
+        for (int i = 0; i < this.entries.length(); i++) {
+            Entry entry = this.entries.get(i);
+            if (entry != null && (registrationId == null || registrationId.equals(entry.getRegistrationId()))) {
+                result.add(entry);
+            }
+        }
+        result.sort(Comparator.comparingLong(Entry::getSequence).reversed());
+        return result;
+    }
+
+    public void clear() {
+        for (int i = 0; i < this.entries.length(); i++) {
+            this.entries.set(i, null);
+        }
+    }
+
+    /**
+     * What is being captured: configured and runtime registrations, sampling and the buffer's fill
+     */
+    public Map<String, Object> getStatus() {
+        long now = this.clock.millis();
+        Map<String, Instant> enabled = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> registration : this.enabledUntil.entrySet()) {
+            if (registration.getValue() > now) {
+                enabled.put(registration.getKey(), Instant.ofEpochMilli(registration.getValue()));
+            }
+        }
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("registrations", this.registrations);
+        status.put("enabledUntil", enabled);
+        status.put("sampleRate", this.sampleThreshold / (double) SAMPLE_SCALE);
+        status.put("headerEnabled", this.headerToken != null);
+        status.put("capacity", this.entries.length());
+        status.put("captured", this.sequence.get());
+        return status;
+    }
+
+    /**
+     * One captured SAML message and what became of it
+     */
+    public static final class Entry {
+
+        private final Instant timestamp;
+        private final Kind kind;
+        private final String reason;
+        private final String registrationId;
+        private final String id;
+        private final String inResponseTo;
+        private final String binding;
+        private final String destination;
+        private final String relayState;
+        private final String outcome;
+        private final String detail;
+        private final String message;
+        private final boolean truncated;
+        private long sequence;
+
+        Entry(Instant timestamp, Kind kind, String reason, String registrationId, String id, String inResponseTo,
+              String binding, String destination, String relayState, String outcome, String detail, String message,
+              int maxMessageChars) {
+            this.timestamp = timestamp;
+            this.kind = kind;
+            this.reason = reason;
+            this.registrationId = registrationId;
+            this.id = id;
+            this.inResponseTo = inResponseTo;
+            this.binding = binding;
+            this.destination = destination;
+            this.relayState = relayState;
+            this.outcome = outcome;
+            this.detail = detail;
+            this.truncated = message != null && message.length() > maxMessageChars;
+            this.message = this.truncated ? message.substring(0, maxMessageChars) : message;
+        }
+
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        public Instant getTimestamp() {
+            return this.timestamp;
+        }
+
+        public Kind getKind() {
+            return this.kind;
+        }
+
+        /**
+         * What selected the login: registration, enabled, sampled, header or traced
+         */
+        public String getReason() {
+            return this.reason;
+        }
+
+        public String getRegistrationId() {
+            return this.registrationId;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        public String getInResponseTo() {
+            return this.inResponseTo;
+        }
+
+        public String getBinding() {
+            return this.binding;
+        }
+
+        public String getDestination() {
+            return this.destination;
+        }
+
+        public String getRelayState() {
+            return this.relayState;
+        }
+
+        public String getOutcome() {
+            return this.outcome;
+        }
+
+        public String getDetail() {
+            return this.detail;
+        }
+
+        public String getMessage() {
+            return this.message;
+        }
+
+        public boolean isTruncated() {
+            return this.truncated;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admin endpoint over {@link Saml2Diagnostics}, at /actuator/saml2diagnostics:
+ * <ul>
+ * <li>GET lists the capture settings and every captured message, GET /{registrationId} one registration's</li>
+ * <li>POST /{registrationId} captures that registration's logins for {"minutes": n} (default 15)</li>
+ * <li>DELETE /{registrationId} stops that again, DELETE clears the captured messages</li>
+ * </ul>
+ */
+@Endpoint(id = "saml2diagnostics")
+public class Saml2DiagnosticsEndpoint {
+
+    private static final int DEFAULT_MINUTES = 15;
+
+    private final Saml2Diagnostics diagnostics;
+
+    public Saml2DiagnosticsEndpoint(Saml2Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    @ReadOperation
+    public Map<String, Object> diagnostics() {
+        Map<String, Object> body = new LinkedHashMap<>(this.diagnostics.getStatus());
+        body.put("entries", this.diagnostics.getEntries(null));
+        return body;
+    }
+
+    @ReadOperation
+    public List<Saml2Diagnostics.Entry> entries(@Selector String registrationId) {
+        return this.diagnostics.getEntries(registrationId);
+    }
+
+    @WriteOperation
+    public Map<String, Object> enable(@Selector String registrationId, @Nullable Integer minutes) {
+        this.diagnostics.enable(registrationId, Duration.ofMinutes(minutes != null && minutes > 0 ? minutes : DEFAULT_MINUTES));
+        return this.diagnostics.getStatus();
+    }
+
+    @DeleteOperation
+    public Map<String, Object> disable(@Selector String registrationId) {
+        this.diagnostics.disable(registrationId);
+        return this.diagnostics.getStatus();
+    }
+
+    @DeleteOperation
+    public void clear() {
+        this.diagnostics.clear();
+    }
+}
@@ -2,11 +2,18 @@ package com.verint.springsaml.authenticator;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 
 @SpringBootApplication
 public class Saml2ExampleServiceProviderApp {
 
     public static void main(String[] args) {
-        SpringApplication.run(Saml2ExampleServiceProviderApp.class, args);
+        // OpenSAML takes seconds to initialize; overlap that with the Spring context startup
+        OpenSamlBootstrap.startInBackground();
+        ConfigurableApplicationContext context = SpringApplication.run(Saml2ExampleServiceProviderApp.class, args);
+        // a training run that records the classes loaded during startup into a CDS archive, then exits
+        if (context.getEnvironment().getProperty("saml.startup.exit-on-ready", Boolean.class, false)) {
+            System.exit(SpringApplication.exit(context));
+        }
     }
 }
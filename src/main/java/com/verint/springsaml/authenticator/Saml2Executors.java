@@ -0,0 +1,77 @@
+package com.verint.springsaml.authenticator;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The bounded pools that keep blocking SAML work off the servlet container's threads:
+ * <ul>
+ * <li>io: reads ACS request bodies, finishes logins and fetches IdP metadata, so slow clients and slow IdPs
+ * wait here instead of holding Tomcat threads</li>
+ * <li>cpu: parses Responses and verifies their signatures, one thread per core so this work never
+ * oversubscribes the machine</li>
+ * </ul>
+ * Both have a bounded queue and reject work when it is full, so overload is answered with 503 instead of
+ * piling up. Their queue depth and activity are published as executor metrics
+ */
+public class Saml2Executors implements MeterBinder, DisposableBean {
+
+    private final ThreadPoolExecutor io;
+    private final ThreadPoolExecutor cpu;
+
+    /**
+     * @param ioThreads threads for blocking work
+     * @param cpuThreads threads for signature verification, usually the number of cores
+     * @param queueCapacity tasks each pool holds before rejecting
+     */
+    public Saml2Executors(int ioThreads, int cpuThreads, int queueCapacity) {
+        Assert.isTrue(ioThreads > 0 && cpuThreads > 0, "thread counts must be positive");
+        Assert.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+        this.io = bounded("saml-io", ioThreads, queueCapacity);
+        this.cpu = bounded("saml-cpu", cpuThreads, queueCapacity);
+    }
+
+    public ExecutorService getIo() {
+        return this.io;
+    }
+
+    public ExecutorService getCpu() {
+        return this.cpu;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        new ExecutorServiceMetrics(this.io, "saml-io", Collections.emptyList()).bindTo(registry);
+        new ExecutorServiceMetrics(this.cpu, "saml-cpu", Collections.emptyList()).bindTo(registry);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        this.io.shutdown();
+        this.cpu.shutdown();
+        this.io.awaitTermination(10, TimeUnit.SECONDS);
+        this.cpu.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static ThreadPoolExecutor bounded(String name, int threads, int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,210 @@
+package com.verint.springsaml.authenticator;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.util.Assert;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Micrometer meters of the SAML login, tagged by registration:
+ * <ul>
+ * <li>saml2.authn-request: time to build an AuthnRequest, per binding</li>
+ * <li>saml2.acs.failures: Responses rejected on the ACS endpoint, per Saml2Error code</li>
+ * <li>saml2.metadata.refresh: IdP metadata refreshes, per outcome, and saml2.metadata.age: seconds since the
+ * served metadata was last confirmed by its source</li>
+ * <li>saml2.sessions.created: HttpSessions created, per login phase, and saml2.sessions.active</li>
+ * </ul>
+ * Meters are created once per registration and looked up without allocating, so recording costs a map lookup
+ * and the meter update. Registrations beyond the tag limit share the tag "other", which keeps the number of
+ * series bounded when a metadata aggregate brings in many IdPs
+ */
+public class Saml2Metrics implements HttpSessionListener {
+
+    static final String OTHER_REGISTRATION = "other";
+
+    public enum Binding {
+        REDIRECT, POST
+    }
+
+    public enum MetadataOutcome {
+        /** new metadata was fetched and installed */
+        UPDATED,
+        /** the source answered that the metadata is unchanged */
+        NOT_MODIFIED,
+        /** the fetch or the parsing failed; the previous registration is kept */
+        FAILED
+    }
+
+    /**
+     * Where in the login a session was created; with stateless login hints no session should be created before ACS
+     */
+    enum SessionPhase {
+        LOGIN, ACS, OTHER
+    }
+
+    private final MeterRegistry registry;
+    private final int maxTaggedRegistrations;
+    private final ConcurrentMap<String, RegistrationMeters> registrations = new ConcurrentHashMap<>();
+    private volatile RegistrationMeters other;
+    private final Counter[] sessionsCreated = new Counter[SessionPhase.values().length];
+    private final LongAdder activeSessions = new LongAdder();
+
+    /**
+     * @param maxTaggedRegistrations how many registrations get their own tag value
+     */
+    public Saml2Metrics(MeterRegistry registry, int maxTaggedRegistrations) {
+        Assert.notNull(registry, "registry cannot be null");
+        Assert.isTrue(maxTaggedRegistrations >= 0, "maxTaggedRegistrations cannot be negative");
+        this.registry = registry;
+        this.maxTaggedRegistrations = maxTaggedRegistrations;
+        for (SessionPhase phase : SessionPhase.values()) {
+            this.sessionsCreated[phase.ordinal()] = Counter.builder("saml2.sessions.created")
+                    .description("HttpSessions created, by the login phase of the request that created them")
+                    .tag("phase", phase.name().toLowerCase())
+                    .register(registry);
+        }
+        Gauge.builder("saml2.sessions.active", this.activeSessions, LongAdder::sum)
+                .description("HttpSessions that have not been invalidated or expired")
+                .register(registry);
+    }
+
+    public void recordAuthnRequest(String registrationId, Binding binding, long nanos) {
+        registration(registrationId).authnRequests[binding.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param reason the Saml2Error code the Response was rejected with
+     */
+    public void recordAcsFailure(String registrationId, String reason) {
+        RegistrationMeters meters = registration(registrationId);
+        Counter counter = meters.acsFailures.get(reason);
+        if (counter == null) {
+            counter = meters.acsFailures.computeIfAbsent(reason, code -> Counter.builder("saml2.acs.failures")
+                    .description("SAML Responses rejected on the ACS endpoint")
+                    .tag("registration", meters.tag)
+                    .tag("reason", code)
+                    .register(this.registry));
+        }
+        counter.increment();
+    }
+
+    public void recordMetadataRefresh(String registrationId, MetadataOutcome outcome) {
+        RegistrationMeters meters = registration(registrationId);
+        meters.metadataRefreshes[outcome.ordinal()].increment();
+        if (outcome != MetadataOutcome.FAILED) {
+            meters.metadataConfirmed.set(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Metadata served from an on-disk snapshot is as old as the snapshot
+     */
+    public void recordMetadataSnapshot(String registrationId, long snapshotMillis) {
+        AtomicLong confirmed = registration(registrationId).metadataConfirmed;
+        long current = confirmed.get();
+        while (snapshotMillis > current && !confirmed.compareAndSet(current, snapshotMillis)) {
+            current = confirmed.get();
+        }
+    }
+
+    @Override
+    public void sessionCreated(HttpSessionEvent event) {
+        this.activeSessions.increment();
+        this.sessionsCreated[currentPhase().ordinal()].increment();
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent event) {
+        this.activeSessions.decrement();
+    }
+
+    private static SessionPhase currentPhase() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes)) {
+            return SessionPhase.OTHER;
+        }
+        String path = ((ServletRequestAttributes) attributes).getRequest().getServletPath();
+        if (path.startsWith("/saml2/acs/")) {
+            return SessionPhase.ACS;
+        }
+        if (path.equals("/login") || path.equals("/process-email") || path.startsWith("/saml2/authenticate/")) {
+            return SessionPhase.LOGIN;
+        }
+        return SessionPhase.OTHER;
+    }
+
+    private RegistrationMeters registration(String registrationId) {
+        RegistrationMeters meters = this.registrations.get(registrationId);
+        if (meters != null) {
+            return meters;
+        }
+        if (this.registrations.size() >= this.maxTaggedRegistrations) {
+            return other();
+        }
+        return this.registrations.computeIfAbsent(registrationId, RegistrationMeters::new);
+    }
+
+    private RegistrationMeters other() {
+        RegistrationMeters meters = this.other;
+        if (meters == null) {
+            synchronized (this) {
+                meters = this.other;
+                if (meters == null) {
+                    meters = new RegistrationMeters(OTHER_REGISTRATION);
+                    this.other = meters;
+                }
+            }
+        }
+        return meters;
+    }
+
+    private final class RegistrationMeters {
+
+        final String tag;
+        final Timer[] authnRequests = new Timer[Binding.values().length];
+        final ConcurrentMap<String, Counter> acsFailures = new ConcurrentHashMap<>();
+        final Counter[] metadataRefreshes = new Counter[MetadataOutcome.values().length];
+        // 0 until the metadata was confirmed once
+        final AtomicLong metadataConfirmed = new AtomicLong();
+
+        RegistrationMeters(String tag) {
+            this.tag = tag;
+            for (Binding binding : Binding.values()) {
+                this.authnRequests[binding.ordinal()] = Timer.builder("saml2.authn-request")
+                        .description("Time to build, encode and sign an AuthnRequest")
+                        .tag("registration", tag)
+                        .tag("binding", binding.name().toLowerCase())
+                        .register(registry);
+            }
+            for (MetadataOutcome outcome : MetadataOutcome.values()) {
+                this.metadataRefreshes[outcome.ordinal()] = Counter.builder("saml2.metadata.refresh")
+                        .description("IdP metadata refreshes")
+                        .tag("registration", tag)
+                        .tag("outcome", outcome.name().toLowerCase())
+                        .register(registry);
+            }
+            Gauge.builder("saml2.metadata.age", this.metadataConfirmed, Saml2Metrics::ageSeconds)
+                    .description("Seconds since the IdP metadata was last fetched or confirmed unchanged")
+                    .tag("registration", tag)
+                    .baseUnit("seconds")
+                    .register(registry);
+        }
+    }
+
+    private static double ageSeconds(AtomicLong confirmed) {
+        long millis = confirmed.get();
+        return millis == 0 ? Double.NaN : (System.currentTimeMillis() - millis) / 1000.0;
+    }
+}
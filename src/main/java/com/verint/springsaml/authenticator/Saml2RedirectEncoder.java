@@ -0,0 +1,99 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.web.util.UriUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+/**
+ * HTTP-Redirect binding encoder for SAMLRequest values.
+ * Deflates with a per-thread Deflater and streams the output through a Base64 encoder into a per-thread
+ * buffer, so a redirect AuthnRequest only allocates its UTF-8 bytes and the resulting String
+ */
+public final class Saml2RedirectEncoder {
+
+    // Scratch buffers that grew past this size are dropped after use instead of being kept by the thread
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final int CHUNK = 2 * 1024;
+
+    // Same settings as Spring Security's Saml2Utils.samlDeflate: level 8, raw deflate without zlib header
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFLATED, true));
+    private static final ThreadLocal<byte[]> DEFLATE_BUFFER = ThreadLocal.withInitial(() -> new byte[CHUNK]);
+    private static final ThreadLocal<AsciiBuffer> ENCODED_BUFFER = ThreadLocal.withInitial(() -> new AsciiBuffer(CHUNK * 4 / 3 + 4));
+
+    private Saml2RedirectEncoder() {
+    }
+
+    /**
+     * Deflate and Base64-encode the XML for the SAMLRequest parameter.
+     * The value is not URL-encoded; Saml2WebSsoAuthenticationRequestFilter does that when it builds the redirect
+     */
+    public static String deflateAndEncode(String xml) {
+        byte[] input = xml.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = DEFLATER.get();
+        byte[] chunk = DEFLATE_BUFFER.get();
+        AsciiBuffer encoded = ENCODED_BUFFER.get();
+        encoded.reset();
+        // closing the encoder writes the final quantum and its padding
+        try (OutputStream base64 = Base64.getEncoder().wrap(encoded)) {
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                base64.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } catch (IOException ex) {
+            // not thrown by an in-memory stream
+            throw new Saml2Exception(ex);
+        } finally {
+            deflater.reset();
+        }
+        String result = encoded.toAsciiString();
+        if (encoded.capacity() > MAX_RETAINED_BUFFER) {
+            ENCODED_BUFFER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * URL-encode a query parameter value (RFC 3986 unreserved characters are kept as they are)
+     */
+    public static String encodeQueryValue(String value) {
+        return UriUtils.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Append an already encoded query parameter to a URI, using '?' or '&' as needed
+     */
+    public static String appendQueryParameter(String uri, String name, String encodedValue) {
+        StringBuilder result = new StringBuilder(uri.length() + name.length() + encodedValue.length() + 2);
+        result.append(uri)
+                .append(uri.indexOf('?') < 0 ? '?' : '&')
+                .append(name)
+                .append('=')
+                .append(encodedValue);
+        return result.toString();
+    }
+
+    /**
+     * ByteArrayOutputStream whose ASCII content becomes a String without an intermediate copy
+     */
+    private static final class AsciiBuffer extends ByteArrayOutputStream {
+
+        AsciiBuffer(int size) {
+            super(size);
+        }
+
+        int capacity() {
+            return this.buf.length;
+        }
+
+        String toAsciiString() {
+            return new String(this.buf, 0, this.count, StandardCharsets.US_ASCII);
+        }
+    }
+}
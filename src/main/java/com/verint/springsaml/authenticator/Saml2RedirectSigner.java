@@ -0,0 +1,158 @@
+package com.verint.springsaml.authenticator;
+
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.UriUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Signs HTTP-Redirect binding AuthnRequests (SAMLRequest, RelayState and SigAlg query parameters).
+ * The signing key is resolved once per registration and signing credential, and each key keeps a small pool of
+ * {@link Signature} objects that are already initialized for signing, so no OpenSAML credential,
+ * signing parameters resolver or JCA lookup is created per request. Registrations are handed out as a new copy
+ * per request, so a key is reused while the registration's signing credential is equal, and replaced once the
+ * credentials have been rotated.
+ * Produces the same query string and signature as OpenSamlAuthenticationRequestFactory
+ */
+public final class Saml2RedirectSigner {
+
+    static final String SIG_ALG = SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256;
+
+    private static final String JCA_ALGORITHM = "SHA256withRSA";
+
+    private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    // Signing keys by registrationId
+    private final ConcurrentMap<String, SigningKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Sign the redirect query parameters for the given registration
+     *
+     * @param samlRequest the deflated and Base64-encoded SAMLRequest (not URL-encoded)
+     * @param relayState the RelayState, may be null
+     * @return the SigAlg URI and the Base64-encoded signature
+     */
+    public SignedQuery sign(RelyingPartyRegistration registration, String samlRequest, String relayState) {
+        SigningKey key = resolveKey(registration);
+        String queryString = queryString(samlRequest, relayState);
+        byte[] rawSignature = key.sign(queryString.getBytes(StandardCharsets.UTF_8));
+        return new SignedQuery(SIG_ALG, Base64.getEncoder().encodeToString(rawSignature));
+    }
+
+    private SigningKey resolveKey(RelyingPartyRegistration registration) {
+        Saml2X509Credential credential = resolveCredential(registration);
+        SigningKey key = this.keys.get(registration.getRegistrationId());
+        if (key == null || !key.matches(credential)) {
+            key = new SigningKey(credential);
+            this.keys.put(registration.getRegistrationId(), key);
+        }
+        return key;
+    }
+
+    /**
+     * Same selection as the OpenSAML signing parameters resolver with RSA-SHA256 as the only algorithm:
+     * the first signing credential with an RSA key
+     */
+    private static Saml2X509Credential resolveCredential(RelyingPartyRegistration registration) {
+        for (Saml2X509Credential credential : registration.getSigningX509Credentials()) {
+            PrivateKey privateKey = credential.getPrivateKey();
+            if (privateKey != null && "RSA".equals(privateKey.getAlgorithm())) {
+                return credential;
+            }
+        }
+        throw new Saml2Exception("No RSA signing credential found for registration " + registration.getRegistrationId());
+    }
+
+    private static String queryString(String samlRequest, String relayState) {
+        StringBuilder query = new StringBuilder(samlRequest.length() + 128);
+        query.append("SAMLRequest=").append(UriUtils.encode(samlRequest, StandardCharsets.ISO_8859_1));
+        if (StringUtils.hasText(relayState)) {
+            query.append("&RelayState=").append(UriUtils.encode(relayState, StandardCharsets.ISO_8859_1));
+        }
+        query.append("&SigAlg=").append(UriUtils.encode(SIG_ALG, StandardCharsets.ISO_8859_1));
+        return query.toString();
+    }
+
+    /**
+     * SigAlg and Signature query parameter values
+     */
+    public static final class SignedQuery {
+
+        private final String sigAlg;
+        private final String signature;
+
+        SignedQuery(String sigAlg, String signature) {
+            this.sigAlg = sigAlg;
+            this.signature = signature;
+        }
+
+        public String getSigAlg() {
+            return this.sigAlg;
+        }
+
+        public String getSignature() {
+            return this.signature;
+        }
+    }
+
+    private static final class SigningKey {
+
+        private final PrivateKey privateKey;
+        private final X509Certificate certificate;
+        private final BlockingQueue<Signature> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+        SigningKey(Saml2X509Credential credential) {
+            this.privateKey = credential.getPrivateKey();
+            this.certificate = credential.getCertificate();
+            // fail fast on an unusable key and seed the pool
+            this.pool.offer(newSignature());
+        }
+
+        /**
+         * Whether this key signs with the given credential; registration copies share the credential instances,
+         * so this is usually an identity check
+         */
+        boolean matches(Saml2X509Credential credential) {
+            return this.privateKey.equals(credential.getPrivateKey()) && this.certificate.equals(credential.getCertificate());
+        }
+
+        byte[] sign(byte[] data) {
+            Signature signature = this.pool.poll();
+            if (signature == null) {
+                signature = newSignature();
+            }
+            try {
+                signature.update(data);
+                // sign() resets the object to the state right after initSign, so it can go back to the pool
+                byte[] result = signature.sign();
+                this.pool.offer(signature);
+                return result;
+            } catch (GeneralSecurityException ex) {
+                throw new Saml2Exception(ex);
+            }
+        }
+
+        private Signature newSignature() {
+            try {
+                Signature signature = Signature.getInstance(JCA_ALGORITHM);
+                signature.initSign(this.privateKey);
+                return signature;
+            } catch (GeneralSecurityException ex) {
+                throw new Saml2Exception(ex);
+            }
+        }
+    }
+}
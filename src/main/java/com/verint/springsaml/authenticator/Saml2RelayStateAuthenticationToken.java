@@ -0,0 +1,52 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Saml2AuthenticationToken that also carries the RelayState posted with the SAML Response, and what else the
+ * provider needs from the request, so it never has to reach back into a request it may run after
+ */
+public class Saml2RelayStateAuthenticationToken extends Saml2AuthenticationToken {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String relayState;
+    private final String diagnosticsHeader;
+    private final transient BooleanSupplier abandoned;
+
+    public Saml2RelayStateAuthenticationToken(RelyingPartyRegistration relyingPartyRegistration, String saml2Response,
+                                              String relayState) {
+        this(relyingPartyRegistration, saml2Response, relayState, null, null);
+    }
+
+    /**
+     * @param diagnosticsHeader the value of the request's diagnostics header, if any
+     * @param abandoned whether nobody waits for the outcome any more, or null
+     */
+    public Saml2RelayStateAuthenticationToken(RelyingPartyRegistration relyingPartyRegistration, String saml2Response,
+                                              String relayState, String diagnosticsHeader, BooleanSupplier abandoned) {
+        super(relyingPartyRegistration, saml2Response);
+        this.relayState = relayState;
+        this.diagnosticsHeader = diagnosticsHeader;
+        this.abandoned = abandoned;
+    }
+
+    public String getRelayState() {
+        return this.relayState;
+    }
+
+    public String getDiagnosticsHeader() {
+        return this.diagnosticsHeader;
+    }
+
+    /**
+     * Whether the request has already been answered without this token's outcome, e.g. after the async ACS
+     * filter timed out. Its assertions must then not be marked as used, so the user can retry with them
+     */
+    public boolean isAbandoned() {
+        return this.abandoned != null && this.abandoned.getAsBoolean();
+    }
+}
@@ -0,0 +1,242 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.security.saml2.provider.service.metadata.OpenSamlMetadataResolver;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrationRepository;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IdP and SP metadata fetched and rendered at build time and bundled with the application, so a new node with
+ * an empty metadata cache directory serves its registrations right away instead of waiting for every IdP.
+ * The layout is that of the cache directory, plus the SP metadata:
+ * <ul>
+ * <li>{registrationId}.xml and .properties, the IdP metadata and its validators as
+ * {@link RefreshingRelyingPartyRegistrationRepository} persists them; they seed the cache directory and are
+ * revalidated in the background like any other snapshot</li>
+ * <li>{registrationId}-sp.xml, the SP metadata, served until the registration it was rendered from changes. Not
+ * written for registrations with templated entity ID or ACS location, e.g. the default {baseUrl} ones of tenant and
+ * aggregate registrations, as their metadata depends on the host of each request</li>
+ * <li>index.properties, listing the registrations and the fingerprints of their SP metadata</li>
+ * </ul>
+ * {@link #main} writes a snapshot with the application's own configuration; the startup build profile runs it
+ */
+public class Saml2StartupSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(Saml2StartupSnapshot.class);
+
+    private static final String INDEX = "index.properties";
+
+    private static final long FETCH_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final Resource directory;
+    private final Properties index;
+    private final Set<String> registrationIds;
+
+    private Saml2StartupSnapshot(Resource directory, Properties index) {
+        this.directory = directory;
+        this.index = index;
+        this.registrationIds = Collections.unmodifiableSet(StringUtils.commaDelimitedListToSet(index.getProperty("registrations", "")));
+    }
+
+    /**
+     * @param location the snapshot directory, e.g. classpath:saml-snapshot/; no location or no index there
+     * gives an empty snapshot
+     */
+    public static Saml2StartupSnapshot load(String location) {
+        if (!StringUtils.hasText(location)) {
+            return new Saml2StartupSnapshot(null, new Properties());
+        }
+        Resource directory = new DefaultResourceLoader().getResource(location.endsWith("/") ? location : location + "/");
+        Properties index = new Properties();
+        try {
+            Resource file = directory.createRelative(INDEX);
+            if (file.exists()) {
+                try (InputStream in = file.getInputStream()) {
+                    index.load(in);
+                }
+                logger.info("Using SAML startup snapshot {} created {} with registrations {}", location,
+                        index.getProperty("created"), index.getProperty("registrations"));
+            }
+        } catch (IOException ex) {
+            logger.warn("Ignoring unreadable SAML startup snapshot {}: {}", location, ex.toString());
+            index.clear();
+        }
+        return new Saml2StartupSnapshot(directory, index);
+    }
+
+    public Set<String> getRegistrationIds() {
+        return this.registrationIds;
+    }
+
+    /**
+     * Copy a registration's IdP metadata into the cache directory, when it was fetched from the same location
+     *
+     * @return whether the cache directory was seeded
+     */
+    public boolean seed(String registrationId, String location, Path cacheDirectory) {
+        if (!this.registrationIds.contains(registrationId)) {
+            return false;
+        }
+        try {
+            byte[] state = read(registrationId + ".properties");
+            Properties properties = new Properties();
+            if (state != null) {
+                properties.load(new ByteArrayInputStream(state));
+            }
+            if (!location.equals(properties.getProperty("location"))) {
+                logger.info("Not seeding registration {}: the startup snapshot was fetched from {}, not {}",
+                        registrationId, properties.getProperty("location"), location);
+                return false;
+            }
+            byte[] metadata = read(registrationId + ".xml");
+            if (metadata == null) {
+                return false;
+            }
+            PrivateFiles.write(cacheDirectory.resolve(registrationId + ".properties"), state);
+            PrivateFiles.write(cacheDirectory.resolve(registrationId + ".xml"), metadata);
+            return true;
+        } catch (IOException ex) {
+            logger.warn("Cannot seed registration {} from the startup snapshot: {}", registrationId, ex.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Hand the SP metadata rendered at build time to the resolver, for every registration it still matches
+     *
+     * @return the number of registrations preloaded
+     */
+    public int preloadSpMetadata(CachingSaml2MetadataResolver resolver, RelyingPartyRegistrationRepository registrations) {
+        int preloaded = 0;
+        for (String registrationId : this.registrationIds) {
+            RelyingPartyRegistration registration = registrations.findByRegistrationId(registrationId);
+            String fingerprint = this.index.getProperty(registrationId + ".sp-fingerprint");
+            if (registration == null || fingerprint == null) {
+                continue;
+            }
+            try {
+                byte[] xml = read(registrationId + "-sp.xml");
+                if (xml != null && resolver.preload(registration, new String(xml, StandardCharsets.UTF_8), fingerprint)) {
+                    preloaded++;
+                }
+            } catch (IOException ex) {
+                logger.warn("Cannot read the SP metadata of registration {} from the startup snapshot: {}", registrationId, ex.toString());
+            }
+        }
+        return preloaded;
+    }
+
+    private byte[] read(String name) throws IOException {
+        Resource resource = this.directory.createRelative(name);
+        if (!resource.exists()) {
+            return null;
+        }
+        try (InputStream in = resource.getInputStream()) {
+            return FileCopyUtils.copyToByteArray(in);
+        }
+    }
+
+    /**
+     * Write a snapshot into the directory given as first argument, e.g. target/classes/saml-snapshot; the other
+     * arguments override application properties as on the command line. Starts the application on a random
+     * port, waits until every IdP's metadata has been fetched and renders each registration's SP metadata
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: Saml2StartupSnapshot <output directory> [--property=value ...]");
+            System.exit(2);
+        }
+        Path output = Paths.get(args[0]).toAbsolutePath();
+        FileSystemUtils.deleteRecursively(output);
+        Files.createDirectories(output);
+        List<String> properties = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--saml.metadata.cache-dir=") && !args[i].startsWith("--saml.metadata.snapshot-location=")
+                    && !args[i].startsWith("--server.port=")) {
+                properties.add(args[i]);
+            }
+        }
+        // the repository persists the fetched metadata straight into the snapshot
+        properties.add("--saml.metadata.cache-dir=" + output);
+        properties.add("--saml.metadata.snapshot-location=");
+        properties.add("--server.port=0");
+
+        int status = 0;
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Saml2ExampleServiceProviderApp.class)
+                .run(properties.toArray(new String[0]));
+        try {
+            RefreshingRelyingPartyRegistrationRepository repository =
+                    (RefreshingRelyingPartyRegistrationRepository) context.getBean(RelyingPartyRegistrationRepository.class);
+            Set<String> fetched = awaitFetched(repository);
+            Set<String> missing = new TreeSet<>(repository.getRegistrationIds());
+            missing.removeAll(fetched);
+            if (!missing.isEmpty()) {
+                logger.error("No metadata fetched within {} s for registrations {}", FETCH_TIMEOUT_MILLIS / 1000, missing);
+                status = 1;
+            }
+            Properties index = new Properties();
+            OpenSamlMetadataResolver spMetadata = new OpenSamlMetadataResolver();
+            for (String registrationId : fetched) {
+                RelyingPartyRegistration registration = repository.findByRegistrationId(registrationId);
+                if (CachingSaml2MetadataResolver.isTemplated(registration)) {
+                    logger.info("Not rendering the SP metadata of registration {}: entity ID {} or ACS location {} is resolved per request",
+                            registrationId, registration.getEntityId(), registration.getAssertionConsumerServiceLocation());
+                    continue;
+                }
+                Files.write(output.resolve(registrationId + "-sp.xml"), spMetadata.resolve(registration).getBytes(StandardCharsets.UTF_8));
+                index.setProperty(registrationId + ".sp-fingerprint", CachingSaml2MetadataResolver.fingerprint(registration));
+            }
+            index.setProperty("registrations", StringUtils.collectionToCommaDelimitedString(fetched));
+            index.setProperty("created", Instant.now().toString());
+            try (OutputStream out = Files.newOutputStream(output.resolve(INDEX))) {
+                index.store(out, "SAML startup snapshot");
+            }
+            logger.info("Wrote SAML startup snapshot with registrations {} to {}", fetched, output);
+        } finally {
+            context.close();
+        }
+        System.exit(status);
+    }
+
+    private static Set<String> awaitFetched(RefreshingRelyingPartyRegistrationRepository repository) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + FETCH_TIMEOUT_MILLIS;
+        Set<String> fetched = new LinkedHashSet<>();
+        while (true) {
+            for (String registrationId : repository.getRegistrationIds()) {
+                if (repository.getLastSuccessfulRefresh(registrationId) > 0) {
+                    fetched.add(registrationId);
+                }
+            }
+            if (fetched.size() == repository.getRegistrationIds().size() || System.currentTimeMillis() > deadline) {
+                return fetched;
+            }
+            Thread.sleep(100);
+        }
+    }
+}
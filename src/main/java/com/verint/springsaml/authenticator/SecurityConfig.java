@@ -1,32 +1,56 @@
 package com.verint.springsaml.authenticator;
 
+import org.opensaml.saml.saml2.core.Assertion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.convert.converter.Converter;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.security.authentication.ProviderManager;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
-import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.saml2.provider.service.metadata.OpenSamlMetadataResolver;
-import org.springframework.security.saml2.provider.service.registration.InMemoryRelyingPartyRegistrationRepository;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
 import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrationRepository;
-import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistrations;
 import org.springframework.security.saml2.provider.service.servlet.filter.Saml2WebSsoAuthenticationFilter;
 import org.springframework.security.saml2.provider.service.web.DefaultRelyingPartyRegistrationResolver;
-import org.springframework.security.saml2.provider.service.web.Saml2MetadataFilter;
 import org.springframework.security.web.authentication.LoginUrlAuthenticationEntryPoint;
 import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+import org.springframework.util.StringUtils;
 
 import javax.servlet.http.HttpServletRequest;
-import java.security.cert.X509Certificate;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 @Configuration
 public class SecurityConfig extends WebSecurityConfigurerAdapter {
 
+    private static final Logger logger = LoggerFactory.getLogger(SecurityConfig.class);
+
+    // granted to the users listed in saml.admin-users
+    static final String ADMIN_AUTHORITY = "SAML2_ADMIN";
+
 
     // @Value("${saml.v2.metadata-location}")
     //  private String metadataLocation;
@@ -40,50 +64,167 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
     @Value("${saml.azure.assertionConsumerServiceLocation}")
     private String assertionConsumerServiceLocation;
 
+    @Value("${saml.metadata.cache-dir:${user.home}/.saml/metadata}")
+    private String metadataCacheDir;
+
+    @Value("${saml.metadata.refresh-interval:PT6H}")
+    private Duration metadataRefreshInterval;
+
+    @Value("${saml.metadata.min-refresh-interval:PT1M}")
+    private Duration metadataMinRefreshInterval;
+
+    @Value("${saml.metadata.snapshot-location:}")
+    private String metadataSnapshotLocation;
+
+    @Value("${saml.azure.email-domains:}")
+    private String[] azureEmailDomains;
+
+    @Value("${saml.tenants.location:}")
+    private String tenantsLocation;
+
+    @Value("${saml.metadata.aggregate-location:}")
+    private String aggregateLocation;
+
+    @Value("${saml.metadata.aggregate-parallel:false}")
+    private boolean aggregateParallel;
+
+    @Value("${saml.sp-metadata.gzip-enabled:false}")
+    private boolean spMetadataGzipEnabled;
+
+    @Value("${saml.acs.credential-cache.max-entries:1000}")
+    private int credentialCacheMaxEntries;
+
+    @Value("${saml.acs.credential-cache.ttl:PT1H}")
+    private Duration credentialCacheTtl;
+
+    @Value("${saml.acs.replay-cache.file:}")
+    private String replayCacheFile;
+
+    @Value("${saml.acs.replay-cache.capacity:1048576}")
+    private int replayCacheCapacity;
+
+    @Autowired
+    private LoginHintResolver loginHintResolver;
+
+    @Value("${saml.async.enabled:false}")
+    private boolean asyncEnabled;
+
+    @Value("${saml.async.io-threads:32}")
+    private int asyncIoThreads;
+
+    @Value("${saml.async.cpu-threads:0}")
+    private int asyncCpuThreads;
+
+    @Value("${saml.async.queue-capacity:256}")
+    private int asyncQueueCapacity;
+
+    @Value("${saml.async.acs-timeout:PT30S}")
+    private Duration asyncAcsTimeout;
+
+    // users (NameID, e.g. email) granted the admin authority
+    @Value("${saml.admin-users:}")
+    private String[] adminUsers;
+
+    // the internal port the actuator endpoints are served on; unset when they share the application's port
+    @Value("${management.server.port:-1}")
+    private int managementPort;
+
+    @Value("${saml.diagnostics.admin-addresses:127.0.0.1,::1}")
+    private String[] diagnosticsAdminAddresses;
+
+    @Autowired
+    private Saml2Metrics saml2Metrics;
+
+    @Autowired
+    private Saml2Diagnostics saml2Diagnostics;
+
     @Bean
-    public RelyingPartyRegistrationRepository relyingPartyRegistrationRepository() {
-        System.out.println("BENJAMIN Creating RelyingPartyRegistrationRepository" + metadataUrl);
+    public TenantRegistrationStore tenantRegistrationStore() {
+        return new TenantRegistrationStore();
+    }
 
+    @Bean
+    public RelyingPartyRegistrationRepository relyingPartyRegistrationRepository() throws IOException {
         String registrationID = "azure";
-        System.out.println("BENJAMIN assertionConsumerServiceLocation = " + assertionConsumerServiceLocation + registrationID);
-
-        try {
-
-            RelyingPartyRegistration registration =
-                    RelyingPartyRegistrations
-                            .fromMetadataLocation(metadataUrl)
-                            .registrationId(registrationID)
-                            .entityId(entityId) // for azure
-                            .assertionConsumerServiceLocation(assertionConsumerServiceLocation + registrationID) // tell IdP to send response to here
-                            .build();
-
-
-            Collection<Saml2X509Credential> verificationCredentials = registration.getAssertingPartyDetails().getVerificationX509Credentials();
-            if (verificationCredentials.isEmpty()) {
-                System.out.println("BENJAMIN vefifyMetadataLoading: verification credentials not found");
-            } else {
-                Saml2X509Credential firstCert = verificationCredentials.iterator().next();
-                X509Certificate cert = firstCert.getCertificate();
-                System.out.println("BENJAMIN cert.getSubjectX500Principal().getName() " + cert.getSubjectX500Principal().getName());
-                System.out.println("BENJAMIN cert.getIssuerX500Principal().getName() " + cert.getIssuerX500Principal().getName());
+        logger.info("Creating RelyingPartyRegistrationRepository registration={} metadataUrl={} assertionConsumerServiceLocation={}",
+                registrationID, metadataUrl, assertionConsumerServiceLocation + registrationID);
+
+        TenantRegistrationStore store = tenantRegistrationStore();
+        List<RefreshingRelyingPartyRegistrationRepository.MetadataSource> sources = new ArrayList<>();
+        sources.add(metadataSource(registrationID, metadataUrl));
+        store.registerDomains(registrationID, Arrays.asList(azureEmailDomains));
+
+        // Additional customer tenants, each with its own IdP metadata and email domains
+        if (StringUtils.hasText(tenantsLocation)) {
+            for (TenantDefinition tenant : TenantDefinition.load(new DefaultResourceLoader().getResource(tenantsLocation))) {
+                sources.add(metadataSource(tenant.getRegistrationId(), tenant.getMetadataLocation()));
+                store.registerDomains(tenant.getRegistrationId(), tenant.getEmailDomains());
             }
-            return new InMemoryRelyingPartyRegistrationRepository(registration);
+        }
 
-        } catch (Exception e) {
-            System.out.println("BENJAMIN Creating RelyingPartyRegistrationRepository" + e);
-            return new InMemoryRelyingPartyRegistrationRepository();
+        // Registrations are served from the on-disk snapshot and refreshed in the background,
+        // so neither startup nor request threads wait for the IdP
+        RefreshingRelyingPartyRegistrationRepository repository = new RefreshingRelyingPartyRegistrationRepository(
+                sources, store, Paths.get(metadataCacheDir), metadataRefreshInterval, metadataMinRefreshInterval);
+        repository.setMetrics(saml2Metrics);
+        repository.setStartupSnapshot(saml2StartupSnapshot());
+        if (asyncEnabled) {
+            repository.setFetchExecutor(saml2Executors().getIo());
         }
+        repository.start();
 
+        if (StringUtils.hasText(aggregateLocation)) {
+            ingestAggregate(store);
+        }
+        return repository;
+    }
+
+    /**
+     * Load every IdP of a metadata aggregate into the store on a background thread, in bounded memory.
+     * Aggregate entities keep a registrationId derived from their entityID
+     */
+    private void ingestAggregate(TenantRegistrationStore store) {
+        StreamingMetadataIngester ingester = new StreamingMetadataIngester(
+                StreamingMetadataIngester::defaultRegistrationId,
+                (registrationId, builder) -> builder
+                        .entityId(entityId)
+                        .assertionConsumerServiceLocation(assertionConsumerServiceLocation + registrationId),
+                500);
+        if (aggregateParallel) {
+            ingester.setCertificateExecutor(ForkJoinPool.commonPool(), 4 * ForkJoinPool.getCommonPoolParallelism());
+        }
+        Thread thread = new Thread(() -> {
+            try (InputStream in = new DefaultResourceLoader().getResource(aggregateLocation).getInputStream()) {
+                StreamingMetadataIngester.Result result = ingester.ingest(in, store::putAll);
+                logger.info("Ingested metadata aggregate {}: {}", aggregateLocation, result);
+            } catch (IOException | RuntimeException ex) {
+                logger.error("Failed to ingest metadata aggregate {}", aggregateLocation, ex);
+            }
+        }, "saml-metadata-aggregate");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private RefreshingRelyingPartyRegistrationRepository.MetadataSource metadataSource(String registrationId, String location) {
+        return new RefreshingRelyingPartyRegistrationRepository.MetadataSource(registrationId, location, builder -> builder
+                .entityId(entityId) // for azure
+                // tell IdP to send response to here
+                .assertionConsumerServiceLocation(assertionConsumerServiceLocation + registrationId));
     }
 
     @Override
     protected void configure(HttpSecurity http) throws Exception {
-        System.out.println("BENJAMIN Creating samlSecurityFilterChain");
-        //System.err.println("BENJAMIN Creating samlSecurityFilterChain");
+        logger.debug("Creating SAML security filter chain");
+        OpenSamlBootstrap.await();
         // This will enable the metadata endpoint
         Converter<HttpServletRequest, RelyingPartyRegistration> relyingPartyRegistrationResolver = new DefaultRelyingPartyRegistrationResolver(relyingPartyRegistrationRepository());
 
-        Saml2MetadataFilter filter = new Saml2MetadataFilter(relyingPartyRegistrationResolver, new OpenSamlMetadataResolver());
+        // Serves the marshalled metadata from memory, with ETag/If-None-Match support for pollers
+        CachingSaml2MetadataResolver metadataResolver = new CachingSaml2MetadataResolver(new OpenSamlMetadataResolver());
+        metadataResolver.setGzipEnabled(spMetadataGzipEnabled);
+        // SP metadata rendered at build time, so the first metadata request does not marshal it
+        saml2StartupSnapshot().preloadSpMetadata(metadataResolver, relyingPartyRegistrationRepository());
+        CachingSaml2MetadataFilter filter = new CachingSaml2MetadataFilter(relyingPartyRegistrationResolver, metadataResolver);
 
         // Add the filter before the SAML filter
         http.addFilterBefore(filter, Saml2WebSsoAuthenticationFilter.class);
@@ -93,6 +234,15 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
                 .authorizeRequests()
                 .antMatchers("/login", "/process-email", "success", "/css/**", "/js/**").permitAll()
                 .antMatchers("/saml2/authenticate/**").permitAll()
+                // for load balancers
+                .antMatchers("/actuator/health").permitAll()
+                // the Prometheus scraper reaches the internal management port; elsewhere metrics are for admins only
+                .requestMatchers(onManagementPort("/actuator/prometheus")).permitAll()
+                .antMatchers("/actuator/prometheus").hasAuthority(ADMIN_AUTHORITY)
+                // captured SAML messages hold personal data: admin hosts may read them on the management port, while
+                // changing what is captured, or any access elsewhere, takes an authenticated admin
+                .requestMatchers(onManagementPort("/actuator/saml2diagnostics/**", "GET")).access(adminAddressExpression())
+                .antMatchers("/actuator/saml2diagnostics/**").hasAuthority(ADMIN_AUTHORITY)
                 .anyRequest().authenticated();
         http.csrf()
                 .ignoringAntMatchers("/process-email");
@@ -102,11 +252,98 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
                 .exceptionHandling()
                 .authenticationEntryPoint(new LoginUrlAuthenticationEntryPoint("/login"));
 
+        // Responses are validated with cached verification credentials, timing each stage
+        CachingSaml2AuthenticationProvider authenticationProvider = new CachingSaml2AuthenticationProvider(
+                new VerificationCredentialCache(credentialCacheMaxEntries, credentialCacheTtl), acsTimings());
+        authenticationProvider.setReplayCache(assertionReplayCache());
+        // only stateless mode checks InResponseTo, against the AuthnRequest ID that comes back in the RelayState;
+        // session mode keeps no AuthnRequest state and getTokens() is null
+        authenticationProvider.setRelayStateTokens(loginHintResolver.getTokens());
+        authenticationProvider.setMetrics(saml2Metrics);
+        authenticationProvider.setDiagnostics(saml2Diagnostics);
+        authenticationProvider.setAuthoritiesExtractor(authoritiesExtractor());
+
+        TimedSaml2AuthenticationTokenConverter authenticationConverter =
+                new TimedSaml2AuthenticationTokenConverter(relyingPartyRegistrationResolver, acsTimings());
+        authenticationConverter.setDiagnostics(saml2Diagnostics);
+        ProviderManager authenticationManager = new ProviderManager(authenticationProvider);
+
         //set success handler
         http.saml2Login(saml2 -> saml2
                 .loginProcessingUrl("/saml2/acs/{registrationId}") //setting this is a must for a custom ACS url
+                .authenticationConverter(authenticationConverter)
+                .authenticationManager(authenticationManager)
                 .successHandler(successHandler())
         );
+
+        if (asyncEnabled) {
+            // takes over the ACS endpoint, so the Tomcat thread is released while the Response is read and verified
+            http.apply(new AsyncSaml2AcsConfigurer("/saml2/acs/{registrationId}", authenticationConverter, authenticationManager,
+                    saml2Executors(), successHandler(), new SimpleUrlAuthenticationFailureHandler("/login?error"), asyncAcsTimeout));
+        }
+    }
+
+    private Converter<Assertion, Collection<? extends GrantedAuthority>> authoritiesExtractor() {
+        Set<String> admins = new HashSet<>();
+        for (String user : adminUsers) {
+            if (StringUtils.hasText(user)) {
+                admins.add(user.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        List<GrantedAuthority> userAuthorities = Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER"));
+        List<GrantedAuthority> adminAuthorities = Arrays.asList(new SimpleGrantedAuthority("ROLE_USER"), new SimpleGrantedAuthority(ADMIN_AUTHORITY));
+        return assertion -> admins.contains(assertion.getSubject().getNameID().getValue().toLowerCase(Locale.ROOT))
+                ? adminAuthorities : userAuthorities;
+    }
+
+    private RequestMatcher onManagementPort(String pattern) {
+        return onManagementPort(pattern, null);
+    }
+
+    private RequestMatcher onManagementPort(String pattern, String httpMethod) {
+        AntPathRequestMatcher path = new AntPathRequestMatcher(pattern, httpMethod);
+        return request -> managementPort > 0 && request.getLocalPort() == managementPort && path.matches(request);
+    }
+
+    private String adminAddressExpression() {
+        List<String> expressions = new ArrayList<>();
+        for (String address : diagnosticsAdminAddresses) {
+            if (StringUtils.hasText(address)) {
+                expressions.add("hasIpAddress('" + address.trim() + "')");
+            }
+        }
+        return expressions.isEmpty() ? "denyAll" : String.join(" or ", expressions);
+    }
+
+    @Bean
+    public AssertionReplayCache assertionReplayCache() throws IOException {
+        if (StringUtils.hasText(replayCacheFile)) {
+            // survives restarts and keeps the working set off the heap
+            return new MappedAssertionReplayCache(Paths.get(replayCacheFile), replayCacheCapacity, Clock.systemUTC());
+        }
+        return new StripedAssertionReplayCache();
+    }
+
+    /**
+     * Registrations and SP metadata prepared at build time; empty when the application was built without one
+     */
+    @Bean
+    public Saml2StartupSnapshot saml2StartupSnapshot() {
+        return Saml2StartupSnapshot.load(metadataSnapshotLocation);
+    }
+
+    /**
+     * Pools for the async execution mode; their threads are only started once work arrives
+     */
+    @Bean
+    public Saml2Executors saml2Executors() {
+        int cpuThreads = asyncCpuThreads > 0 ? asyncCpuThreads : Runtime.getRuntime().availableProcessors();
+        return new Saml2Executors(asyncIoThreads, cpuThreads, asyncQueueCapacity);
+    }
+
+    @Bean
+    public Saml2AcsTimings acsTimings() {
+        return new Saml2AcsTimings();
     }
 
     @Bean
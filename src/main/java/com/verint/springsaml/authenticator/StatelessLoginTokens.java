@@ -0,0 +1,232 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.util.Assert;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Tokens that replace the HttpSession on the way into the IdP, so pre-authentication traffic creates no
+ * sessions and any node can serve any step of the login:
+ * <ul>
+ * <li>the login hint token carries the email entered on /login to /saml2/authenticate in a cookie. It is
+ * HMAC-SHA256 signed and, when encryption is enabled, AES-GCM encrypted so the address is not readable</li>
+ * <li>the RelayState token lets the ACS endpoint check InResponseTo without server state. It only proves that
+ * this SP issued the AuthnRequest ID for the registration recently; it is not bound to the browser, as the
+ * SameSite=Lax login hint cookie is not sent with the IdP's cross-site POST. It carries only a timestamp and a MAC
+ * of the ID, which keeps it well within the 80 bytes the SAML bindings allow for RelayState</li>
+ * </ul>
+ * All nodes must share the secret
+ */
+public class StatelessLoginTokens {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatelessLoginTokens.class);
+
+    private static final byte FORMAT_SIGNED = 1;
+    private static final byte FORMAT_ENCRYPTED = 2;
+    private static final int MAC_BYTES = 16;
+    private static final int IV_BYTES = 12;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final ThreadLocal<Mac> mac;
+    private final ThreadLocal<Cipher> cipher = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+    });
+    private final SecretKeySpec encryptionKey;
+    private final boolean encrypt;
+    private final long maxAgeMillis;
+    private final SecureRandom random = new SecureRandom();
+    private Clock clock = Clock.systemUTC();
+
+    /**
+     * @param secret shared secret of at least 32 bytes; the MAC and encryption keys are derived from it
+     * @param encrypt whether the login hint is encrypted as well as signed
+     * @param maxAge how long a token is accepted after it was issued
+     */
+    public StatelessLoginTokens(byte[] secret, boolean encrypt, Duration maxAge) {
+        Assert.isTrue(secret != null && secret.length >= 32, "secret must have at least 32 bytes");
+        Assert.isTrue(!maxAge.isNegative() && !maxAge.isZero(), "maxAge must be positive");
+        SecretKeySpec macKey = new SecretKeySpec(derive(secret, "login-token-mac"), "HmacSHA256");
+        this.encryptionKey = new SecretKeySpec(Arrays.copyOf(derive(secret, "login-token-enc"), 16), "AES");
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(macKey);
+                return mac;
+            } catch (GeneralSecurityException ex) {
+                throw new Saml2Exception(ex);
+            }
+        });
+        this.encrypt = encrypt;
+        this.maxAgeMillis = maxAge.toMillis();
+    }
+
+    /**
+     * Tokens with a random secret, only usable when a single node serves the whole login and in development;
+     * tokens issued before a restart are rejected
+     */
+    public static StatelessLoginTokens withRandomSecret(boolean encrypt, Duration maxAge) {
+        logger.warn("No saml.login-hint.secret configured; login tokens are only valid on this node until it restarts");
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return new StatelessLoginTokens(secret, encrypt, maxAge);
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "clock cannot be null");
+        this.clock = clock;
+    }
+
+    public String encodeLoginHint(String loginHint) {
+        byte[] hint = loginHint.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + hint.length);
+        payload.putLong(this.clock.millis()).put(hint);
+        byte[] body = this.encrypt ? encrypt(payload.array()) : prefix(FORMAT_SIGNED, payload.array());
+        return ENCODER.encodeToString(body) + '.' + ENCODER.encodeToString(mac(body));
+    }
+
+    /**
+     * @return the login hint, or null when the token is malformed, forged or expired
+     */
+    public String decodeLoginHint(String token) {
+        byte[] body = verify(token);
+        if (body == null) {
+            return null;
+        }
+        byte[] payload;
+        if (body[0] == FORMAT_ENCRYPTED) {
+            payload = decrypt(body);
+        } else if (body[0] == FORMAT_SIGNED && !this.encrypt) {
+            payload = Arrays.copyOfRange(body, 1, body.length);
+        } else {
+            payload = null;
+        }
+        if (payload == null || payload.length < 8 || isExpired(ByteBuffer.wrap(payload).getLong())) {
+            return null;
+        }
+        return new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * RelayState for an AuthnRequest: issue time and a MAC over registration, AuthnRequest ID and issue time
+     */
+    public String relayStateFor(String registrationId, String authnRequestId) {
+        long issuedAt = this.clock.millis();
+        return Long.toString(issuedAt, 36) + '.' + ENCODER.encodeToString(mac(relayStateInput(registrationId, authnRequestId, issuedAt)));
+    }
+
+    /**
+     * @return whether the RelayState was issued by us, recently, for this registration and AuthnRequest ID
+     */
+    public boolean verifyRelayState(String relayState, String registrationId, String inResponseTo) {
+        if (relayState == null || inResponseTo == null) {
+            return false;
+        }
+        int dot = relayState.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        try {
+            long issuedAt = Long.parseLong(relayState.substring(0, dot), 36);
+            byte[] expected = mac(relayStateInput(registrationId, inResponseTo, issuedAt));
+            return MessageDigest.isEqual(expected, DECODER.decode(relayState.substring(dot + 1))) && !isExpired(issuedAt);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(long issuedAt) {
+        long age = this.clock.millis() - issuedAt;
+        // allow a little clock difference between nodes
+        return age > this.maxAgeMillis || age < -60_000;
+    }
+
+    private byte[] verify(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        try {
+            byte[] body = DECODER.decode(token.substring(0, dot));
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+            return body.length > 1 && MessageDigest.isEqual(mac(body), signature) ? body : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private byte[] encrypt(byte[] payload) {
+        try {
+            byte[] iv = new byte[IV_BYTES];
+            this.random.nextBytes(iv);
+            Cipher cipher = this.cipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new GCMParameterSpec(128, iv));
+            byte[] ciphertext = cipher.doFinal(payload);
+            return ByteBuffer.allocate(1 + IV_BYTES + ciphertext.length).put(FORMAT_ENCRYPTED).put(iv).put(ciphertext).array();
+        } catch (GeneralSecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    private byte[] decrypt(byte[] body) {
+        if (body.length <= 1 + IV_BYTES) {
+            return null;
+        }
+        try {
+            Cipher cipher = this.cipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new GCMParameterSpec(128, body, 1, IV_BYTES));
+            return cipher.doFinal(body, 1 + IV_BYTES, body.length - 1 - IV_BYTES);
+        } catch (GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    private byte[] mac(byte[] data) {
+        Mac mac = this.mac.get();
+        return Arrays.copyOf(mac.doFinal(data), MAC_BYTES);
+    }
+
+    private static byte[] relayStateInput(String registrationId, String authnRequestId, long issuedAt) {
+        return (registrationId + '\n' + authnRequestId + '\n' + issuedAt).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] prefix(byte format, byte[] payload) {
+        byte[] body = new byte[payload.length + 1];
+        body[0] = format;
+        System.arraycopy(payload, 0, body, 1, payload.length);
+        return body;
+    }
+
+    private static byte[] derive(byte[] secret, String purpose) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.Saml2MessageBinding;
+import org.springframework.util.Assert;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Reads large metadata aggregates (EntitiesDescriptor with thousands of EntityDescriptors) with a StAX parser
+ * instead of an OpenSAML DOM. Only what a RelyingPartyRegistration needs is kept per entity: the entityID,
+ * WantAuthnRequestsSigned, the first HTTP-POST or HTTP-Redirect SingleSignOnService and the KeyDescriptor
+ * certificates of the SAML 2.0 IDPSSODescriptor, mapped the same way as
+ * OpenSamlRelyingPartyRegistrationBuilderHttpMessageConverter does for a single EntityDescriptor.
+ * Registrations are handed out in batches, so memory stays bounded by the batch size and not the aggregate size.
+ * Two entities resolving to the same registrationId would replace each other in the store: a repeated entityID is
+ * skipped, and a different entityID gets the registrationId with a suffix derived from its entityID.
+ * The aggregate's own signature is not checked here; fetch it from a trusted location or verify it beforehand.
+ */
+public class StreamingMetadataIngester {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingMetadataIngester.class);
+
+    private static final String MD_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+    private static final String DS_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String SAML2_PROTOCOL = "urn:oasis:names:tc:SAML:2.0:protocol";
+
+    private static final ThreadLocal<CertificateFactory> CERTIFICATE_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (CertificateException ex) {
+            throw new Saml2Exception(ex);
+        }
+    });
+
+    private final Function<String, String> registrationIdResolver;
+    private final BiConsumer<String, RelyingPartyRegistration.Builder> customizer;
+    private final int batchSize;
+    private Executor certificateExecutor;
+    private int maxInFlight = 256;
+
+    /**
+     * @param registrationIdResolver maps an IdP entityID to its registrationId; returning null skips the entity
+     * @param customizer applies the relying party settings for a registrationId (entity ID, ACS location, credentials)
+     * @param batchSize number of registrations handed to the sink at a time
+     */
+    public StreamingMetadataIngester(Function<String, String> registrationIdResolver,
+                                     BiConsumer<String, RelyingPartyRegistration.Builder> customizer, int batchSize) {
+        Assert.notNull(registrationIdResolver, "registrationIdResolver cannot be null");
+        Assert.notNull(customizer, "customizer cannot be null");
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.registrationIdResolver = registrationIdResolver;
+        this.customizer = customizer;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Decode certificates and build registrations on this executor while the parser keeps reading.
+     * At most {@code maxInFlight} entities are pending at once
+     */
+    public void setCertificateExecutor(Executor certificateExecutor, int maxInFlight) {
+        Assert.isTrue(maxInFlight > 0, "maxInFlight must be positive");
+        this.certificateExecutor = certificateExecutor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * A registrationId derived from the entityID, keeping only characters that are safe in a URL path segment
+     */
+    public static String defaultRegistrationId(String entityId) {
+        StringBuilder id = new StringBuilder(entityId.length());
+        for (int i = 0; i < entityId.length(); i++) {
+            char c = entityId.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_';
+            id.append(safe ? c : '_');
+        }
+        return id.toString();
+    }
+
+    /**
+     * Parse the aggregate and pass the registrations to the sink in batches, in document order
+     */
+    public Result ingest(InputStream metadata, Consumer<List<RelyingPartyRegistration>> sink) {
+        Result result = new Result();
+        Deque<CompletableFuture<RelyingPartyRegistration>> pending = new ArrayDeque<>();
+        List<RelyingPartyRegistration> batch = new ArrayList<>(this.batchSize);
+        // registrationId -> entityID of the entities taken so far
+        Map<String, String> registrationIds = new HashMap<>();
+        XMLStreamReader reader = null;
+        try {
+            reader = createReader(metadata);
+            Entity entity = null;
+            boolean inIdp = false;
+            String keyUse = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String ns = reader.getNamespaceURI();
+                    String name = reader.getLocalName();
+                    if (MD_NS.equals(ns) && "EntityDescriptor".equals(name)) {
+                        entity = new Entity(reader.getAttributeValue(null, "entityID"));
+                        result.entities++;
+                    } else if (entity != null && MD_NS.equals(ns) && "IDPSSODescriptor".equals(name)) {
+                        String protocols = reader.getAttributeValue(null, "protocolSupportEnumeration");
+                        // like EntityDescriptor.getIDPSSODescriptor(protocol): the first descriptor supporting SAML 2.0
+                        inIdp = !entity.hasIdp && protocols != null && protocols.contains(SAML2_PROTOCOL);
+                        if (inIdp) {
+                            entity.hasIdp = true;
+                            entity.wantAuthnRequestsSigned = isTrue(reader.getAttributeValue(null, "WantAuthnRequestsSigned"));
+                        }
+                    } else if (inIdp && MD_NS.equals(ns) && "KeyDescriptor".equals(name)) {
+                        String use = reader.getAttributeValue(null, "use");
+                        keyUse = use != null ? use : "";
+                    } else if (inIdp && keyUse != null && DS_NS.equals(ns) && "X509Certificate".equals(name)) {
+                        entity.certificates.add(new String[] { keyUse, reader.getElementText() });
+                    } else if (inIdp && MD_NS.equals(ns) && "SingleSignOnService".equals(name) && entity.ssoLocation == null) {
+                        String binding = reader.getAttributeValue(null, "Binding");
+                        if (Saml2MessageBinding.POST.getUrn().equals(binding)) {
+                            entity.ssoBinding = Saml2MessageBinding.POST;
+                        } else if (Saml2MessageBinding.REDIRECT.getUrn().equals(binding)) {
+                            entity.ssoBinding = Saml2MessageBinding.REDIRECT;
+                        }
+                        if (entity.ssoBinding != null) {
+                            entity.ssoLocation = reader.getAttributeValue(null, "Location");
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String ns = reader.getNamespaceURI();
+                    String name = reader.getLocalName();
+                    if (MD_NS.equals(ns) && "KeyDescriptor".equals(name)) {
+                        keyUse = null;
+                    } else if (MD_NS.equals(ns) && "IDPSSODescriptor".equals(name)) {
+                        inIdp = false;
+                    } else if (entity != null && MD_NS.equals(ns) && "EntityDescriptor".equals(name)) {
+                        submit(entity, registrationIds, pending, result);
+                        entity = null;
+                        drain(pending, batch, sink, result, this.maxInFlight);
+                    }
+                }
+            }
+            drain(pending, batch, sink, result, 0);
+            if (!batch.isEmpty()) {
+                sink.accept(new ArrayList<>(batch));
+            }
+        } catch (XMLStreamException ex) {
+            throw new Saml2Exception("Unable to read metadata aggregate", ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                    logger.debug("Failed to close metadata reader", ex);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void submit(Entity entity, Map<String, String> registrationIds,
+                        Deque<CompletableFuture<RelyingPartyRegistration>> pending, Result result) {
+        String resolved = entity.entityId != null ? this.registrationIdResolver.apply(entity.entityId) : null;
+        // entities without an SSO endpoint or certificate do not claim a registrationId; build() skips them anyway
+        if (resolved == null || !entity.hasIdp || entity.ssoLocation == null || entity.certificates.isEmpty()) {
+            result.skipped++;
+            return;
+        }
+        String registrationId = uniqueRegistrationId(resolved, entity.entityId, registrationIds, result);
+        if (registrationId == null) {
+            result.skipped++;
+            return;
+        }
+        if (this.certificateExecutor != null) {
+            pending.addLast(CompletableFuture.supplyAsync(() -> build(registrationId, entity), this.certificateExecutor));
+        } else {
+            pending.addLast(CompletableFuture.completedFuture(build(registrationId, entity)));
+        }
+    }
+
+    /**
+     * The resolved registrationId, or when an earlier entity of the aggregate took it, the registrationId suffixed
+     * with a digest of the entityID; null for an entityID that appeared before
+     */
+    private static String uniqueRegistrationId(String registrationId, String entityId, Map<String, String> registrationIds,
+                                               Result result) {
+        String owner = registrationIds.putIfAbsent(registrationId, entityId);
+        if (owner == null) {
+            return registrationId;
+        }
+        if (owner.equals(entityId)) {
+            logger.warn("Skipping repeated entity {} in the metadata aggregate", entityId);
+            return null;
+        }
+        String suffixed = registrationId + "-" + digest(entityId);
+        if (registrationIds.putIfAbsent(suffixed, entityId) != null) {
+            logger.warn("Skipping entity {}: registrationId {} and {} are both taken", entityId, registrationId, suffixed);
+            return null;
+        }
+        logger.warn("Entities {} and {} both map to registrationId {}; registering {} as {}",
+                owner, entityId, registrationId, entityId, suffixed);
+        result.renamed++;
+        return suffixed;
+    }
+
+    // the first 8 hex digits of the SHA-256 of the value, stable across runs and document order
+    private static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(8);
+            for (int i = 0; i < 4; i++) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    /**
+     * Move finished registrations into the batch, in order, until no more than {@code keep} remain pending
+     */
+    private void drain(Deque<CompletableFuture<RelyingPartyRegistration>> pending, List<RelyingPartyRegistration> batch,
+                       Consumer<List<RelyingPartyRegistration>> sink, Result result, int keep) {
+        while (pending.size() > keep || (!pending.isEmpty() && pending.peekFirst().isDone())) {
+            RelyingPartyRegistration registration;
+            try {
+                registration = pending.removeFirst().get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new Saml2Exception("Interrupted while ingesting metadata", ex);
+            } catch (ExecutionException ex) {
+                throw new Saml2Exception("Unable to build registration", ex.getCause());
+            }
+            if (registration == null) {
+                result.skipped++;
+                continue;
+            }
+            batch.add(registration);
+            result.registrations++;
+            if (batch.size() >= this.batchSize) {
+                sink.accept(new ArrayList<>(batch));
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Decode the certificates and build the registration; returns null for entities Spring would reject
+     */
+    private RelyingPartyRegistration build(String registrationId, Entity entity) {
+        List<Saml2X509Credential> verification = new ArrayList<>();
+        List<Saml2X509Credential> encryption = new ArrayList<>();
+        for (String[] certificate : entity.certificates) {
+            String use = certificate[0];
+            X509Certificate x509;
+            try {
+                x509 = decode(certificate[1]);
+            } catch (CertificateException | IllegalArgumentException ex) {
+                logger.warn("Skipping unreadable certificate of entity {}: {}", entity.entityId, ex.toString());
+                continue;
+            }
+            if ("signing".equals(use) || use.isEmpty()) {
+                verification.add(Saml2X509Credential.verification(x509));
+            }
+            if ("encryption".equals(use) || use.isEmpty()) {
+                encryption.add(Saml2X509Credential.encryption(x509));
+            }
+        }
+        if (verification.isEmpty() || entity.ssoLocation == null) {
+            logger.debug("Skipping entity {}: no verification certificate or usable SingleSignOnService", entity.entityId);
+            return null;
+        }
+        RelyingPartyRegistration.Builder builder = RelyingPartyRegistration.withRegistrationId(registrationId)
+                .assertingPartyDetails(party -> party
+                        .entityId(entity.entityId)
+                        .wantAuthnRequestsSigned(entity.wantAuthnRequestsSigned)
+                        .verificationX509Credentials(c -> c.addAll(verification))
+                        .encryptionX509Credentials(c -> c.addAll(encryption))
+                        .singleSignOnServiceLocation(entity.ssoLocation)
+                        .singleSignOnServiceBinding(entity.ssoBinding));
+        this.customizer.accept(registrationId, builder);
+        return builder.build();
+    }
+
+    private static X509Certificate decode(String base64) throws CertificateException {
+        byte[] der = Base64.getMimeDecoder().decode(base64.trim());
+        return (X509Certificate) CERTIFICATE_FACTORY.get().generateCertificate(new ByteArrayInputStream(der));
+    }
+
+    private static XMLStreamReader createReader(InputStream metadata) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory.createXMLStreamReader(metadata);
+    }
+
+    private static boolean isTrue(String value) {
+        return "true".equals(value) || "1".equals(value);
+    }
+
+    // Raw values collected for one EntityDescriptor while it is being parsed
+    private static final class Entity {
+
+        final String entityId;
+        final List<String[]> certificates = new ArrayList<>(2);
+        boolean hasIdp;
+        boolean wantAuthnRequestsSigned;
+        String ssoLocation;
+        Saml2MessageBinding ssoBinding;
+
+        Entity(String entityId) {
+            this.entityId = entityId;
+        }
+    }
+
+    /**
+     * Counts for one ingestion run
+     */
+    public static final class Result {
+
+        private int entities;
+        private int registrations;
+        private int skipped;
+        private int renamed;
+
+        public int getEntities() {
+            return this.entities;
+        }
+
+        public int getRegistrations() {
+            return this.registrations;
+        }
+
+        public int getSkipped() {
+            return this.skipped;
+        }
+
+        /**
+         * Registrations whose registrationId was taken by an earlier entity and got a suffix
+         */
+        public int getRenamed() {
+            return this.renamed;
+        }
+
+        @Override
+        public String toString() {
+            return "entities=" + this.entities + ", registrations=" + this.registrations + ", skipped=" + this.skipped
+                    + ", renamed=" + this.renamed;
+        }
+    }
+}
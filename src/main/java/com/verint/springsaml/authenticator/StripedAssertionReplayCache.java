@@ -0,0 +1,138 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.util.Assert;
+
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory {@link AssertionReplayCache}. Keys are spread over lock stripes so concurrent logins rarely contend;
+ * each stripe purges expired keys with a hashed timing wheel of one-second ticks, advanced by the threads that
+ * use the stripe, so expiry costs O(expired keys) and needs no sweeper thread or full scans.
+ * Keys expiring beyond the wheel's span go around the wheel again until they are due
+ */
+public class StripedAssertionReplayCache implements AssertionReplayCache {
+
+    private static final long TICK_MILLIS = 1000;
+
+    // 1024 one-second ticks, a bit over 17 minutes
+    private static final int WHEEL_SIZE = 1024;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final Clock clock;
+
+    public StripedAssertionReplayCache() {
+        this(64, Clock.systemUTC());
+    }
+
+    /**
+     * @param stripes number of lock stripes, rounded up to a power of two
+     */
+    public StripedAssertionReplayCache(int stripes, Clock clock) {
+        Assert.isTrue(stripes > 0, "stripes must be positive");
+        Assert.notNull(clock, "clock cannot be null");
+        int size = Math.max(Integer.highestOneBit(stripes - 1) << 1, 1);
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeMask = size - 1;
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean markUsed(String registrationId, String assertionId, long expiresAtMillis) {
+        String key = registrationId + ' ' + assertionId;
+        long now = this.clock.millis();
+        int hash = key.hashCode();
+        Stripe stripe = this.stripes[(hash ^ (hash >>> 16)) & this.stripeMask];
+        synchronized (stripe) {
+            stripe.advance(now);
+            Long expiresAt = stripe.expiries.get(key);
+            if (expiresAt != null && expiresAt > now) {
+                return false;
+            }
+            if (expiresAtMillis > now) {
+                stripe.expiries.put(key, expiresAtMillis);
+                stripe.schedule(key, expiresAtMillis);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.expiries.size();
+            }
+        }
+        return size;
+    }
+
+    private static final class Stripe {
+
+        final Map<String, Long> expiries = new HashMap<>();
+
+        // slot = tick & (WHEEL_SIZE - 1); every live key sits in the slot of the tick it expires in
+        final ArrayDeque<?>[] wheel = new ArrayDeque<?>[WHEEL_SIZE];
+        long currentTick = -1;
+
+        void advance(long now) {
+            long nowTick = now / TICK_MILLIS;
+            if (this.currentTick < 0 || this.expiries.isEmpty()) {
+                this.currentTick = nowTick;
+                return;
+            }
+            // after a long pause one turn of the wheel visits every slot
+            long last = Math.min(nowTick, this.currentTick + WHEEL_SIZE);
+            for (long tick = this.currentTick + 1; tick <= last; tick++) {
+                drain((int) (tick & (WHEEL_SIZE - 1)), now);
+            }
+            this.currentTick = nowTick;
+        }
+
+        @SuppressWarnings("unchecked")
+        void schedule(String key, long expiresAt) {
+            long tick = Math.max((expiresAt + TICK_MILLIS - 1) / TICK_MILLIS, this.currentTick + 1);
+            int slot = (int) (tick & (WHEEL_SIZE - 1));
+            ArrayDeque<String> keys = (ArrayDeque<String>) this.wheel[slot];
+            if (keys == null) {
+                keys = new ArrayDeque<>();
+                this.wheel[slot] = keys;
+            }
+            keys.add(key);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void drain(int slot, long now) {
+            ArrayDeque<String> keys = (ArrayDeque<String>) this.wheel[slot];
+            if (keys == null || keys.isEmpty()) {
+                return;
+            }
+            int pending = keys.size();
+            for (int i = 0; i < pending; i++) {
+                String key = keys.poll();
+                Long expiresAt = this.expiries.get(key);
+                if (expiresAt == null) {
+                    continue;
+                }
+                if (expiresAt <= now) {
+                    this.expiries.remove(key);
+                } else if (slotOf(expiresAt) == slot) {
+                    // due in a later turn of the wheel
+                    keys.add(key);
+                }
+                // otherwise the key was used again later and already sits in another slot
+            }
+        }
+
+        private static int slotOf(long expiresAt) {
+            return (int) (((expiresAt + TICK_MILLIS - 1) / TICK_MILLIS) & (WHEEL_SIZE - 1));
+        }
+    }
+}
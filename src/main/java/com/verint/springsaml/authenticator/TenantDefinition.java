@@ -0,0 +1,72 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.core.io.Resource;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One customer tenant: its registrationId, where its IdP metadata lives and which email domains it owns.
+ * Tenants are listed one per line in the file configured by saml.tenants.location:
+ * <pre>
+ * # registrationId, metadata location, email domains separated by spaces
+ * contoso, https://login.microsoftonline.com/.../federationmetadata.xml, contoso.com contoso.co.uk
+ * fabrikam, classpath:credentials/v2.xml, fabrikam.com
+ * </pre>
+ */
+public final class TenantDefinition {
+
+    private final String registrationId;
+    private final String metadataLocation;
+    private final List<String> emailDomains;
+
+    public TenantDefinition(String registrationId, String metadataLocation, List<String> emailDomains) {
+        this.registrationId = registrationId;
+        this.metadataLocation = metadataLocation;
+        this.emailDomains = Collections.unmodifiableList(new ArrayList<>(emailDomains));
+    }
+
+    public static List<TenantDefinition> load(Resource resource) throws IOException {
+        List<TenantDefinition> tenants = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // metadata URLs contain no commas, so a plain split is enough
+                String[] columns = line.split(",", 3);
+                if (columns.length < 2 || !StringUtils.hasText(columns[0]) || !StringUtils.hasText(columns[1])) {
+                    throw new IllegalArgumentException("Invalid tenant definition at " + resource.getDescription() + " line " + lineNumber);
+                }
+                List<String> domains = columns.length > 2
+                        ? Arrays.asList(StringUtils.tokenizeToStringArray(columns[2], " \t"))
+                        : Collections.<String>emptyList();
+                tenants.add(new TenantDefinition(columns[0].trim(), columns[1].trim(), domains));
+            }
+        }
+        return tenants;
+    }
+
+    public String getRegistrationId() {
+        return this.registrationId;
+    }
+
+    public String getMetadataLocation() {
+        return this.metadataLocation;
+    }
+
+    public List<String> getEmailDomains() {
+        return this.emailDomains;
+    }
+}
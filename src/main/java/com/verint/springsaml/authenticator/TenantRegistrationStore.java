@@ -0,0 +1,217 @@
+package com.verint.springsaml.authenticator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Registrations for all customer tenants, plus the email-domain index used for home-realm discovery.
+ * Registrations are split over a fixed number of shards; each shard is an immutable HashMap that writers
+ * replace as a whole, so lookups are a plain hash lookup without locks or CAS, and bulk loads copy each shard once.
+ * The domain index maps an email domain (and its subdomains) to a registrationId; a domain belongs to the first
+ * registration that claims it, until that registration is removed.
+ * Caches derived from a registration subscribe with {@link #addRemovalListener} to drop what they hold for it
+ */
+public class TenantRegistrationStore implements Iterable<RelyingPartyRegistration> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TenantRegistrationStore.class);
+
+    private static final int DEFAULT_SHARDS = 64;
+
+    private final Shard[] shards;
+    private final int shardMask;
+
+    // email domain -> registrationId
+    private final Map<String, String> domains = new ConcurrentHashMap<>();
+
+    private final List<Consumer<String>> removalListeners = new CopyOnWriteArrayList<>();
+
+    public TenantRegistrationStore() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param shards number of shards, rounded up to a power of two
+     */
+    public TenantRegistrationStore(int shards) {
+        Assert.isTrue(shards > 0, "shards must be positive");
+        int size = Integer.highestOneBit(shards - 1) << 1;
+        this.shards = new Shard[Math.max(size, 1)];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.shardMask = this.shards.length - 1;
+    }
+
+    public RelyingPartyRegistration findByRegistrationId(String registrationId) {
+        return registrationId == null ? null : shard(registrationId).registrations.get(registrationId);
+    }
+
+    public void put(RelyingPartyRegistration registration) {
+        notifyRemoved(shard(registration.getRegistrationId()).putAll(Collections.singletonList(registration)));
+    }
+
+    /**
+     * Add or replace many registrations, copying every shard at most once
+     */
+    public void putAll(Collection<RelyingPartyRegistration> registrations) {
+        Map<Shard, List<RelyingPartyRegistration>> byShard = new HashMap<>();
+        for (RelyingPartyRegistration registration : registrations) {
+            byShard.computeIfAbsent(shard(registration.getRegistrationId()), shard -> new ArrayList<>()).add(registration);
+        }
+        for (Map.Entry<Shard, List<RelyingPartyRegistration>> entry : byShard.entrySet()) {
+            notifyRemoved(entry.getKey().putAll(entry.getValue()));
+        }
+    }
+
+    public void remove(String registrationId) {
+        if (shard(registrationId).remove(registrationId)) {
+            notifyRemoved(Collections.singletonList(registrationId));
+        }
+        this.domains.values().removeIf(registrationId::equals);
+    }
+
+    /**
+     * Call the listener with the registrationId of every registration that is removed, or replaced by another
+     * instance, once the change is visible to lookups
+     */
+    public void addRemovalListener(Consumer<String> listener) {
+        Assert.notNull(listener, "listener cannot be null");
+        this.removalListeners.add(listener);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : this.shards) {
+            size += shard.registrations.size();
+        }
+        return size;
+    }
+
+    /**
+     * Route the given email domains, and all of their subdomains, to a registration.
+     * A domain another registration has claimed already stays with that registration
+     *
+     * @return the domains that were rejected because another registration owns them
+     */
+    public List<String> registerDomains(String registrationId, Collection<String> emailDomains) {
+        List<String> rejected = new ArrayList<>(0);
+        for (String domain : emailDomains) {
+            String normalized = normalizeDomain(domain);
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            String owner = this.domains.putIfAbsent(normalized, registrationId);
+            if (owner != null && !owner.equals(registrationId)) {
+                logger.warn("Email domain {} is claimed by registrations {} and {}; keeping it routed to {}",
+                        normalized, owner, registrationId, owner);
+                rejected.add(normalized);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Find the registration for an email address by its domain. The most specific registered domain wins,
+     * so a lookup costs one hash probe per domain label, independent of the number of tenants
+     *
+     * @return the registrationId, or null when no tenant claims the domain
+     */
+    public String resolveRegistrationId(String email) {
+        if (email == null) {
+            return null;
+        }
+        int at = email.lastIndexOf('@');
+        String domain = normalizeDomain(email.substring(at + 1));
+        while (!domain.isEmpty()) {
+            String registrationId = this.domains.get(domain);
+            if (registrationId != null) {
+                return registrationId;
+            }
+            int dot = domain.indexOf('.');
+            if (dot < 0) {
+                return null;
+            }
+            domain = domain.substring(dot + 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<RelyingPartyRegistration> iterator() {
+        List<RelyingPartyRegistration> all = new ArrayList<>(size());
+        for (Shard shard : this.shards) {
+            all.addAll(shard.registrations.values());
+        }
+        return Collections.unmodifiableList(all).iterator();
+    }
+
+    private void notifyRemoved(List<String> registrationIds) {
+        for (String registrationId : registrationIds) {
+            for (Consumer<String> listener : this.removalListeners) {
+                try {
+                    listener.accept(registrationId);
+                } catch (RuntimeException ex) {
+                    logger.warn("Removal listener failed for registration {}", registrationId, ex);
+                }
+            }
+        }
+    }
+
+    private Shard shard(String registrationId) {
+        int hash = registrationId.hashCode();
+        return this.shards[(hash ^ (hash >>> 16)) & this.shardMask];
+    }
+
+    private static String normalizeDomain(String domain) {
+        String normalized = domain.trim().toLowerCase(Locale.ROOT);
+        if (normalized.endsWith(".")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private static final class Shard {
+
+        private volatile Map<String, RelyingPartyRegistration> registrations = Collections.emptyMap();
+
+        /**
+         * @return the registrationIds whose previous registration was replaced
+         */
+        synchronized List<String> putAll(List<RelyingPartyRegistration> added) {
+            Map<String, RelyingPartyRegistration> copy = new HashMap<>(this.registrations);
+            List<String> replaced = new ArrayList<>(0);
+            for (RelyingPartyRegistration registration : added) {
+                RelyingPartyRegistration previous = copy.put(registration.getRegistrationId(), registration);
+                if (previous != null && previous != registration) {
+                    replaced.add(registration.getRegistrationId());
+                }
+            }
+            this.registrations = copy;
+            return replaced;
+        }
+
+        synchronized boolean remove(String registrationId) {
+            if (this.registrations.containsKey(registrationId)) {
+                Map<String, RelyingPartyRegistration> copy = new HashMap<>(this.registrations);
+                copy.remove(registrationId);
+                this.registrations = copy;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.http.HttpMethod;
+import org.springframework.security.saml2.core.Saml2Error;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.web.authentication.AuthenticationConverter;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.function.BooleanSupplier;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Decodes the SAMLResponse parameter like Saml2AuthenticationTokenConverter, recording how long that takes,
+ * and keeps the RelayState parameter on the token for the InResponseTo check.
+ * Converting happens in two steps, so the async ACS filter can read the request on the container thread and
+ * decode on a worker: {@link #capture} copies what is needed out of the request, {@link #convert(Parameters, BooleanSupplier)}
+ * no longer touches it
+ */
+public class TimedSaml2AuthenticationTokenConverter implements AuthenticationConverter {
+
+    private static final BooleanSupplier NEVER_ABANDONED = () -> false;
+
+    private final Converter<HttpServletRequest, RelyingPartyRegistration> relyingPartyRegistrationResolver;
+    private final Saml2AcsTimings timings;
+    private Saml2Diagnostics diagnostics;
+
+    public TimedSaml2AuthenticationTokenConverter(Converter<HttpServletRequest, RelyingPartyRegistration> relyingPartyRegistrationResolver,
+                                                  Saml2AcsTimings timings) {
+        this.relyingPartyRegistrationResolver = relyingPartyRegistrationResolver;
+        this.timings = timings;
+    }
+
+    /**
+     * Keep the diagnostics header of the request on the token, for the provider to decide whether to capture
+     * the Response
+     */
+    public void setDiagnostics(Saml2Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    @Override
+    public Saml2RelayStateAuthenticationToken convert(HttpServletRequest request) {
+        Parameters parameters = capture(request);
+        return parameters != null ? convert(parameters, NEVER_ABANDONED) : null;
+    }
+
+    /**
+     * @return the request's registration and SAML parameters, or null when the request has no SAMLResponse or
+     * no registration matches it
+     */
+    public Parameters capture(HttpServletRequest request) {
+        RelyingPartyRegistration registration = this.relyingPartyRegistrationResolver.convert(request);
+        if (registration == null) {
+            return null;
+        }
+        String saml2Response = request.getParameter("SAMLResponse");
+        if (saml2Response == null) {
+            return null;
+        }
+        String diagnosticsHeader = this.diagnostics != null ? request.getHeader(this.diagnostics.getHeaderName()) : null;
+        return new Parameters(registration, saml2Response, request.getParameter("RelayState"),
+                HttpMethod.GET.matches(request.getMethod()), diagnosticsHeader);
+    }
+
+    /**
+     * @param abandoned whether nobody waits for the outcome any more, see {@link Saml2RelayStateAuthenticationToken#isAbandoned()}
+     */
+    public Saml2RelayStateAuthenticationToken convert(Parameters parameters, BooleanSupplier abandoned) {
+        long start = System.nanoTime();
+        byte[] decoded = decode(parameters.saml2Response);
+        String saml2Response = parameters.redirect ? inflate(decoded) : new String(decoded, StandardCharsets.UTF_8);
+        this.timings.record(Saml2AcsTimings.Stage.DECODE, System.nanoTime() - start);
+        return new Saml2RelayStateAuthenticationToken(parameters.registration, saml2Response, parameters.relayState,
+                parameters.diagnosticsHeader, abandoned);
+    }
+
+    private static byte[] decode(String base64) {
+        try {
+            // skips line breaks and other characters outside the alphabet, as Spring's commons-codec decoder does
+            return Base64.getMimeDecoder().decode(base64);
+        } catch (IllegalArgumentException ex) {
+            throw new Saml2AuthenticationException(new Saml2Error(Saml2ErrorCodes.MALFORMED_RESPONSE_DATA,
+                    "Unable to decode the SAMLResponse"), ex);
+        }
+    }
+
+    private static String inflate(byte[] deflated) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InflaterOutputStream inflater = new InflaterOutputStream(out, new Inflater(true))) {
+            inflater.write(deflated);
+        } catch (IOException ex) {
+            throw new Saml2AuthenticationException(new Saml2Error(Saml2ErrorCodes.MALFORMED_RESPONSE_DATA,
+                    "Unable to inflate the SAMLResponse"), ex);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * What converting needs from an ACS request, copied out of it; it stays valid after the container has
+     * recycled the request
+     */
+    public static final class Parameters {
+
+        private final RelyingPartyRegistration registration;
+        private final String saml2Response;
+        private final String relayState;
+        private final boolean redirect;
+        private final String diagnosticsHeader;
+
+        Parameters(RelyingPartyRegistration registration, String saml2Response, String relayState, boolean redirect,
+                   String diagnosticsHeader) {
+            this.registration = registration;
+            this.saml2Response = saml2Response;
+            this.relayState = relayState;
+            this.redirect = redirect;
+            this.diagnosticsHeader = diagnosticsHeader;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.verint.springsaml.authenticator;
+
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The asserting party's verification credentials, resolved once per registration instead of once per
+ * SAML Response: OpenSAML credentials with their parsed PublicKeys, plus the trust decision for every
+ * certificate an IdP has put into a signature's KeyInfo, keyed by the registration and the certificate's
+ * fingerprint. A registration's entry is replaced when its verification certificates change or it expires;
+ * beyond the maximum size expired entries, then arbitrary ones, are dropped. Lookups take no lock
+ */
+public class VerificationCredentialCache {
+
+    // how many unknown certificates are remembered per registration
+    private static final int MAX_UNTRUSTED = 16;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private Clock clock = Clock.systemUTC();
+
+    private final ConcurrentMap<String, Credentials> entries = new ConcurrentHashMap<>();
+
+    public VerificationCredentialCache(int maxEntries, Duration ttl) {
+        Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+        Assert.isTrue(!ttl.isNegative() && !ttl.isZero(), "ttl must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "clock cannot be null");
+        this.clock = clock;
+    }
+
+    /**
+     * The verification credentials of the registration's asserting party; resolve them once per Response and
+     * use them for all of its signatures
+     */
+    public Credentials resolve(RelyingPartyRegistration registration) {
+        long now = this.clock.millis();
+        List<X509Certificate> certificates = certificates(registration);
+        Credentials entry = this.entries.get(registration.getRegistrationId());
+        if (entry != null && entry.expiresAt > now && entry.certificates.equals(certificates)) {
+            return entry;
+        }
+        // concurrent callers may both build an entry; either one is correct
+        entry = new Credentials(registration, certificates, now + this.ttlMillis);
+        if (this.entries.put(registration.getRegistrationId(), entry) == null && this.entries.size() > this.maxEntries) {
+            trim(now);
+        }
+        return entry;
+    }
+
+    public void evict(String registrationId) {
+        this.entries.remove(registrationId);
+    }
+
+    int size() {
+        return this.entries.size();
+    }
+
+    private void trim(long now) {
+        this.entries.values().removeIf(entry -> entry.expiresAt <= now);
+        Iterator<String> registrationIds = this.entries.keySet().iterator();
+        while (this.entries.size() > this.maxEntries && registrationIds.hasNext()) {
+            registrationIds.next();
+            registrationIds.remove();
+        }
+    }
+
+    private static List<X509Certificate> certificates(RelyingPartyRegistration registration) {
+        Collection<Saml2X509Credential> credentials = registration.getAssertingPartyDetails().getVerificationX509Credentials();
+        List<X509Certificate> certificates = new ArrayList<>(credentials.size());
+        for (Saml2X509Credential credential : credentials) {
+            certificates.add(credential.getCertificate());
+        }
+        return certificates;
+    }
+
+    private static boolean encodingEquals(X509Certificate certificate, byte[] der) {
+        try {
+            return MessageDigest.isEqual(certificate.getEncoded(), der);
+        } catch (CertificateEncodingException ex) {
+            return false;
+        }
+    }
+
+    private static String fingerprint(String base64Certificate) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // whitespace inside the element text does not change the certificate
+            for (int i = 0; i < base64Certificate.length(); i++) {
+                char c = base64Certificate.charAt(i);
+                if (!Character.isWhitespace(c)) {
+                    digest.update((byte) c);
+                }
+            }
+            return new String(Base64.getEncoder().encode(digest.digest()), StandardCharsets.US_ASCII);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    /**
+     * One registration's verification credentials
+     */
+    public static final class Credentials {
+
+        private static final Optional<BasicX509Credential> UNTRUSTED = Optional.empty();
+
+        private final List<X509Certificate> certificates;
+        private final List<BasicX509Credential> credentials;
+        private final long expiresAt;
+
+        // certificate fingerprint -> trusted credential, or empty for a certificate that is not trusted
+        private final ConcurrentMap<String, Optional<BasicX509Credential>> decisions = new ConcurrentHashMap<>();
+
+        Credentials(RelyingPartyRegistration registration, List<X509Certificate> certificates, long expiresAt) {
+            this.certificates = certificates;
+            this.expiresAt = expiresAt;
+            List<BasicX509Credential> credentials = new ArrayList<>(certificates.size());
+            for (X509Certificate certificate : certificates) {
+                // same credentials as OpenSamlAuthenticationProvider's trust engine builds for every Response
+                BasicX509Credential credential = new BasicX509Credential(certificate);
+                credential.setUsageType(UsageType.SIGNING);
+                credential.setEntityId(registration.getAssertingPartyDetails().getEntityId());
+                credentials.add(credential);
+            }
+            this.credentials = Collections.unmodifiableList(credentials);
+        }
+
+        /**
+         * The credentials a signature of the asserting party may be verified with
+         */
+        public List<BasicX509Credential> getCredentials() {
+            return this.credentials;
+        }
+
+        /**
+         * The trusted credential matching a certificate from a signature's KeyInfo
+         *
+         * @param base64Certificate the ds:X509Certificate text
+         * @return the matching credential, or null when the certificate is not one of the registration's
+         */
+        public BasicX509Credential getTrustedCredential(String base64Certificate) {
+            String fingerprint = fingerprint(base64Certificate);
+            Optional<BasicX509Credential> decision = this.decisions.get(fingerprint);
+            if (decision != null) {
+                return decision.orElse(null);
+            }
+            BasicX509Credential trusted = null;
+            byte[] der = Base64.getMimeDecoder().decode(base64Certificate.trim());
+            for (BasicX509Credential credential : this.credentials) {
+                if (encodingEquals(credential.getEntityCertificate(), der)) {
+                    trusted = credential;
+                    break;
+                }
+            }
+            // bounded: only the registration's own certificates and a few unknown ones are remembered
+            if (trusted != null) {
+                this.decisions.put(fingerprint, Optional.of(trusted));
+            } else if (this.decisions.size() < this.credentials.size() + MAX_UNTRUSTED) {
+                this.decisions.put(fingerprint, UNTRUSTED);
+            }
+            return trusted;
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package com.verint.springsaml.authenticator;
 
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.XMLObjectBuilderFactory;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.core.xml.schema.XSString;
 import org.opensaml.core.xml.schema.impl.XSStringBuilder;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.core.Extensions;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.impl.AuthnRequestBuilder;
+import org.opensaml.saml.saml2.core.impl.AuthnRequestMarshaller;
 import org.opensaml.saml.saml2.core.impl.ExtensionsBuilder;
+import org.opensaml.saml.saml2.core.impl.IssuerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.convert.converter.Converter;
+import org.springframework.security.saml2.Saml2Exception;
 import org.springframework.security.saml2.provider.service.authentication.OpenSamlAuthenticationRequestFactory;
 import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationRequestContext;
 import org.springframework.security.saml2.provider.service.authentication.Saml2RedirectAuthenticationRequest;
@@ -17,22 +28,112 @@ import org.opensaml.saml.saml2.core.impl.SubjectBuilder;
 import org.opensaml.saml.saml2.core.impl.NameIDBuilder;
 import org.opensaml.saml.saml2.core.NameIDType;
 import javax.xml.namespace.QName;
-import org.springframework.web.context.request.RequestContextHolder;
-import org.springframework.web.context.request.ServletRequestAttributes;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
+import org.springframework.util.Assert;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * Custom SAML Authentication Request Factory that adds Okta-specific login_hint
  * as a query parameter and/or extension to the SAML AuthnRequest
  */
 public class VerintLoginHintAuthenticationRequestFactory extends OpenSamlAuthenticationRequestFactory {
 
-    private static final String DEFAULT_EMAIL = "default.user@example.com";
+    private static final Logger logger = LoggerFactory.getLogger(VerintLoginHintAuthenticationRequestFactory.class);
+
+    private static final String LOGIN_HINT_PARAMETER = "login_hint";
+
+    static final QName LOGIN_HINT_QNAME = new QName("http://schemas.okta.com/extensions/authnrequest", "loginHint", "okta");
+
+    // OpenSAML builders are stateless, so they are resolved once and shared by all request threads
+    private final AuthnRequestBuilder authnRequestBuilder;
+    private final IssuerBuilder issuerBuilder;
+    private final ExtensionsBuilder extensionsBuilder;
+    private final XSStringBuilder stringBuilder;
+    private final AuthnRequestMarshaller marshaller;
+
+    private final OktaLoginHintAuthnRequestConverter authnRequestConverter = new OktaLoginHintAuthnRequestConverter();
+    private final Saml2RedirectSigner redirectSigner = new Saml2RedirectSigner();
+
+    // Precompiled AuthnRequest XML, one per registrationId: the request values a template was compiled for
+    // may come from the Host header, so keying by them would let clients grow the map. Entries of removed or
+    // replaced registrations are dropped through evict
+    private final ConcurrentMap<String, AuthnRequestTemplate> templates = new ConcurrentHashMap<>();
+
+    private volatile Clock clock = Clock.systemUTC();
+    private volatile boolean templateEnabled = false;
+    private volatile LoginHintResolver loginHintResolver = new LoginHintResolver();
+    private volatile Saml2Metrics metrics;
+    private volatile Saml2Diagnostics diagnostics;
 
     public VerintLoginHintAuthenticationRequestFactory() {
         super();
+        // The superclass constructor has already bootstrapped OpenSAML, so the registry is populated here
+        XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
+        this.authnRequestBuilder = (AuthnRequestBuilder) builderFactory.getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        this.issuerBuilder = (IssuerBuilder) builderFactory.getBuilder(Issuer.DEFAULT_ELEMENT_NAME);
+        this.extensionsBuilder = (ExtensionsBuilder) builderFactory.getBuilder(Extensions.DEFAULT_ELEMENT_NAME);
+        this.stringBuilder = (XSStringBuilder) builderFactory.getBuilder(XSString.TYPE_NAME);
+        this.marshaller = (AuthnRequestMarshaller) XMLObjectProviderRegistrySupport.getMarshallerFactory()
+                .getMarshaller(AuthnRequest.DEFAULT_ELEMENT_NAME);
         // Override the default converter to use our custom converter that adds login_hint
-        setAuthenticationRequestContextConverter(new OktaLoginHintAuthnRequestConverter());
+        setAuthenticationRequestContextConverter(this.authnRequestConverter);
+    }
+
+    /**
+     * Render AuthnRequests from a per-registration template instead of building and marshalling
+     * an OpenSAML object tree on every request. Signed POST requests always take the OpenSAML path
+     */
+    public void setTemplateEnabled(boolean templateEnabled) {
+        this.templateEnabled = templateEnabled;
+        if (!templateEnabled) {
+            this.templates.clear();
+        }
+    }
+
+    /**
+     * Drop the compiled template of a registration, e.g. when the registration is removed or replaced
+     */
+    public void evict(String registrationId) {
+        this.templates.remove(registrationId);
+    }
+
+    int templateCount() {
+        return this.templates.size();
+    }
+
+    /**
+     * Where the login hint comes from; in stateless mode the AuthnRequest ID is also bound to the RelayState
+     */
+    public void setLoginHintResolver(LoginHintResolver loginHintResolver) {
+        Assert.notNull(loginHintResolver, "loginHintResolver cannot be null");
+        this.loginHintResolver = loginHintResolver;
+    }
+
+    /**
+     * Record how long building each AuthnRequest takes, per registration and binding
+     */
+    public void setMetrics(Saml2Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Capture the AuthnRequests of logins selected for diagnostics
+     */
+    public void setDiagnostics(Saml2Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Keep our own copy of the clock so the AuthnRequests we build use the same IssueInstant source
+     */
+    @Override
+    public void setClock(Clock clock) {
+        super.setClock(clock);
+        this.clock = clock;
     }
 
     /**
@@ -42,37 +143,34 @@ public class VerintLoginHintAuthenticationRequestFactory extends OpenSamlAuthent
     @Override
     public Saml2RedirectAuthenticationRequest createRedirectAuthenticationRequest(
             Saml2AuthenticationRequestContext context) {
-        // Let the superclass create the basic request first
-        Saml2RedirectAuthenticationRequest request = super.createRedirectAuthenticationRequest(context);
-        String loginHintEmail = getLoginHintFromSession(context);
-        // Get the destination URL and add login_hint parameter
-        String destination = request.getAuthenticationRequestUri();
+        long start = System.nanoTime();
+        LoginHintResolver.State state = this.loginHintResolver.currentState();
+        String loginHintEmail = state.getLoginHint();
+        Saml2RedirectAuthenticationRequest.Builder builder = Saml2RedirectAuthenticationRequest
+                .withAuthenticationRequestContext(context);
+        // The redirect binding signs the query string, not the XML, so the template can be used either way
+        String xml = this.templateEnabled
+                ? renderTemplate(context, state)
+                : serialize(this.authnRequestConverter.convert(context, state));
+        String samlRequest = Saml2RedirectEncoder.deflateAndEncode(xml);
+        builder.samlRequest(samlRequest);
+        // The RelayState is part of the signed query string, so it has to be settled before signing
+        String relayState = relayState(context, state);
+        builder.relayState(relayState);
+        if (wantAuthnRequestsSigned(context)) {
+            Saml2RedirectSigner.SignedQuery signed = this.redirectSigner.sign(
+                    context.getRelyingPartyRegistration(), samlRequest, relayState);
+            builder.sigAlg(signed.getSigAlg()).signature(signed.getSignature());
+        }
+        // Add the URL-encoded login_hint parameter to the destination URL
+        String destination = context.getDestination();
         if (destination != null) {
-            String modifiedDestination;
-            if (destination.contains("?")) {
-                modifiedDestination = destination + "&login_hint=" + loginHintEmail;
-            } else {
-                modifiedDestination = destination + "?login_hint=" + loginHintEmail;
-            }
-
-            // Create a new builder with the modified destination
-            Saml2RedirectAuthenticationRequest.Builder builder = Saml2RedirectAuthenticationRequest
-                    .withAuthenticationRequestContext(context)
-                    .samlRequest(request.getSamlRequest())
-                    .relayState(request.getRelayState())
-                    .authenticationRequestUri(modifiedDestination);
-
-            // Add signature parameters if present
-            if (request.getSignature() != null) {
-                builder.signature(request.getSignature());
-            }
-            if (request.getSigAlg() != null) {
-                builder.sigAlg(request.getSigAlg());
-            }
-
-            return builder.build();
+            builder.authenticationRequestUri(Saml2RedirectEncoder.appendQueryParameter(
+                    destination, LOGIN_HINT_PARAMETER, Saml2RedirectEncoder.encodeQueryValue(loginHintEmail)));
         }
-
+        Saml2RedirectAuthenticationRequest request = builder.build();
+        recordCreated(context, state, Saml2Metrics.Binding.REDIRECT, start);
+        capture(context, state, Saml2Metrics.Binding.REDIRECT, request.getAuthenticationRequestUri(), relayState, xml, null);
         return request;
     }
 
@@ -83,28 +181,112 @@ public class VerintLoginHintAuthenticationRequestFactory extends OpenSamlAuthent
     @Override
     public Saml2PostAuthenticationRequest createPostAuthenticationRequest(
             Saml2AuthenticationRequestContext context) {
-        return super.createPostAuthenticationRequest(context);
+        long start = System.nanoTime();
+        LoginHintResolver.State state = this.loginHintResolver.currentState();
+        String samlRequest;
+        String xml = null;
+        // POST requests are signed inside the XML, which needs the OpenSAML object tree
+        if (this.templateEnabled && !wantAuthnRequestsSigned(context)) {
+            xml = renderTemplate(context, state);
+            samlRequest = samlEncode(xml.getBytes(StandardCharsets.UTF_8));
+        } else {
+            // the converter picks up the same per-request state
+            samlRequest = super.createPostAuthenticationRequest(context).getSamlRequest();
+        }
+        Saml2PostAuthenticationRequest request = Saml2PostAuthenticationRequest.withAuthenticationRequestContext(context)
+                .samlRequest(samlRequest)
+                .relayState(relayState(context, state))
+                .build();
+        recordCreated(context, state, Saml2Metrics.Binding.POST, start);
+        capture(context, state, Saml2Metrics.Binding.POST, request.getAuthenticationRequestUri(), request.getRelayState(),
+                xml, samlRequest);
+        return request;
     }
+
+    private void recordCreated(Saml2AuthenticationRequestContext context, LoginHintResolver.State state,
+                               Saml2Metrics.Binding binding, long start) {
+        long nanos = System.nanoTime() - start;
+        String registrationId = context.getRelyingPartyRegistration().getRegistrationId();
+        Saml2Metrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordAuthnRequest(registrationId, binding, nanos);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Created AuthnRequest [{}] registration={} binding={} destination={} durationMicros={}",
+                    state.getAuthnRequestId(), registrationId, binding, context.getDestination(), nanos / 1000);
+        }
+    }
+
     /**
-     * Helper method to get the login hint email from the session
+     * Keep the AuthnRequest when its login is selected for diagnostics; a signed POST request is only decoded then
      */
-    private String getLoginHintFromSession(Saml2AuthenticationRequestContext context) {
-        try {
-            HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.getRequestAttributes()).getRequest();
-            HttpSession session = request.getSession(false);
-
-            if (session != null) {
-                String email = (String) session.getAttribute("login_hint_email");
-                if (email != null && !email.isEmpty()) {
-                    return email;
-                }
+    private void capture(Saml2AuthenticationRequestContext context, LoginHintResolver.State state, Saml2Metrics.Binding binding,
+                         String destination, String relayState, String xml, String postSamlRequest) {
+        Saml2Diagnostics diagnostics = this.diagnostics;
+        if (diagnostics == null) {
+            return;
+        }
+        String registrationId = context.getRelyingPartyRegistration().getRegistrationId();
+        String reason = diagnostics.captureAuthnRequest(registrationId, state.getAuthnRequestId());
+        if (reason != null) {
+            if (xml == null) {
+                xml = new String(Base64.getDecoder().decode(postSamlRequest), StandardCharsets.UTF_8);
             }
-        } catch (Exception e) {
-            System.err.println("Error getting login hint from session: " + e.getMessage());
+            diagnostics.recordAuthnRequest(reason, registrationId, state.getAuthnRequestId(),
+                    binding.name().toLowerCase(), destination, relayState, xml);
+        }
+    }
+
+    /**
+     * The signed RelayState token in stateless mode, otherwise whatever RelayState the request carried
+     */
+    private String relayState(Saml2AuthenticationRequestContext context, LoginHintResolver.State state) {
+        String relayState = this.loginHintResolver.relayStateFor(
+                context.getRelyingPartyRegistration().getRegistrationId(), state);
+        return relayState != null ? relayState : context.getRelayState();
+    }
+
+    private static boolean wantAuthnRequestsSigned(Saml2AuthenticationRequestContext context) {
+        return context.getRelyingPartyRegistration().getAssertingPartyDetails().getWantAuthnRequestsSigned();
+    }
+
+    /**
+     * Render the AuthnRequest XML from the registration's template, compiling it first if the
+     * registration (or the issuer, destination or ACS URL resolved for it) has changed
+     */
+    String renderTemplate(Saml2AuthenticationRequestContext context, LoginHintResolver.State state) {
+        String registrationId = context.getRelyingPartyRegistration().getRegistrationId();
+        AuthnRequestTemplate template = this.templates.get(registrationId);
+        if (template == null || !template.matches(context)) {
+            template = compileTemplate(context);
+            this.templates.put(registrationId, template);
         }
+        String id = newAuthnRequestId();
+        state.setAuthnRequestId(id);
+        return template.render(id, this.clock.millis(), state.getLoginHint(),
+                Saml2RedirectEncoder.encodeQueryValue(state.getLoginHint()));
+    }
+
+    private AuthnRequestTemplate compileTemplate(Saml2AuthenticationRequestContext context) {
+        AuthnRequest prototype = this.authnRequestConverter.convert(context, new LoginHintResolver.State(AuthnRequestTemplate.LOGIN_HINT_PLACEHOLDER));
+        prototype.setID(AuthnRequestTemplate.ID_PLACEHOLDER);
+        return AuthnRequestTemplate.compile(context, serialize(prototype));
+    }
+
+    String serialize(AuthnRequest authnRequest) {
+        try {
+            return SerializeSupport.nodeToString(this.marshaller.marshall(authnRequest));
+        } catch (MarshallingException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    private static String newAuthnRequestId() {
+        return "ARQ" + UUID.randomUUID().toString().substring(1);
+    }
 
-        // Return default email if session attribute is not available
-        return DEFAULT_EMAIL;
+    private static String samlEncode(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
     }
 
     /**
@@ -114,23 +296,24 @@ public class VerintLoginHintAuthenticationRequestFactory extends OpenSamlAuthent
 
         @Override
         public AuthnRequest convert(Saml2AuthenticationRequestContext context) {
+            return convert(context, loginHintResolver.currentState());
+        }
+
+        AuthnRequest convert(Saml2AuthenticationRequestContext context, LoginHintResolver.State state) {
+            String loginHintEmail = state.getLoginHint();
             // First, let the default factory create a basic AuthnRequest
             AuthnRequest authnRequest = createDefaultAuthnRequest(context);
+            state.setAuthnRequestId(authnRequest.getID());
 
             try {
-                String loginHintEmail = getLoginHintFromSession(context);
                 // Add login_hint as extension element (for Okta)
                 if (authnRequest.getExtensions() == null) {
-                    ExtensionsBuilder extensionsBuilder = new ExtensionsBuilder();
                     Extensions extensions = extensionsBuilder.buildObject();
                     authnRequest.setExtensions(extensions);
                 }
 
                 // Create login_hint extension element with Okta's namespace
-                QName loginHintQName = new QName("http://schemas.okta.com/extensions/authnrequest", "loginHint", "okta");
-                XSStringBuilder stringBuilder = (XSStringBuilder) XMLObjectProviderRegistrySupport.getBuilderFactory()
-                        .getBuilder(XSString.TYPE_NAME);
-                XSString loginHint = stringBuilder.buildObject(loginHintQName, XSString.TYPE_NAME);
+                XSString loginHint = stringBuilder.buildObject(LOGIN_HINT_QNAME, XSString.TYPE_NAME);
                 loginHint.setValue(loginHintEmail);
 
                 // Add the extension to the AuthnRequest
@@ -167,65 +350,38 @@ public class VerintLoginHintAuthenticationRequestFactory extends OpenSamlAuthent
                     }
                 }
 */
-                // Modify destination to include login_hint query parameter
+                // Modify destination to include the URL-encoded login_hint query parameter
                 String destination = authnRequest.getDestination();
                 if (destination != null) {
-                    if (destination.contains("?")) {
-                        authnRequest.setDestination(destination + "&login_hint=" + loginHintEmail);
-                    } else {
-                        authnRequest.setDestination(destination + "?login_hint=" + loginHintEmail);
-                    }
+                    authnRequest.setDestination(Saml2RedirectEncoder.appendQueryParameter(
+                            destination, LOGIN_HINT_PARAMETER, Saml2RedirectEncoder.encodeQueryValue(loginHintEmail)));
                 }
             } catch (Exception e) {
-                System.err.println("Error adding login_hint to SAML request: " + e.getMessage());
+                logger.warn("Could not add login_hint to AuthnRequest [{}] for registration {}",
+                        authnRequest.getID(), context.getRelyingPartyRegistration().getRegistrationId(), e);
             }
 
             return authnRequest;
         }
 
         /**
-         * Helper to create a default AuthnRequest
-         * We need this intermediary method because the OpenSamlAuthenticationRequestFactory's
-         * createAuthnRequest method is private, so we use the converter mechanism instead
+         * Builds the same AuthnRequest as OpenSamlAuthenticationRequestFactory's default converter
+         * (ID, IssueInstant, ForceAuthn, IsPassive, ProtocolBinding, Issuer, Destination and ACS URL),
+         * but from the builders cached on the factory instead of a throwaway factory read through reflection
          */
         private AuthnRequest createDefaultAuthnRequest(Saml2AuthenticationRequestContext context) {
-            // Create a temporary instance of OpenSamlAuthenticationRequestFactory
-            OpenSamlAuthenticationRequestFactory factory = new OpenSamlAuthenticationRequestFactory();
-
-            // Here's the tricky part - we need to get the default converter
-            // We're using a small trick to get the AuthnRequest object generated by the default factory
-            final AuthnRequest[] authnRequestHolder = new AuthnRequest[1];
-
-            // Create a custom converter that will capture the AuthnRequest created by the default factory
-            Converter<Saml2AuthenticationRequestContext, AuthnRequest> captureConverter =
-                    new Converter<Saml2AuthenticationRequestContext, AuthnRequest>() {
-                        @Override
-                        public AuthnRequest convert(Saml2AuthenticationRequestContext ctx) {
-                            // Store the reference to be returned later
-                            // We can't directly access the result, but it will be used internally by the factory
-                            return authnRequestHolder[0];
-                        }
-                    };
-
-            // Now we need to use reflection to get the original converter from the new factory
-            try {
-                java.lang.reflect.Field converterField = OpenSamlAuthenticationRequestFactory.class
-                        .getDeclaredField("authenticationRequestContextConverter");
-                converterField.setAccessible(true);
-
-                // Get the default converter
-                @SuppressWarnings("unchecked")
-                Converter<Saml2AuthenticationRequestContext, AuthnRequest> defaultConverter =
-                        (Converter<Saml2AuthenticationRequestContext, AuthnRequest>) converterField.get(factory);
-
-                // Use the default converter to create the AuthnRequest
-                authnRequestHolder[0] = defaultConverter.convert(context);
-
-                // Return the created AuthnRequest
-                return authnRequestHolder[0];
-            } catch (Exception e) {
-                throw new RuntimeException("Failed to create default AuthnRequest", e);
-            }
+            AuthnRequest auth = authnRequestBuilder.buildObject();
+            auth.setID(newAuthnRequestId());
+            auth.setIssueInstant(new DateTime(clock.millis()));
+            auth.setForceAuthn(Boolean.FALSE);
+            auth.setIsPassive(Boolean.FALSE);
+            auth.setProtocolBinding(context.getRelyingPartyRegistration().getAssertionConsumerServiceBinding().getUrn());
+            Issuer issuer = issuerBuilder.buildObject();
+            issuer.setValue(context.getIssuer());
+            auth.setIssuer(issuer);
+            auth.setDestination(context.getDestination());
+            auth.setAssertionConsumerServiceURL(context.getAssertionConsumerServiceUrl());
+            return auth;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.security.saml2.Saml2Exception;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Both {@link AssertionReplayCache} implementations, on a clock the tests move by hand
+ */
+class AssertionReplayCacheTests {
+
+    private static final String REGISTRATION_ID = "azure";
+
+    @TempDir
+    Path directory;
+
+    private final MutableClock clock = new MutableClock();
+    private final List<MappedAssertionReplayCache> mapped = new ArrayList<>();
+
+    @AfterEach
+    void close() throws IOException {
+        for (MappedAssertionReplayCache cache : this.mapped) {
+            cache.destroy();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"striped", "mapped"})
+    void rejectsAnAssertionUntilItExpires(String implementation) throws IOException {
+        AssertionReplayCache cache = cache(implementation, 1024);
+        long expiresAt = this.clock.millis() + 60_000;
+
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a1", expiresAt)).isTrue();
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a1", expiresAt)).isFalse();
+        // assertion IDs are only unique per IdP
+        assertThat(cache.markUsed("okta", "_a1", expiresAt)).isTrue();
+        assertThat(cache.size()).isEqualTo(2);
+
+        this.clock.advance(59_999);
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a1", expiresAt)).isFalse();
+        this.clock.advance(1);
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a1", expiresAt + 60_000)).isTrue();
+        // already expired assertions are not remembered
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a2", this.clock.millis())).isTrue();
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a2", this.clock.millis() + 60_000)).isTrue();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"striped", "mapped"})
+    void acceptsEachAssertionOnceUnderContention(String implementation) throws Exception {
+        AssertionReplayCache cache = cache(implementation, 1 << 16);
+        int threads = 8;
+        int assertions = 2000;
+        long expiresAt = this.clock.millis() + 60_000;
+        AtomicIntegerArray accepted = new AtomicIntegerArray(assertions);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<Integer> order = new ArrayList<>();
+                for (int i = 0; i < assertions; i++) {
+                    order.add(i);
+                }
+                Collections.shuffle(order);
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i : order) {
+                        if (cache.markUsed(REGISTRATION_ID, "_assertion-" + i, expiresAt)) {
+                            accepted.incrementAndGet(i);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < assertions; i++) {
+            assertThat(accepted.get(i)).as("acceptances of _assertion-%d", i).isEqualTo(1);
+        }
+        assertThat(cache.size()).isEqualTo(assertions);
+    }
+
+    @Test
+    void rejectsNewAssertionsWhileABucketIsFull() throws IOException {
+        // a single bucket of 16 slots
+        MappedAssertionReplayCache cache = mapped(this.directory.resolve("replay.bin"), 16);
+        long expiresAt = this.clock.millis() + 60_000;
+        for (int i = 0; i < 16; i++) {
+            assertThat(cache.markUsed(REGISTRATION_ID, "_assertion-" + i, expiresAt + i)).isTrue();
+        }
+
+        assertThatThrownBy(() -> cache.markUsed(REGISTRATION_ID, "_assertion-16", expiresAt)).isInstanceOf(Saml2Exception.class);
+        // no live entry was given up for it
+        for (int i = 0; i < 16; i++) {
+            assertThat(cache.markUsed(REGISTRATION_ID, "_assertion-" + i, expiresAt)).isFalse();
+        }
+
+        // once the first entry expires its slot takes the next assertion
+        this.clock.advance(60_000);
+        assertThat(cache.markUsed(REGISTRATION_ID, "_assertion-16", expiresAt + 60_000)).isTrue();
+        assertThat(cache.markUsed(REGISTRATION_ID, "_assertion-15", expiresAt)).isFalse();
+        assertThatThrownBy(() -> cache.markUsed(REGISTRATION_ID, "_assertion-17", expiresAt + 60_000)).isInstanceOf(Saml2Exception.class);
+    }
+
+    @Test
+    void remembersUsedAssertionsAcrossARestart() throws IOException {
+        Path file = this.directory.resolve("replay.bin");
+        MappedAssertionReplayCache cache = mapped(file, 1024);
+        long expiresAt = this.clock.millis() + 60_000;
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a1", expiresAt)).isTrue();
+        cache.destroy();
+        this.mapped.remove(cache);
+
+        MappedAssertionReplayCache reopened = mapped(file, 1024);
+
+        assertThat(reopened.markUsed(REGISTRATION_ID, "_a1", expiresAt)).isFalse();
+        assertThat(reopened.markUsed(REGISTRATION_ID, "_a2", expiresAt)).isTrue();
+    }
+
+    @Test
+    void createsTheFileForItsOwnerOnly() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path file = this.directory.resolve("cache").resolve("replay.bin");
+
+        mapped(file, 1024);
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.getParent()))).isEqualTo("rwx------");
+    }
+
+    @Test
+    void startsOverWhenOthersCouldReadTheFile() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path file = this.directory.resolve("replay.bin");
+        MappedAssertionReplayCache cache = mapped(file, 1024);
+        long expiresAt = this.clock.millis() + 60_000;
+        assertThat(cache.markUsed(REGISTRATION_ID, "_a1", expiresAt)).isTrue();
+        cache.destroy();
+        this.mapped.remove(cache);
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+
+        MappedAssertionReplayCache reopened = mapped(file, 1024);
+
+        // the hash key may be known, so the entries hashed with it are dropped
+        assertThat(reopened.markUsed(REGISTRATION_ID, "_a1", expiresAt)).isTrue();
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+    }
+
+    @Test
+    void refusesAFileOthersMayWrite() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path file = this.directory.resolve("replay.bin");
+        Files.createFile(file);
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-rw-rw-"));
+
+        assertThatThrownBy(() -> mapped(file, 1024)).isInstanceOf(IOException.class);
+    }
+
+    private AssertionReplayCache cache(String implementation, int capacity) throws IOException {
+        if ("mapped".equals(implementation)) {
+            return mapped(this.directory.resolve("replay.bin"), capacity);
+        }
+        return new StripedAssertionReplayCache(16, this.clock);
+    }
+
+    private MappedAssertionReplayCache mapped(Path file, int capacity) throws IOException {
+        MappedAssertionReplayCache cache = new MappedAssertionReplayCache(file, capacity, this.clock);
+        this.mapped.add(cache);
+        return cache;
+    }
+}
@@ -0,0 +1,163 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationSuccessHandler;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AsyncSaml2AcsFilterTests {
+
+    private final Saml2Executors executors = new Saml2Executors(1, 1, 10);
+    private final List<Saml2RelayStateAuthenticationToken> tokens = new CopyOnWriteArrayList<>();
+    private final AtomicInteger sessionStrategyCalls = new AtomicInteger();
+    private volatile CountDownLatch authenticating = new CountDownLatch(0);
+
+    private final AsyncSaml2AcsFilter filter = new AsyncSaml2AcsFilter("/saml2/acs/{registrationId}", converter(),
+            token -> {
+                this.tokens.add((Saml2RelayStateAuthenticationToken) token);
+                try {
+                    this.authenticating.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return new TestingAuthenticationToken("jane@acme.com", null, "ROLE_USER");
+            },
+            this.executors, (authentication, request, response) -> this.sessionStrategyCalls.incrementAndGet(),
+            new SimpleUrlAuthenticationSuccessHandler("/home"), new SimpleUrlAuthenticationFailureHandler("/login?error"));
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        this.authenticating.countDown();
+        this.executors.destroy();
+    }
+
+    @Test
+    void authenticatesOnTheWorkersWithParametersCopiedFromTheRequest() throws Exception {
+        MockHttpServletRequest request = acsPost();
+        request.addParameter("RelayState", "state");
+        request.addHeader(Saml2Diagnostics.DEFAULT_HEADER, "secret");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        this.filter.doFilter(request, response, new MockFilterChain());
+        MockFilterChain chain = completeOnDispatch(request, response);
+
+        assertThat(chain.getRequest()).isNull();
+        assertThat(this.tokens).hasSize(1);
+        Saml2RelayStateAuthenticationToken token = this.tokens.get(0);
+        assertThat(token.getSaml2Response()).isEqualTo("<Response/>");
+        assertThat(token.getRelayState()).isEqualTo("state");
+        assertThat(token.getDiagnosticsHeader()).isEqualTo("secret");
+        assertThat(token.isAbandoned()).isFalse();
+        assertThat(this.sessionStrategyCalls.get()).isEqualTo(1);
+        assertThat(response.getRedirectedUrl()).isEqualTo("/home");
+    }
+
+    @Test
+    void abandonsTheWorkLeftAfterATimeout() throws Exception {
+        this.authenticating = new CountDownLatch(1);
+        MockHttpServletRequest first = acsPost();
+        this.filter.doFilter(first, new MockHttpServletResponse(), new MockFilterChain());
+        TestFixtures.await("the first Response is being authenticated", () -> this.tokens.size() == 1);
+        // queued behind the first on the single cpu worker
+        MockHttpServletRequest second = acsPost();
+        MockHttpServletResponse secondResponse = new MockHttpServletResponse();
+        this.filter.doFilter(second, secondResponse, new MockFilterChain());
+
+        timeout(first);
+        timeout(second);
+        MockFilterChain chain = completeOnDispatch(second, secondResponse);
+        this.authenticating.countDown();
+
+        assertThat(chain.getRequest()).isNull();
+        assertThat(secondResponse.getStatus()).isEqualTo(503);
+        // the provider does not mark the assertions of a Response nobody waits for
+        assertThat(this.tokens.get(0).isAbandoned()).isTrue();
+        this.executors.destroy();
+        // the second Response is never authenticated
+        assertThat(this.tokens).hasSize(1);
+        assertThat(this.sessionStrategyCalls.get()).isZero();
+    }
+
+    @Test
+    void passesARequestWithoutSamlResponseDownTheChain() throws Exception {
+        MockHttpServletRequest request = acsPost();
+        request.removeParameter("SAMLResponse");
+        request.addParameter("RelayState", "state");
+        MockFilterChain chain = new MockFilterChain();
+
+        this.filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        assertThat(request.isAsyncStarted()).isFalse();
+        assertThat(chain.getRequest()).isSameAs(request);
+    }
+
+    @Test
+    void leavesOtherRequestsToTheContainerThread() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/saml2/acs/azure");
+        request.setServletPath("/saml2/acs/azure");
+        request.setAsyncSupported(true);
+        MockFilterChain chain = new MockFilterChain();
+
+        this.filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        assertThat(request.isAsyncStarted()).isFalse();
+        assertThat(chain.getRequest()).isSameAs(request);
+    }
+
+    private static TimedSaml2AuthenticationTokenConverter converter() {
+        TimedSaml2AuthenticationTokenConverter converter = new TimedSaml2AuthenticationTokenConverter(
+                request -> TestFixtures.registration("azure", false), new Saml2AcsTimings());
+        converter.setDiagnostics(new Saml2Diagnostics(16, 1024));
+        return converter;
+    }
+
+    private static MockHttpServletRequest acsPost() {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/saml2/acs/azure");
+        request.setServletPath("/saml2/acs/azure");
+        request.setContentType(MediaType.APPLICATION_FORM_URLENCODED_VALUE);
+        request.setAsyncSupported(true);
+        request.addParameter("SAMLResponse", Base64.getEncoder().encodeToString("<Response/>".getBytes(StandardCharsets.UTF_8)));
+        return request;
+    }
+
+    private static void timeout(MockHttpServletRequest request) throws IOException {
+        MockAsyncContext async = (MockAsyncContext) request.getAsyncContext();
+        for (AsyncListener listener : async.getListeners()) {
+            listener.onTimeout(new AsyncEvent(async));
+        }
+    }
+
+    /**
+     * The second half of a request started by the filter: the dispatch back once the workers are done or it timed out
+     */
+    private MockFilterChain completeOnDispatch(MockHttpServletRequest request, MockHttpServletResponse response) throws Exception {
+        MockAsyncContext async = (MockAsyncContext) request.getAsyncContext();
+        assertThat(async).isNotNull();
+        TestFixtures.await("the request is dispatched back", () -> async.getDispatchedPath() != null);
+
+        request.setAsyncStarted(false);
+        request.setDispatcherType(DispatcherType.ASYNC);
+        MockFilterChain chain = new MockFilterChain();
+        this.filter.doFilter(request, response, chain);
+        return chain;
+    }
+}
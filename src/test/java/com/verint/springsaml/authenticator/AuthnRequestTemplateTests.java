@@ -0,0 +1,200 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationRequestContext;
+import org.springframework.security.saml2.provider.service.authentication.Saml2PostAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2RedirectAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.registration.Saml2MessageBinding;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.util.UriUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Signature;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The template renders the same AuthnRequest XML, byte for byte, as marshalling the OpenSAML object tree
+ */
+class AuthnRequestTemplateTests {
+
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2026-01-02T03:04:05.678Z"), ZoneOffset.UTC);
+
+    private static final String[] LOGIN_HINTS = {
+            "user@example.com",
+            "o'brien+test@example.com",
+            "a&b<c>\"d\"@example.com",
+            "üser@exämple.com",
+            ""
+    };
+
+    @AfterEach
+    void resetRequestContext() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    static Stream<Arguments> registrationsAndLoginHints() {
+        List<RelyingPartyRegistration> registrations = new ArrayList<>();
+        for (boolean signed : new boolean[] {false, true}) {
+            registrations.add(TestFixtures.registration("azure", signed));
+            // an ACS binding other than POST, and values that need escaping in the prototype
+            registrations.add(RelyingPartyRegistration.withRelyingPartyRegistration(TestFixtures.registration("okta", signed))
+                    .entityId("https://sp.example.org/metadata?tenant=a&env=\"dev\"")
+                    .assertionConsumerServiceBinding(Saml2MessageBinding.REDIRECT)
+                    .assertingPartyDetails(party -> party.singleSignOnServiceLocation("https://idp.example.org/sso?app=1&x=<y>"))
+                    .build());
+        }
+        List<Arguments> arguments = new ArrayList<>();
+        for (RelyingPartyRegistration registration : registrations) {
+            for (String loginHint : LOGIN_HINTS) {
+                arguments.add(Arguments.of(registration, loginHint));
+            }
+        }
+        return arguments.stream();
+    }
+
+    @ParameterizedTest
+    @MethodSource("registrationsAndLoginHints")
+    void redirectMatchesOpenSaml(RelyingPartyRegistration registration, String loginHint) throws Exception {
+        Saml2RedirectAuthenticationRequest openSaml = redirect(factory(false), registration, loginHint);
+        Saml2RedirectAuthenticationRequest template = redirect(factory(true), registration, loginHint);
+
+        assertThat(withoutId(TestFixtures.inflate(template.getSamlRequest())))
+                .isEqualTo(withoutId(TestFixtures.inflate(openSaml.getSamlRequest())));
+        assertThat(template.getAuthenticationRequestUri()).isEqualTo(openSaml.getAuthenticationRequestUri());
+        assertThat(template.getRelayState()).isEqualTo(openSaml.getRelayState());
+        if (registration.getAssertingPartyDetails().getWantAuthnRequestsSigned()) {
+            assertThat(template.getSigAlg()).isEqualTo(openSaml.getSigAlg());
+            assertThat(verifies(openSaml)).isTrue();
+            assertThat(verifies(template)).isTrue();
+        } else {
+            assertThat(template.getSignature()).isNull();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("registrationsAndLoginHints")
+    void postMatchesOpenSaml(RelyingPartyRegistration registration, String loginHint) {
+        Saml2PostAuthenticationRequest openSaml = post(factory(false), registration, loginHint);
+        Saml2PostAuthenticationRequest template = post(factory(true), registration, loginHint);
+
+        String openSamlXml = decode(openSaml.getSamlRequest());
+        String templateXml = decode(template.getSamlRequest());
+        if (registration.getAssertingPartyDetails().getWantAuthnRequestsSigned()) {
+            // signed POST requests are always marshalled, and the signature covers the random ID
+            assertThat(templateXml).contains("<ds:Signature");
+            openSamlXml = withoutSignature(openSamlXml);
+            templateXml = withoutSignature(templateXml);
+        }
+        assertThat(withoutId(templateXml)).isEqualTo(withoutId(openSamlXml));
+        assertThat(template.getAuthenticationRequestUri()).isEqualTo(openSaml.getAuthenticationRequestUri());
+    }
+
+    @Test
+    void templateMatchesCopiesOfTheSameRegistration() {
+        RelyingPartyRegistration registration = TestFixtures.registration("azure", false);
+        AuthnRequestTemplate template = AuthnRequestTemplate.compile(context(registration),
+                "<AuthnRequest ID=\"" + AuthnRequestTemplate.ID_PLACEHOLDER + "\" IssueInstant=\"x\"/>");
+
+        assertThat(template.matches(context(TestFixtures.copy(registration)))).isTrue();
+        assertThat(template.matches(context(RelyingPartyRegistration.withRelyingPartyRegistration(registration)
+                .assertionConsumerServiceLocation("https://sp.example.org/acs").build()))).isFalse();
+        assertThat(template.matches(context(RelyingPartyRegistration.withRelyingPartyRegistration(registration)
+                .assertingPartyDetails(party -> party.singleSignOnServiceBinding(Saml2MessageBinding.POST)).build()))).isFalse();
+        assertThat(template.matches(context(TestFixtures.registration("azure", true)))).isFalse();
+    }
+
+    @Test
+    void dropsTheTemplatesOfRegistrationsRemovedFromTheStore() {
+        TenantRegistrationStore store = new TenantRegistrationStore(4);
+        VerintLoginHintAuthenticationRequestFactory factory = factory(true);
+        store.addRemovalListener(factory::evict);
+        RelyingPartyRegistration azure = TestFixtures.registration("azure", false);
+        RelyingPartyRegistration okta = TestFixtures.registration("okta", false);
+        store.putAll(Arrays.asList(azure, okta));
+        redirect(factory, azure, "user@example.com");
+        redirect(factory, okta, "user@example.com");
+        assertThat(factory.templateCount()).isEqualTo(2);
+
+        store.remove("okta");
+        assertThat(factory.templateCount()).isEqualTo(1);
+        store.put(TestFixtures.copy(azure));
+        assertThat(factory.templateCount()).isZero();
+    }
+
+    private static VerintLoginHintAuthenticationRequestFactory factory(boolean templateEnabled) {
+        VerintLoginHintAuthenticationRequestFactory factory = new VerintLoginHintAuthenticationRequestFactory();
+        factory.setClock(CLOCK);
+        factory.setTemplateEnabled(templateEnabled);
+        return factory;
+    }
+
+    private static Saml2RedirectAuthenticationRequest redirect(VerintLoginHintAuthenticationRequestFactory factory,
+                                                               RelyingPartyRegistration registration, String loginHint) {
+        startRequest(loginHint);
+        // render twice, so the second request runs from the compiled template
+        factory.createRedirectAuthenticationRequest(context(TestFixtures.copy(registration)));
+        startRequest(loginHint);
+        return factory.createRedirectAuthenticationRequest(context(TestFixtures.copy(registration)));
+    }
+
+    private static Saml2PostAuthenticationRequest post(VerintLoginHintAuthenticationRequestFactory factory,
+                                                       RelyingPartyRegistration registration, String loginHint) {
+        startRequest(loginHint);
+        factory.createPostAuthenticationRequest(context(TestFixtures.copy(registration)));
+        startRequest(loginHint);
+        return factory.createPostAuthenticationRequest(context(TestFixtures.copy(registration)));
+    }
+
+    private static void startRequest(String loginHint) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.getSession().setAttribute(LoginHintResolver.SESSION_ATTRIBUTE, loginHint);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+    }
+
+    private static Saml2AuthenticationRequestContext context(RelyingPartyRegistration registration) {
+        return Saml2AuthenticationRequestContext.builder()
+                .relyingPartyRegistration(registration)
+                .issuer(registration.getEntityId())
+                .assertionConsumerServiceUrl(registration.getAssertionConsumerServiceLocation())
+                .relayState("relay-state")
+                .build();
+    }
+
+    private static boolean verifies(Saml2RedirectAuthenticationRequest request) throws Exception {
+        String query = "SAMLRequest=" + UriUtils.encode(request.getSamlRequest(), StandardCharsets.ISO_8859_1)
+                + "&RelayState=" + UriUtils.encode(request.getRelayState(), StandardCharsets.ISO_8859_1)
+                + "&SigAlg=" + UriUtils.encode(request.getSigAlg(), StandardCharsets.ISO_8859_1);
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(TestFixtures.certificate());
+        signature.update(query.getBytes(StandardCharsets.UTF_8));
+        return signature.verify(Base64.getDecoder().decode(request.getSignature()));
+    }
+
+    private static String decode(String samlRequest) {
+        return new String(Base64.getDecoder().decode(samlRequest), StandardCharsets.UTF_8);
+    }
+
+    private static String withoutId(String xml) {
+        return xml.replaceFirst(" ID=\"[^\"]*\"", " ID=\"id\"");
+    }
+
+    private static String withoutSignature(String xml) {
+        return xml.replaceFirst("(?s)<ds:Signature .*</ds:Signature>", "");
+    }
+}
@@ -0,0 +1,164 @@
+package com.verint.springsaml.authenticator;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Test;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.saml2.core.Saml2ErrorCodes;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationException;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+/**
+ * Responses signed with the test key pair, which the registration trusts as the IdP's
+ */
+class CachingSaml2AuthenticationProviderTests {
+
+    private final CachingSaml2AuthenticationProvider provider = new CachingSaml2AuthenticationProvider(
+            new VerificationCredentialCache(16, Duration.ofMinutes(10)), new Saml2AcsTimings());
+
+    private final RelyingPartyRegistration registration = TestFixtures.registration("azure", false);
+
+    private final MutableClock clock = new MutableClock(Instant.now());
+
+    CachingSaml2AuthenticationProviderTests() {
+        this.provider.setReplayCache(new StripedAssertionReplayCache(16, this.clock));
+        this.provider.setClock(this.clock);
+    }
+
+    @Test
+    void acceptsASignedResponse() {
+        Authentication authentication = this.provider.authenticate(token(response().build()));
+
+        assertThat(authentication.isAuthenticated()).isTrue();
+        assertThat(authentication.getName()).isEqualTo("jane@acme.com");
+    }
+
+    @Test
+    void grantsTheExtractedAuthorities() {
+        this.provider.setAuthoritiesExtractor(assertion -> Collections.singletonList(
+                new SimpleGrantedAuthority(assertion.getSubject().getNameID().getValue())));
+
+        Authentication authentication = this.provider.authenticate(token(response().build()));
+
+        assertThat(authentication.getAuthorities()).extracting(GrantedAuthority::getAuthority).containsExactly("jane@acme.com");
+    }
+
+    @Test
+    void rejectsATamperedAssertion() {
+        String response = response().build().replace("jane@acme.com", "mallory@acme.com");
+
+        assertThat(errorCode(response)).isEqualTo(Saml2ErrorCodes.INVALID_SIGNATURE);
+    }
+
+    @Test
+    void rejectsASignatureByAnotherKey() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        // KeyInfo still names the trusted certificate
+        BasicX509Credential foreign = new BasicX509Credential(TestFixtures.certificate(), generator.generateKeyPair().getPrivate());
+
+        assertThat(errorCode(response(foreign).build())).isEqualTo(Saml2ErrorCodes.INVALID_SIGNATURE);
+    }
+
+    @Test
+    void rejectsAnotherIssuer() {
+        assertThat(errorCode(response().issuer("https://idp.example.org/other").build())).isEqualTo(Saml2ErrorCodes.INVALID_ISSUER);
+    }
+
+    @Test
+    void rejectsAnotherDestination() {
+        String response = response().destination("http://localhost:7001/wfo/saml2/acs/okta").build();
+
+        assertThat(errorCode(response)).isEqualTo(Saml2ErrorCodes.INVALID_DESTINATION);
+    }
+
+    @Test
+    void rejectsAnotherAudience() {
+        assertThat(errorCode(response().audience("https://sp.example.org/other").build())).isEqualTo(Saml2ErrorCodes.INVALID_ASSERTION);
+    }
+
+    @Test
+    void rejectsAnExpiredAssertion() {
+        DateTime now = DateTime.now();
+        // beyond the five minutes of allowed clock skew
+        String response = response().validity(now.minusMinutes(20), now.minusMinutes(10)).build();
+
+        assertThat(errorCode(response)).isEqualTo(Saml2ErrorCodes.INVALID_ASSERTION);
+    }
+
+    @Test
+    void rejectsAnUnsignedAssertionInAnUnsignedResponse() {
+        assertThat(errorCode(response().signAssertion(false).build())).isEqualTo(Saml2ErrorCodes.INVALID_SIGNATURE);
+    }
+
+    @Test
+    void rejectsAReplayedAssertion() {
+        String response = response().build();
+        this.provider.authenticate(token(response));
+
+        assertThat(errorCode(response)).isEqualTo(Saml2ErrorCodes.INVALID_ASSERTION);
+    }
+
+    @Test
+    void doesNotUseUpTheAssertionsOfAnAbandonedResponse() {
+        String response = response().build();
+        Saml2RelayStateAuthenticationToken abandoned = new Saml2RelayStateAuthenticationToken(TestFixtures.copy(this.registration),
+                response, null, null, () -> true);
+
+        Throwable thrown = catchThrowable(() -> this.provider.authenticate(abandoned));
+
+        assertThat(thrown).isInstanceOf(Saml2AuthenticationException.class);
+        // the user's retry with the same Response is not a replay
+        assertThat(this.provider.authenticate(token(response)).isAuthenticated()).isTrue();
+    }
+
+    @Test
+    void remembersAnAssertionWithoutNotOnOrAfterForTheDefaultLifetime() {
+        String response = response().validity(DateTime.now(), null).build();
+        this.provider.authenticate(token(response));
+
+        // ten minutes of default lifetime plus five of clock skew, on the provider's clock
+        this.clock.advance(Duration.ofMinutes(15).toMillis() - 1);
+        assertThat(errorCode(response)).isEqualTo(Saml2ErrorCodes.INVALID_ASSERTION);
+        this.clock.advance(1);
+        assertThat(this.provider.authenticate(token(response)).isAuthenticated()).isTrue();
+    }
+
+    private SignedResponseBuilder response() {
+        return response(new BasicX509Credential(TestFixtures.certificate(), TestFixtures.privateKey()));
+    }
+
+    private SignedResponseBuilder response(BasicX509Credential credential) {
+        DateTime now = DateTime.now();
+        return new SignedResponseBuilder(credential)
+                .issuer(TestFixtures.IDP_ENTITY_ID)
+                .destination(this.registration.getAssertionConsumerServiceLocation())
+                .audience(TestFixtures.SP_ENTITY_ID)
+                .nameId("jane@acme.com")
+                .ids("_" + UUID.randomUUID(), "_" + UUID.randomUUID())
+                .validity(now, now.plusMinutes(5));
+    }
+
+    private Saml2AuthenticationToken token(String response) {
+        return new Saml2AuthenticationToken(TestFixtures.copy(this.registration), response);
+    }
+
+    private String errorCode(String response) {
+        Throwable thrown = catchThrowable(() -> this.provider.authenticate(token(response)));
+        assertThat(thrown).isInstanceOf(Saml2AuthenticationException.class);
+        return ((Saml2AuthenticationException) thrown).getSaml2Error().getErrorCode();
+    }
+}
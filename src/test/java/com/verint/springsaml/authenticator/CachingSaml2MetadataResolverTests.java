@@ -0,0 +1,41 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CachingSaml2MetadataResolverTests {
+
+    private final CachingSaml2MetadataResolver resolver = new CachingSaml2MetadataResolver();
+
+    @Test
+    void servesPreloadedMetadataWhileTheRegistrationIsUnchanged() {
+        RelyingPartyRegistration registration = TestFixtures.registration("azure", false);
+
+        assertThat(this.resolver.preload(registration, "<prerendered/>", CachingSaml2MetadataResolver.fingerprint(registration))).isTrue();
+
+        assertThat(this.resolver.resolve(TestFixtures.copy(registration))).isEqualTo("<prerendered/>");
+    }
+
+    @Test
+    void ignoresMetadataOfAnotherRegistration() {
+        RelyingPartyRegistration registration = TestFixtures.registration("azure", false);
+        RelyingPartyRegistration moved = RelyingPartyRegistration.withRelyingPartyRegistration(registration)
+                .assertionConsumerServiceLocation("https://sp.example.org/saml2/acs/azure").build();
+
+        assertThat(this.resolver.preload(moved, "<prerendered/>", CachingSaml2MetadataResolver.fingerprint(registration))).isFalse();
+        assertThat(this.resolver.resolve(moved)).contains("https://sp.example.org/saml2/acs/azure");
+    }
+
+    @Test
+    void doesNotPreloadTemplatedRegistrations() {
+        RelyingPartyRegistration templated = RelyingPartyRegistration.withRelyingPartyRegistration(TestFixtures.registration("acme", false))
+                .entityId("{baseUrl}/saml2/service-provider-metadata/{registrationId}")
+                .assertionConsumerServiceLocation("{baseUrl}/saml2/acs/{registrationId}").build();
+
+        assertThat(CachingSaml2MetadataResolver.isTemplated(templated)).isTrue();
+        assertThat(CachingSaml2MetadataResolver.isTemplated(TestFixtures.registration("azure", false))).isFalse();
+        assertThat(this.resolver.preload(templated, "<prerendered/>", CachingSaml2MetadataResolver.fingerprint(templated))).isFalse();
+    }
+}
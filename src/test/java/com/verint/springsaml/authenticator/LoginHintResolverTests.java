@@ -0,0 +1,84 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.Cookie;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LoginHintResolverTests {
+
+    private static final Duration MAX_AGE = Duration.ofMinutes(10);
+
+    private final MutableClock clock = new MutableClock();
+
+    private final LoginHintResolver resolver = new LoginHintResolver(tokens(), MAX_AGE);
+
+    @AfterEach
+    void reset() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    void carriesTheLoginHintInASignedCookie() {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        this.resolver.saveLoginHint(new MockHttpServletRequest("POST", "/process-email"), response, "jane@acme.com");
+        String header = response.getHeader("Set-Cookie");
+
+        assertThat(header).contains("HttpOnly", "SameSite=Lax", "Max-Age=600").doesNotContain("jane");
+        assertThat(stateWithCookie(cookieValue(header)).getLoginHint()).isEqualTo("jane@acme.com");
+    }
+
+    @Test
+    void fallsBackToTheDefaultForATamperedOrExpiredCookie() {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        this.resolver.saveLoginHint(new MockHttpServletRequest("POST", "/process-email"), response, "jane@acme.com");
+        String value = cookieValue(response.getHeader("Set-Cookie"));
+        String tampered = (value.charAt(0) == 'A' ? 'B' : 'A') + value.substring(1);
+
+        assertThat(stateWithCookie(tampered).getLoginHint()).isEqualTo(LoginHintResolver.DEFAULT_EMAIL);
+        this.clock.advance(MAX_AGE.toMillis() + 1);
+        assertThat(stateWithCookie(value).getLoginHint()).isEqualTo(LoginHintResolver.DEFAULT_EMAIL);
+    }
+
+    @Test
+    void bindsTheRelayStateToTheAuthnRequestId() {
+        LoginHintResolver.State state = stateWithCookie(null);
+        state.setAuthnRequestId("_request-1");
+
+        String relayState = this.resolver.relayStateFor("azure", state);
+
+        assertThat(this.resolver.getTokens().verifyRelayState(relayState, "azure", "_request-1")).isTrue();
+        assertThat(this.resolver.getTokens().verifyRelayState(relayState, "azure", "_request-2")).isFalse();
+        assertThat(new LoginHintResolver().relayStateFor("azure", state)).isNull();
+    }
+
+    private LoginHintResolver.State stateWithCookie(String value) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/saml2/authenticate/azure");
+        if (value != null) {
+            request.setCookies(new Cookie(LoginHintResolver.COOKIE_NAME, value));
+        }
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        return this.resolver.currentState();
+    }
+
+    private static String cookieValue(String header) {
+        String prefix = LoginHintResolver.COOKIE_NAME + "=";
+        assertThat(header).startsWith(prefix);
+        return header.substring(prefix.length(), header.indexOf(';'));
+    }
+
+    private StatelessLoginTokens tokens() {
+        StatelessLoginTokens tokens = new StatelessLoginTokens("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII),
+                true, MAX_AGE);
+        tokens.setClock(this.clock);
+        return tokens;
+    }
+}
@@ -0,0 +1,47 @@
+package com.verint.springsaml.authenticator;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock the tests move by hand
+ */
+final class MutableClock extends Clock {
+
+    private final AtomicLong millis;
+
+    MutableClock() {
+        this(Instant.parse("2024-01-01T00:00:00Z"));
+    }
+
+    MutableClock(Instant start) {
+        this.millis = new AtomicLong(start.toEpochMilli());
+    }
+
+    void advance(long millis) {
+        this.millis.addAndGet(millis);
+    }
+
+    @Override
+    public long millis() {
+        return this.millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return this;
+    }
+}
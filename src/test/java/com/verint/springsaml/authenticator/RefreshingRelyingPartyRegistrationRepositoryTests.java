@@ -0,0 +1,280 @@
+package com.verint.springsaml.authenticator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Against a local HTTP IdP and a temporary cache directory
+ */
+class RefreshingRelyingPartyRegistrationRepositoryTests {
+
+    private static final String METADATA = TestFixtures.idpMetadata(TestFixtures.IDP_ENTITY_ID, "");
+
+    @TempDir
+    Path cacheDirectory;
+
+    private HttpServer server;
+    private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<>());
+    private volatile int status = 200;
+    private volatile String body = METADATA;
+    private volatile String etag = "\"v1\"";
+
+    private final List<RefreshingRelyingPartyRegistrationRepository> repositories = new ArrayList<>();
+
+    @BeforeEach
+    void startIdp() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/metadata", this::metadata);
+        this.server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        this.repositories.forEach(RefreshingRelyingPartyRegistrationRepository::destroy);
+        this.server.stop(0);
+    }
+
+    @Test
+    void fetchesMetadataAndWritesTheSnapshot() throws Exception {
+        RefreshingRelyingPartyRegistrationRepository repository = start();
+
+        RelyingPartyRegistration registration = awaitRegistration(repository);
+        assertThat(registration.getAssertingPartyDetails().getEntityId()).isEqualTo(TestFixtures.IDP_ENTITY_ID);
+        TestFixtures.await("the snapshot is written", () -> Files.isRegularFile(this.cacheDirectory.resolve("azure.properties")));
+        assertThat(new String(Files.readAllBytes(this.cacheDirectory.resolve("azure.xml")), StandardCharsets.UTF_8)).isEqualTo(METADATA);
+        Properties state = state();
+        assertThat(state.getProperty("etag")).isEqualTo("\"v1\"");
+        assertThat(state.getProperty("location")).isEqualTo(location());
+        // written through temporary files moved into place
+        try (Stream<Path> files = Files.list(this.cacheDirectory)) {
+            assertThat(files.map(path -> path.getFileName().toString())).containsExactlyInAnyOrder("azure.xml", "azure.properties");
+        }
+    }
+
+    @Test
+    void revalidatesWithTheEtagAndKeepsTheRegistrationWhenNotModified() throws Exception {
+        RefreshingRelyingPartyRegistrationRepository repository = start();
+        RelyingPartyRegistration registration = awaitRegistration(repository);
+        // recorded just after the registration is installed
+        TestFixtures.await("the first refresh is done", () -> repository.getLastSuccessfulRefresh("azure") > 0);
+        long firstRefresh = repository.getLastSuccessfulRefresh("azure");
+
+        Thread.sleep(5);
+        refreshUntil(repository, "the metadata is revalidated", () -> repository.getLastSuccessfulRefresh("azure") > firstRefresh);
+
+        assertThat(this.ifNoneMatch).containsExactly(null, "\"v1\"");
+        assertThat(repository.findByRegistrationId("azure")).isSameAs(registration);
+    }
+
+    @Test
+    void replacesTheRegistrationWhenTheMetadataChanged() throws Exception {
+        RefreshingRelyingPartyRegistrationRepository repository = start();
+        awaitRegistration(repository);
+
+        this.body = TestFixtures.idpMetadata("https://idp.example.org/rotated", "");
+        this.etag = "\"v2\"";
+        refreshUntil(repository, "the new metadata is served", () -> "https://idp.example.org/rotated".equals(
+                repository.findByRegistrationId("azure").getAssertingPartyDetails().getEntityId()));
+
+        TestFixtures.await("the snapshot is replaced", () -> "\"v2\"".equals(state().getProperty("etag")));
+        assertThat(new String(Files.readAllBytes(this.cacheDirectory.resolve("azure.xml")), StandardCharsets.UTF_8)).isEqualTo(this.body);
+    }
+
+    @Test
+    void keepsTheLastGoodMetadataWhenARefreshFails() throws Exception {
+        RefreshingRelyingPartyRegistrationRepository repository = start();
+        RelyingPartyRegistration registration = awaitRegistration(repository);
+        TestFixtures.await("the snapshot is written", () -> Files.isRegularFile(this.cacheDirectory.resolve("azure.properties")));
+        byte[] snapshot = Files.readAllBytes(this.cacheDirectory.resolve("azure.xml"));
+
+        this.status = 500;
+        refreshAndAwaitRequest(repository);
+        this.status = 200;
+        this.etag = "\"broken\"";
+        this.body = METADATA.substring(0, METADATA.length() / 2);
+        refreshAndAwaitRequest(repository);
+        // the refresh thread is done once it has rescheduled; give it a moment after answering
+        Thread.sleep(300);
+
+        assertThat(repository.findByRegistrationId("azure")).isSameAs(registration);
+        assertThat(Files.readAllBytes(this.cacheDirectory.resolve("azure.xml"))).isEqualTo(snapshot);
+        assertThat(state().getProperty("etag")).isEqualTo("\"v1\"");
+    }
+
+    @Test
+    void servesTheSnapshotWhileTheIdpIsDown() throws Exception {
+        RefreshingRelyingPartyRegistrationRepository first = start();
+        awaitRegistration(first);
+        TestFixtures.await("the snapshot is written", () -> Files.isRegularFile(this.cacheDirectory.resolve("azure.properties")));
+        first.destroy();
+        this.server.stop(0);
+
+        RefreshingRelyingPartyRegistrationRepository repository = start();
+
+        // loaded by start() itself, before any fetch
+        RelyingPartyRegistration registration = repository.findByRegistrationId("azure");
+        assertThat(registration).isNotNull();
+        assertThat(registration.getAssertingPartyDetails().getEntityId()).isEqualTo(TestFixtures.IDP_ENTITY_ID);
+        assertThat(registration.getAssertingPartyDetails().getSingleSignOnServiceLocation()).isEqualTo(TestFixtures.IDP_SSO_LOCATION);
+    }
+
+    @Test
+    void ignoresASnapshotOthersCanWrite() throws Exception {
+        assumeTrue(Files.getFileAttributeView(this.cacheDirectory, PosixFileAttributeView.class) != null);
+        RefreshingRelyingPartyRegistrationRepository first = start();
+        awaitRegistration(first);
+        TestFixtures.await("the snapshot is written", () -> Files.isRegularFile(this.cacheDirectory.resolve("azure.properties")));
+        first.destroy();
+        this.server.stop(0);
+        Files.setPosixFilePermissions(this.cacheDirectory.resolve("azure.xml"), PosixFilePermissions.fromString("rw-rw-r--"));
+
+        RefreshingRelyingPartyRegistrationRepository repository = start();
+
+        assertThat(repository.findByRegistrationId("azure")).isNull();
+    }
+
+    @Test
+    void neitherReadsNorWritesSnapshotsInADirectoryOthersCanWrite() throws Exception {
+        assumeTrue(Files.getFileAttributeView(this.cacheDirectory, PosixFileAttributeView.class) != null);
+        Files.write(this.cacheDirectory.resolve("azure.xml"), METADATA.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(this.cacheDirectory, PosixFilePermissions.fromString("rwxrwxrwx"));
+
+        RefreshingRelyingPartyRegistrationRepository repository = start();
+
+        // only the metadata fetched from the IdP is served
+        assertThat(repository.findByRegistrationId("azure")).isNull();
+        awaitRegistration(repository);
+        assertThat(this.ifNoneMatch).containsExactly((String) null);
+        assertThat(Files.exists(this.cacheDirectory.resolve("azure.properties"))).isFalse();
+    }
+
+    @Test
+    void createsTheCacheDirectoryForTheOwnerOnly() throws Exception {
+        assumeTrue(Files.getFileAttributeView(this.cacheDirectory, PosixFileAttributeView.class) != null);
+        Path directory = this.cacheDirectory.resolve("nested/metadata");
+        RefreshingRelyingPartyRegistrationRepository repository = new RefreshingRelyingPartyRegistrationRepository(
+                Collections.emptyList(), directory, Duration.ofHours(1), Duration.ofMinutes(1));
+        this.repositories.add(repository);
+
+        repository.start();
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(directory))).isEqualTo("rwx------");
+    }
+
+    @Test
+    void schedulesTheNextRefreshFromCacheDurationAndValidUntil() {
+        RefreshingRelyingPartyRegistrationRepository repository = new RefreshingRelyingPartyRegistrationRepository(
+                Collections.emptyList(), this.cacheDirectory, Duration.ofHours(1), Duration.ofMinutes(1));
+        this.repositories.add(repository);
+
+        assertThat(repository.nextDelayMillis(metadata(""))).isEqualTo(Duration.ofHours(1).toMillis());
+        assertThat(repository.nextDelayMillis(metadata("cacheDuration=\"PT10M\""))).isEqualTo(Duration.ofMinutes(10).toMillis());
+        // never below the minimum interval
+        assertThat(repository.nextDelayMillis(metadata("cacheDuration=\"PT10S\""))).isEqualTo(Duration.ofMinutes(1).toMillis());
+        // half of the time left until validUntil
+        assertThat(repository.nextDelayMillis(metadata("validUntil=\"" + Instant.now().plus(Duration.ofMinutes(40)) + "\"")))
+                .isBetween(Duration.ofMinutes(19).toMillis(), Duration.ofMinutes(20).toMillis());
+        assertThat(repository.nextDelayMillis(metadata("validUntil=\"" + Instant.now().plus(Duration.ofHours(4)) + "\"")))
+                .isEqualTo(Duration.ofHours(1).toMillis());
+        assertThat(repository.nextDelayMillis(metadata("cacheDuration=\"PT30M\" validUntil=\""
+                + Instant.now().plus(Duration.ofMinutes(40)) + "\""))).isLessThanOrEqualTo(Duration.ofMinutes(20).toMillis());
+        // expired metadata is refetched as soon as allowed
+        assertThat(repository.nextDelayMillis(metadata("validUntil=\"" + Instant.now().minus(Duration.ofHours(1)) + "\"")))
+                .isEqualTo(Duration.ofMinutes(1).toMillis());
+    }
+
+    private RefreshingRelyingPartyRegistrationRepository start() {
+        RefreshingRelyingPartyRegistrationRepository repository = new RefreshingRelyingPartyRegistrationRepository(
+                Collections.singletonList(new RefreshingRelyingPartyRegistrationRepository.MetadataSource("azure", location(),
+                        builder -> builder.entityId(TestFixtures.SP_ENTITY_ID))),
+                this.cacheDirectory, Duration.ofHours(1), Duration.ofMinutes(30));
+        this.repositories.add(repository);
+        repository.start();
+        return repository;
+    }
+
+    private static RelyingPartyRegistration awaitRegistration(RefreshingRelyingPartyRegistrationRepository repository)
+            throws InterruptedException {
+        TestFixtures.await("the metadata is fetched", () -> repository.findByRegistrationId("azure") != null);
+        return repository.findByRegistrationId("azure");
+    }
+
+    private void refreshAndAwaitRequest(RefreshingRelyingPartyRegistrationRepository repository) throws InterruptedException {
+        int requests = this.ifNoneMatch.size();
+        refreshUntil(repository, "the IdP is asked again", () -> this.ifNoneMatch.size() > requests);
+    }
+
+    /**
+     * refreshNow does nothing while the previous refresh is still finishing, so ask again until the condition holds
+     */
+    private static void refreshUntil(RefreshingRelyingPartyRegistrationRepository repository, String description,
+            BooleanSupplier condition) throws InterruptedException {
+        TestFixtures.await(description, () -> {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            repository.refreshNow("azure");
+            return false;
+        });
+    }
+
+    private Properties state() {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(this.cacheDirectory.resolve("azure.properties"))) {
+            properties.load(in);
+        } catch (IOException ex) {
+            // not written yet
+        }
+        return properties;
+    }
+
+    private String location() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/metadata";
+    }
+
+    private static byte[] metadata(String rootAttributes) {
+        return TestFixtures.idpMetadata(TestFixtures.IDP_ENTITY_ID, rootAttributes).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void metadata(HttpExchange exchange) throws IOException {
+        String requestEtag = exchange.getRequestHeaders().getFirst("If-None-Match");
+        this.ifNoneMatch.add(requestEtag);
+        if (this.status == 200 && this.etag.equals(requestEtag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] response = this.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("ETag", this.etag);
+        exchange.sendResponseHeaders(this.status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.security.saml2.provider.service.authentication.AbstractSaml2AuthenticationRequest;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Saml2RedirectEncoderTests {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2})
+    void encodesLikeSpringForEveryPaddingLength(int remainder) throws Exception {
+        for (int size : new int[] {64, 1024, 16 * 1024}) {
+            String xml = xmlDeflatingTo(remainder, size);
+
+            String encoded = Saml2RedirectEncoder.deflateAndEncode(xml);
+
+            assertThat(Base64.getDecoder().decode(encoded).length % 3).isEqualTo(remainder);
+            assertThat(TestFixtures.inflate(encoded)).isEqualTo(xml);
+            assertThat(encoded).isEqualTo(springEncode(xml));
+        }
+    }
+
+    /**
+     * An AuthnRequest-like document of about this size, with random content so larger ones span several
+     * deflate chunks, whose deflated length leaves this remainder modulo 3
+     */
+    private static String xmlDeflatingTo(int remainder, int size) {
+        Random random = new Random(size * 3 + remainder);
+        for (int attempt = 0; ; attempt++) {
+            StringBuilder xml = new StringBuilder("<samlp:AuthnRequest ID=\"_").append(attempt).append("\">");
+            while (xml.length() < size) {
+                xml.append(Long.toString(random.nextLong(), 36));
+            }
+            String candidate = xml.append("</samlp:AuthnRequest>").toString();
+            if (deflatedLength(candidate) % 3 == remainder) {
+                return candidate;
+            }
+        }
+    }
+
+    private static int deflatedLength(String xml) {
+        Deflater deflater = new Deflater(Deflater.DEFLATED, true);
+        try {
+            deflater.setInput(xml.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            byte[] buffer = new byte[4096];
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(buffer);
+            }
+            return length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Saml2Utils.samlEncode(Saml2Utils.samlDeflate(xml)), which Spring uses for the redirect binding; the class is
+     * package-private
+     */
+    private static String springEncode(String xml) throws Exception {
+        Class<?> utils = Class.forName(AbstractSaml2AuthenticationRequest.class.getPackage().getName() + ".Saml2Utils");
+        Method deflate = utils.getDeclaredMethod("samlDeflate", String.class);
+        Method encode = utils.getDeclaredMethod("samlEncode", byte[].class);
+        deflate.setAccessible(true);
+        encode.setAccessible(true);
+        return (String) encode.invoke(null, deflate.invoke(null, xml));
+    }
+}
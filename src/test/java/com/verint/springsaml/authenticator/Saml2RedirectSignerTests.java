@@ -0,0 +1,65 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.authentication.OpenSamlAuthenticationRequestFactory;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationRequestContext;
+import org.springframework.security.saml2.provider.service.authentication.Saml2RedirectAuthenticationRequest;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.web.util.UriUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Saml2RedirectSignerTests {
+
+    private final Saml2RedirectSigner signer = new Saml2RedirectSigner();
+
+    @Test
+    void signsLikeOpenSaml() {
+        RelyingPartyRegistration registration = TestFixtures.registration("azure", true);
+        Saml2RedirectAuthenticationRequest expected = new OpenSamlAuthenticationRequestFactory()
+                .createRedirectAuthenticationRequest(Saml2AuthenticationRequestContext.builder()
+                        .relyingPartyRegistration(registration)
+                        .issuer(registration.getEntityId())
+                        .assertionConsumerServiceUrl(registration.getAssertionConsumerServiceLocation())
+                        .relayState("relay-state")
+                        .build());
+
+        // RSA PKCS#1 v1.5 signatures are deterministic
+        for (int i = 0; i < 3; i++) {
+            Saml2RedirectSigner.SignedQuery signed = this.signer.sign(TestFixtures.copy(registration),
+                    expected.getSamlRequest(), expected.getRelayState());
+            assertThat(signed.getSigAlg()).isEqualTo(expected.getSigAlg());
+            assertThat(signed.getSignature()).isEqualTo(expected.getSignature());
+        }
+    }
+
+    @Test
+    void picksUpRotatedSigningCredentials() throws Exception {
+        RelyingPartyRegistration registration = TestFixtures.registration("azure", true);
+        this.signer.sign(registration, "request", null);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair rotated = generator.generateKeyPair();
+        RelyingPartyRegistration rotatedRegistration = RelyingPartyRegistration.withRelyingPartyRegistration(registration)
+                .signingX509Credentials(c -> {
+                    c.clear();
+                    c.add(Saml2X509Credential.signing(rotated.getPrivate(), TestFixtures.certificate()));
+                })
+                .build();
+        Saml2RedirectSigner.SignedQuery signed = this.signer.sign(rotatedRegistration, "request", null);
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initVerify(rotated.getPublic());
+        signature.update(("SAMLRequest=request&SigAlg=" + UriUtils.encode(signed.getSigAlg(), StandardCharsets.ISO_8859_1))
+                .getBytes(StandardCharsets.UTF_8));
+        assertThat(signature.verify(Base64.getDecoder().decode(signed.getSignature()))).isTrue();
+    }
+}
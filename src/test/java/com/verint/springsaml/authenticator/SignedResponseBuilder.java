@@ -0,0 +1,229 @@
+package com.verint.springsaml.authenticator;
+
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import org.joda.time.DateTime;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.common.SignableSAMLObject;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AttributeValue;
+import org.opensaml.saml.saml2.core.Audience;
+import org.opensaml.saml.saml2.core.AudienceRestriction;
+import org.opensaml.saml.saml2.core.AuthnContext;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.Subject;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml.saml2.core.SubjectConfirmationData;
+import org.opensaml.security.SecurityException;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.keyinfo.impl.X509KeyInfoGeneratorFactory;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.xmlsec.signature.support.Signer;
+import org.springframework.security.saml2.Saml2Exception;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Builds a successful SAML Response with one bearer assertion, the way Azure AD and Auth0 send them: the
+ * assertion is signed with RSA-SHA256 and carries the certificate in KeyInfo, the Response envelope optionally
+ * too. Used by the provider tests, for the checked-in benchmark fixtures and by the mock IdP of the load test
+ */
+final class SignedResponseBuilder {
+
+    private final BasicX509Credential credential;
+    private String issuer;
+    private String destination;
+    private String audience;
+    private String inResponseTo;
+    private String nameId;
+    private String responseId;
+    private String assertionId;
+    private DateTime issueInstant;
+    private DateTime notOnOrAfter;
+    private boolean signResponse;
+    private boolean signAssertion = true;
+
+    SignedResponseBuilder(BasicX509Credential credential) {
+        this.credential = credential;
+    }
+
+    SignedResponseBuilder issuer(String issuer) {
+        this.issuer = issuer;
+        return this;
+    }
+
+    /**
+     * The ACS location, used as Destination and as the bearer confirmation's Recipient
+     */
+    SignedResponseBuilder destination(String destination) {
+        this.destination = destination;
+        return this;
+    }
+
+    SignedResponseBuilder audience(String audience) {
+        this.audience = audience;
+        return this;
+    }
+
+    SignedResponseBuilder inResponseTo(String inResponseTo) {
+        this.inResponseTo = inResponseTo;
+        return this;
+    }
+
+    SignedResponseBuilder nameId(String nameId) {
+        this.nameId = nameId;
+        return this;
+    }
+
+    SignedResponseBuilder ids(String responseId, String assertionId) {
+        this.responseId = responseId;
+        this.assertionId = assertionId;
+        return this;
+    }
+
+    SignedResponseBuilder validity(DateTime issueInstant, DateTime notOnOrAfter) {
+        this.issueInstant = issueInstant;
+        this.notOnOrAfter = notOnOrAfter;
+        return this;
+    }
+
+    SignedResponseBuilder signResponse(boolean signResponse) {
+        this.signResponse = signResponse;
+        return this;
+    }
+
+    SignedResponseBuilder signAssertion(boolean signAssertion) {
+        this.signAssertion = signAssertion;
+        return this;
+    }
+
+    /**
+     * @return the signed Response XML
+     */
+    String build() {
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID(this.responseId);
+        response.setIssueInstant(this.issueInstant);
+        response.setDestination(this.destination);
+        response.setInResponseTo(this.inResponseTo);
+        response.setIssuer(issuer());
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(StatusCode.SUCCESS);
+        status.setStatusCode(statusCode);
+        response.setStatus(status);
+
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID(this.assertionId);
+        assertion.setIssueInstant(this.issueInstant);
+        assertion.setIssuer(issuer());
+
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        NameID name = build(NameID.DEFAULT_ELEMENT_NAME);
+        name.setFormat(NameID.EMAIL);
+        name.setValue(this.nameId);
+        subject.setNameID(name);
+        SubjectConfirmation confirmation = build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        confirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+        SubjectConfirmationData confirmationData = build(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+        confirmationData.setRecipient(this.destination);
+        confirmationData.setInResponseTo(this.inResponseTo);
+        confirmationData.setNotOnOrAfter(this.notOnOrAfter);
+        confirmation.setSubjectConfirmationData(confirmationData);
+        subject.getSubjectConfirmations().add(confirmation);
+        assertion.setSubject(subject);
+
+        Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(this.issueInstant);
+        conditions.setNotOnOrAfter(this.notOnOrAfter);
+        AudienceRestriction audienceRestriction = build(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+        Audience audienceElement = build(Audience.DEFAULT_ELEMENT_NAME);
+        audienceElement.setAudienceURI(this.audience);
+        audienceRestriction.getAudiences().add(audienceElement);
+        conditions.getAudienceRestrictions().add(audienceRestriction);
+        assertion.setConditions(conditions);
+
+        AuthnStatement authnStatement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(this.issueInstant);
+        AuthnContext authnContext = build(AuthnContext.DEFAULT_ELEMENT_NAME);
+        AuthnContextClassRef classRef = build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        classRef.setAuthnContextClassRef(AuthnContext.PPT_AUTHN_CTX);
+        authnContext.setAuthnContextClassRef(classRef);
+        authnStatement.setAuthnContext(authnContext);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        AttributeStatement attributeStatement = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        attributeStatement.getAttributes().add(attribute("http://schemas.xmlsoap.org/ws/2005/05/identity/claims/emailaddress", this.nameId));
+        attributeStatement.getAttributes().add(attribute("http://schemas.xmlsoap.org/ws/2005/05/identity/claims/givenname", "Load"));
+        attributeStatement.getAttributes().add(attribute("http://schemas.xmlsoap.org/ws/2005/05/identity/claims/surname", "Test"));
+        assertion.getAttributeStatements().add(attributeStatement);
+        response.getAssertions().add(assertion);
+
+        Signature assertionSignature = this.signAssertion ? signature(assertion) : null;
+        Signature responseSignature = this.signResponse ? signature(response) : null;
+        try {
+            XMLObjectSupport.marshall(response);
+            // the enclosed assertion first, so the Response signature covers the signed assertion
+            if (assertionSignature != null) {
+                Signer.signObject(assertionSignature);
+            }
+            if (responseSignature != null) {
+                Signer.signObject(responseSignature);
+            }
+        } catch (MarshallingException | SignatureException ex) {
+            throw new Saml2Exception(ex);
+        }
+        return SerializeSupport.nodeToString(response.getDOM());
+    }
+
+    private Signature signature(SignableSAMLObject object) {
+        Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(this.credential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        X509KeyInfoGeneratorFactory keyInfoFactory = new X509KeyInfoGeneratorFactory();
+        keyInfoFactory.setEmitEntityCertificate(true);
+        try {
+            signature.setKeyInfo(keyInfoFactory.newInstance().generate(this.credential));
+        } catch (SecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+        object.setSignature(signature);
+        return signature;
+    }
+
+    private Issuer issuer() {
+        Issuer element = build(Issuer.DEFAULT_ELEMENT_NAME);
+        element.setValue(this.issuer);
+        return element;
+    }
+
+    private static Attribute attribute(String name, String value) {
+        Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setName(name);
+        XSString attributeValue = (XSString) XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(XSString.TYPE_NAME)
+                .buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+        attributeValue.setValue(value);
+        attribute.getAttributeValues().add(attributeValue);
+        return attribute;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        return (T) XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+}
@@ -0,0 +1,98 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StatelessLoginTokensTests {
+
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Duration MAX_AGE = Duration.ofMinutes(10);
+
+    private final MutableClock clock = new MutableClock();
+
+    private final StatelessLoginTokens tokens = tokens(true);
+
+    @Test
+    void decodesItsOwnLoginHint() {
+        String token = this.tokens.encodeLoginHint("jane@acme.com");
+
+        assertThat(token).doesNotContain("jane");
+        assertThat(this.tokens.decodeLoginHint(token)).isEqualTo("jane@acme.com");
+        assertThat(tokens(false).decodeLoginHint(tokens(false).encodeLoginHint("jane@acme.com"))).isEqualTo("jane@acme.com");
+    }
+
+    @Test
+    void rejectsATamperedLoginHint() {
+        String token = this.tokens.encodeLoginHint("jane@acme.com");
+        int dot = token.indexOf('.');
+        byte[] body = Base64.getUrlDecoder().decode(token.substring(0, dot));
+        body[body.length - 1] ^= 1;
+
+        String tampered = Base64.getUrlEncoder().withoutPadding().encodeToString(body) + token.substring(dot);
+
+        assertThat(this.tokens.decodeLoginHint(tampered)).isNull();
+        assertThat(this.tokens.decodeLoginHint(token.substring(0, dot))).isNull();
+        assertThat(new StatelessLoginTokens(Arrays.copyOf(SECRET, 33), true, MAX_AGE).decodeLoginHint(token)).isNull();
+    }
+
+    @Test
+    void rejectsAnExpiredLoginHint() {
+        String token = this.tokens.encodeLoginHint("jane@acme.com");
+
+        this.clock.advance(MAX_AGE.toMillis());
+        assertThat(this.tokens.decodeLoginHint(token)).isEqualTo("jane@acme.com");
+        this.clock.advance(1);
+        assertThat(this.tokens.decodeLoginHint(token)).isNull();
+    }
+
+    @Test
+    void rejectsAnUnencryptedLoginHintWhenEncrypting() {
+        // correctly signed with the shared secret, but readable by anyone
+        String signedOnly = tokens(false).encodeLoginHint("jane@acme.com");
+
+        assertThat(this.tokens.decodeLoginHint(signedOnly)).isNull();
+    }
+
+    @Test
+    void verifiesTheRelayStateOfItsAuthnRequest() {
+        String relayState = this.tokens.relayStateFor("azure", "_request-1");
+
+        assertThat(relayState.length()).isLessThanOrEqualTo(80);
+        assertThat(this.tokens.verifyRelayState(relayState, "azure", "_request-1")).isTrue();
+    }
+
+    @Test
+    void rejectsTheRelayStateOfAnotherAuthnRequest() {
+        String relayState = this.tokens.relayStateFor("azure", "_request-1");
+
+        assertThat(this.tokens.verifyRelayState(relayState, "azure", "_request-2")).isFalse();
+        assertThat(this.tokens.verifyRelayState(relayState, "okta", "_request-1")).isFalse();
+        assertThat(this.tokens.verifyRelayState(null, "azure", "_request-1")).isFalse();
+        assertThat(this.tokens.verifyRelayState("garbage", "azure", "_request-1")).isFalse();
+    }
+
+    @Test
+    void rejectsATamperedOrExpiredRelayState() {
+        String relayState = this.tokens.relayStateFor("azure", "_request-1");
+        int dot = relayState.indexOf('.');
+        long issuedAt = Long.parseLong(relayState.substring(0, dot), 36);
+
+        // a later issue time does not extend its life
+        assertThat(this.tokens.verifyRelayState(Long.toString(issuedAt + 1, 36) + relayState.substring(dot), "azure", "_request-1")).isFalse();
+        this.clock.advance(MAX_AGE.toMillis() + 1);
+        assertThat(this.tokens.verifyRelayState(relayState, "azure", "_request-1")).isFalse();
+    }
+
+    private StatelessLoginTokens tokens(boolean encrypt) {
+        StatelessLoginTokens tokens = new StatelessLoginTokens(SECRET, encrypt, MAX_AGE);
+        tokens.setClock(this.clock);
+        return tokens;
+    }
+}
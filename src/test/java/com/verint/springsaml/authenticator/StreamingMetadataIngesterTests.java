@@ -0,0 +1,58 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingMetadataIngesterTests {
+
+    @Test
+    void givesEntitiesWithTheSameSanitizedIdDistinctRegistrationIds() {
+        List<RelyingPartyRegistration> registrations = new ArrayList<>();
+        StreamingMetadataIngester.Result result = ingest(registrations,
+                "https://idp.example.org/a", "https://idp.example.org?a", "https://other.example.org");
+
+        assertThat(result.getRegistrations()).isEqualTo(3);
+        assertThat(result.getRenamed()).isEqualTo(1);
+        List<String> registrationIds = registrations.stream().map(RelyingPartyRegistration::getRegistrationId)
+                .collect(Collectors.toList());
+        assertThat(registrationIds).doesNotHaveDuplicates();
+        assertThat(registrationIds.get(0)).isEqualTo("https___idp.example.org_a");
+        assertThat(registrationIds.get(1)).matches("https___idp\\.example\\.org_a-[0-9a-f]{8}");
+        assertThat(registrations.get(1).getAssertingPartyDetails().getEntityId()).isEqualTo("https://idp.example.org?a");
+
+        // the suffix depends on the entityID only
+        List<RelyingPartyRegistration> again = new ArrayList<>();
+        ingest(again, "https://idp.example.org/other", "https://idp.example.org/a", "https://idp.example.org?a");
+        assertThat(again.get(2).getRegistrationId()).isEqualTo(registrationIds.get(1));
+    }
+
+    @Test
+    void skipsARepeatedEntity() {
+        List<RelyingPartyRegistration> registrations = new ArrayList<>();
+        StreamingMetadataIngester.Result result = ingest(registrations, "https://idp.example.org/a", "https://idp.example.org/a");
+
+        assertThat(result.getEntities()).isEqualTo(2);
+        assertThat(result.getRegistrations()).isEqualTo(1);
+        assertThat(result.getSkipped()).isEqualTo(1);
+        assertThat(result.getRenamed()).isZero();
+    }
+
+    private static StreamingMetadataIngester.Result ingest(List<RelyingPartyRegistration> registrations, String... entityIds) {
+        StringBuilder aggregate = new StringBuilder("<EntitiesDescriptor xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\">");
+        for (String entityId : entityIds) {
+            aggregate.append(TestFixtures.idpMetadata(entityId, ""));
+        }
+        aggregate.append("</EntitiesDescriptor>");
+        StreamingMetadataIngester ingester = new StreamingMetadataIngester(StreamingMetadataIngester::defaultRegistrationId,
+                (registrationId, builder) -> builder.entityId(TestFixtures.SP_ENTITY_ID), 2);
+        return ingester.ingest(new ByteArrayInputStream(aggregate.toString().getBytes(StandardCharsets.UTF_8)), registrations::addAll);
+    }
+}
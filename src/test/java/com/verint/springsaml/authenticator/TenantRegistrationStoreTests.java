@@ -0,0 +1,65 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TenantRegistrationStoreTests {
+
+    private final TenantRegistrationStore store = new TenantRegistrationStore(4);
+
+    @Test
+    void routesSubdomainsToTheMostSpecificDomain() {
+        this.store.registerDomains("acme", Collections.singletonList("acme.com"));
+        this.store.registerDomains("acme-eu", Collections.singletonList("EU.Acme.com."));
+
+        assertThat(this.store.resolveRegistrationId("jane@acme.com")).isEqualTo("acme");
+        assertThat(this.store.resolveRegistrationId("jane@sales.acme.com")).isEqualTo("acme");
+        assertThat(this.store.resolveRegistrationId("jane@eu.acme.com")).isEqualTo("acme-eu");
+        assertThat(this.store.resolveRegistrationId("jane@example.com")).isNull();
+    }
+
+    @Test
+    void keepsADomainWithItsFirstOwner() {
+        assertThat(this.store.registerDomains("acme", Arrays.asList("acme.com", "acme.org"))).isEmpty();
+
+        assertThat(this.store.registerDomains("intruder", Arrays.asList("ACME.com", "intruder.com"))).containsExactly("acme.com");
+
+        assertThat(this.store.resolveRegistrationId("jane@acme.com")).isEqualTo("acme");
+        assertThat(this.store.resolveRegistrationId("jane@intruder.com")).isEqualTo("intruder");
+        // the owner may claim its own domains again, e.g. when its registration is reloaded
+        assertThat(this.store.registerDomains("acme", Collections.singletonList("acme.com"))).isEmpty();
+    }
+
+    @Test
+    void releasesTheDomainsOfARemovedRegistration() {
+        this.store.registerDomains("acme", Collections.singletonList("acme.com"));
+        this.store.remove("acme");
+
+        assertThat(this.store.registerDomains("successor", Collections.singletonList("acme.com"))).isEmpty();
+        assertThat(this.store.resolveRegistrationId("jane@acme.com")).isEqualTo("successor");
+    }
+
+    @Test
+    void tellsListenersAboutRemovedAndReplacedRegistrations() {
+        List<String> removed = new ArrayList<>();
+        this.store.addRemovalListener(removed::add);
+        RelyingPartyRegistration azure = TestFixtures.registration("azure", false);
+
+        this.store.put(azure);
+        this.store.putAll(Arrays.asList(azure, TestFixtures.registration("okta", false)));
+        assertThat(removed).isEmpty();
+
+        this.store.put(TestFixtures.copy(azure));
+        this.store.remove("okta");
+        this.store.remove("unknown");
+
+        assertThat(removed).containsExactly("azure", "okta");
+    }
+}
@@ -0,0 +1,153 @@
+package com.verint.springsaml.authenticator;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.security.saml2.Saml2Exception;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Registrations and credentials shared by the tests; the SP key pair credentials/private.key and
+ * credentials/public.cer also plays the IdP
+ */
+final class TestFixtures {
+
+    static final String SP_ENTITY_ID = "WFO_SPjoy";
+
+    static final String IDP_ENTITY_ID = "https://idp.example.org/test";
+
+    static final String IDP_SSO_LOCATION = "https://idp.example.org/test/sso";
+
+    private TestFixtures() {
+    }
+
+    static RelyingPartyRegistration registration(String registrationId, boolean wantAuthnRequestsSigned) {
+        X509Certificate certificate = certificate();
+        PrivateKey privateKey = privateKey();
+        return RelyingPartyRegistration.withRegistrationId(registrationId)
+                .entityId(SP_ENTITY_ID)
+                .assertionConsumerServiceLocation("http://localhost:7001/wfo/saml2/acs/" + registrationId)
+                .signingX509Credentials(c -> c.add(Saml2X509Credential.signing(privateKey, certificate)))
+                .decryptionX509Credentials(c -> c.add(Saml2X509Credential.decryption(privateKey, certificate)))
+                .assertingPartyDetails(party -> party
+                        .entityId(IDP_ENTITY_ID)
+                        .singleSignOnServiceLocation(IDP_SSO_LOCATION)
+                        .wantAuthnRequestsSigned(wantAuthnRequestsSigned)
+                        .verificationX509Credentials(c -> c.add(Saml2X509Credential.verification(certificate))))
+                .build();
+    }
+
+    /**
+     * The copy DefaultRelyingPartyRegistrationResolver hands out per request
+     */
+    static RelyingPartyRegistration copy(RelyingPartyRegistration registration) {
+        return RelyingPartyRegistration.withRelyingPartyRegistration(registration).build();
+    }
+
+    static X509Certificate certificate() {
+        return certificate("credentials/public.cer");
+    }
+
+    static X509Certificate certificate(String location) {
+        try (InputStream in = new ClassPathResource(location).getInputStream()) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        } catch (IOException | GeneralSecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    static PrivateKey privateKey() {
+        String pem = read("credentials/private.key")
+                .replaceAll("-----[A-Z ]+-----", "")
+                .replaceAll("\\s", "");
+        try {
+            return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(pem)));
+        } catch (GeneralSecurityException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+
+    /**
+     * IdP metadata with the test certificate and a redirect SSO endpoint
+     *
+     * @param rootAttributes extra attributes of the EntityDescriptor, e.g. cacheDuration="PT1H"
+     */
+    static String idpMetadata(String entityId, String rootAttributes) {
+        String certificate;
+        try {
+            certificate = Base64.getEncoder().encodeToString(certificate().getEncoded());
+        } catch (CertificateEncodingException ex) {
+            throw new Saml2Exception(ex);
+        }
+        return "<EntityDescriptor entityID=\"" + entityId + "\" " + rootAttributes + " xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\">"
+                + "<IDPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+                + "<KeyDescriptor use=\"signing\"><KeyInfo xmlns=\"http://www.w3.org/2000/09/xmldsig#\"><X509Data><X509Certificate>"
+                + certificate
+                + "</X509Certificate></X509Data></KeyInfo></KeyDescriptor>"
+                + "<SingleSignOnService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect\" Location=\""
+                + IDP_SSO_LOCATION + "\"/>"
+                + "</IDPSSODescriptor></EntityDescriptor>";
+    }
+
+    /**
+     * Wait until the condition holds, failing after ten seconds
+     */
+    static void await(String description, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting until " + description);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * @return the XML of a redirect binding SAMLRequest
+     */
+    static String inflate(String samlRequest) {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(Base64.getDecoder().decode(samlRequest));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    break;
+                }
+                out.write(buffer, 0, length);
+            }
+        } catch (DataFormatException ex) {
+            throw new Saml2Exception(ex);
+        } finally {
+            inflater.end();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static String read(String location) {
+        try (InputStream in = new ClassPathResource(location).getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new Saml2Exception(ex);
+        }
+    }
+}
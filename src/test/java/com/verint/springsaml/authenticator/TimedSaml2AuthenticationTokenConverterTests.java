@@ -0,0 +1,68 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.saml2.provider.service.authentication.Saml2AuthenticationToken;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+import org.springframework.security.saml2.provider.service.web.Saml2AuthenticationTokenConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TimedSaml2AuthenticationTokenConverterTests {
+
+    private static final String RESPONSE = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_réponse\"/>";
+
+    private final RelyingPartyRegistration registration = TestFixtures.registration("azure", false);
+
+    private final TimedSaml2AuthenticationTokenConverter converter =
+            new TimedSaml2AuthenticationTokenConverter(request -> this.registration, new Saml2AcsTimings());
+
+    private final Saml2AuthenticationTokenConverter spring = new Saml2AuthenticationTokenConverter(request -> this.registration);
+
+    @Test
+    void decodesAPostedResponseLikeSpring() {
+        // with line breaks, as some IdPs post it
+        MockHttpServletRequest request = request("POST", Base64.getMimeEncoder().encodeToString(RESPONSE.getBytes(StandardCharsets.UTF_8)));
+        request.addParameter("RelayState", "state");
+
+        Saml2RelayStateAuthenticationToken token = this.converter.convert(request);
+
+        assertThat(token.getSaml2Response()).isEqualTo(RESPONSE).isEqualTo(this.spring.convert(request).getSaml2Response());
+        assertThat(token.getRelayState()).isEqualTo("state");
+    }
+
+    @Test
+    void inflatesARedirectedResponseLikeSpring() throws Exception {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFLATED, true))) {
+            out.write(RESPONSE.getBytes(StandardCharsets.UTF_8));
+        }
+        MockHttpServletRequest request = request("GET", Base64.getEncoder().encodeToString(deflated.toByteArray()));
+
+        Saml2AuthenticationToken token = this.converter.convert(request);
+
+        assertThat(token.getSaml2Response()).isEqualTo(RESPONSE).isEqualTo(this.spring.convert(request).getSaml2Response());
+    }
+
+    @Test
+    void ignoresRequestsWithoutSamlResponse() {
+        MockHttpServletRequest request = request("POST", null);
+
+        assertThat(this.converter.capture(request)).isNull();
+        assertThat(this.converter.convert(request)).isNull();
+    }
+
+    private static MockHttpServletRequest request(String method, String saml2Response) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/saml2/acs/azure");
+        if (saml2Response != null) {
+            request.addParameter("SAMLResponse", saml2Response);
+        }
+        return request;
+    }
+}
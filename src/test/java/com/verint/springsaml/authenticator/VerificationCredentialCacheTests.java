@@ -0,0 +1,97 @@
+package com.verint.springsaml.authenticator;
+
+import org.junit.jupiter.api.Test;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.springframework.security.saml2.core.Saml2X509Credential;
+import org.springframework.security.saml2.provider.service.registration.RelyingPartyRegistration;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VerificationCredentialCacheTests {
+
+    private static final Duration TTL = Duration.ofHours(1);
+
+    private final MutableClock clock = new MutableClock();
+
+    private final VerificationCredentialCache cache = cache(16);
+
+    private final X509Certificate trusted = TestFixtures.certificate();
+
+    private final X509Certificate other = TestFixtures.certificate("credentials/azure.cer");
+
+    @Test
+    void trustsTheRegistrationsCertificate() throws CertificateEncodingException {
+        VerificationCredentialCache.Credentials credentials = this.cache.resolve(TestFixtures.registration("azure", false));
+
+        assertThat(credentials.getCredentials()).extracting(BasicX509Credential::getEntityCertificate).containsExactly(this.trusted);
+        // KeyInfo text may be wrapped
+        BasicX509Credential credential = credentials.getTrustedCredential(Base64.getMimeEncoder().encodeToString(this.trusted.getEncoded()));
+        assertThat(credential).isSameAs(credentials.getCredentials().get(0));
+        assertThat(credentials.getTrustedCredential(Base64.getEncoder().encodeToString(this.trusted.getEncoded()))).isSameAs(credential);
+        // the per-request copy of the registration finds the same entry
+        assertThat(this.cache.resolve(TestFixtures.copy(TestFixtures.registration("azure", false)))).isSameAs(credentials);
+    }
+
+    @Test
+    void doesNotTrustOtherCertificates() throws CertificateEncodingException {
+        VerificationCredentialCache.Credentials credentials = this.cache.resolve(TestFixtures.registration("azure", false));
+        String certificate = Base64.getEncoder().encodeToString(this.other.getEncoded());
+
+        assertThat(credentials.getTrustedCredential(certificate)).isNull();
+        assertThat(credentials.getTrustedCredential(certificate)).isNull();
+    }
+
+    @Test
+    void replacesTheEntryWhenTheCertificatesRotate() throws CertificateEncodingException {
+        RelyingPartyRegistration registration = TestFixtures.registration("azure", false);
+        VerificationCredentialCache.Credentials before = this.cache.resolve(registration);
+        RelyingPartyRegistration rotated = RelyingPartyRegistration.withRelyingPartyRegistration(registration)
+                .assertingPartyDetails(party -> party.verificationX509Credentials(c -> {
+                    c.clear();
+                    c.add(Saml2X509Credential.verification(this.other));
+                }))
+                .build();
+
+        VerificationCredentialCache.Credentials after = this.cache.resolve(rotated);
+
+        assertThat(after).isNotSameAs(before);
+        assertThat(after.getTrustedCredential(Base64.getEncoder().encodeToString(this.other.getEncoded()))).isNotNull();
+        assertThat(after.getTrustedCredential(Base64.getEncoder().encodeToString(this.trusted.getEncoded()))).isNull();
+        // a Response already being verified keeps the credentials it resolved
+        assertThat(before.getTrustedCredential(Base64.getEncoder().encodeToString(this.trusted.getEncoded()))).isNotNull();
+        assertThat(this.cache.resolve(rotated)).isSameAs(after);
+    }
+
+    @Test
+    void rebuildsExpiredEntries() {
+        RelyingPartyRegistration registration = TestFixtures.registration("azure", false);
+        VerificationCredentialCache.Credentials credentials = this.cache.resolve(registration);
+
+        this.clock.advance(TTL.toMillis() - 1);
+        assertThat(this.cache.resolve(registration)).isSameAs(credentials);
+        this.clock.advance(1);
+        assertThat(this.cache.resolve(registration)).isNotSameAs(credentials);
+    }
+
+    @Test
+    void keepsAtMostTheMaximumNumberOfEntries() {
+        VerificationCredentialCache cache = cache(2);
+
+        for (String registrationId : new String[] {"azure", "okta", "acme"}) {
+            cache.resolve(TestFixtures.registration(registrationId, false));
+        }
+
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    private VerificationCredentialCache cache(int maxEntries) {
+        VerificationCredentialCache cache = new VerificationCredentialCache(maxEntries, TTL);
+        cache.setClock(this.clock);
+        return cache;
+    }
+}